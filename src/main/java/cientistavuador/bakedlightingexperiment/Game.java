@@ -27,16 +27,29 @@
 package cientistavuador.bakedlightingexperiment;
 
 import static cientistavuador.bakedlightingexperiment.Main.DEFAULT_CLEAR_COLOR;
+import cientistavuador.bakedlightingexperiment.bake.AmbientOcclusionBaker;
+import cientistavuador.bakedlightingexperiment.bake.BakeScheduler;
+import cientistavuador.bakedlightingexperiment.bake.BakeWorker;
+import cientistavuador.bakedlightingexperiment.bake.CPUBaker;
+import cientistavuador.bakedlightingexperiment.bake.ContributionCache;
+import cientistavuador.bakedlightingexperiment.bake.LightmapCache;
+import cientistavuador.bakedlightingexperiment.bake.ProbeBaker;
+import cientistavuador.bakedlightingexperiment.bake.RadiosityBaker;
 import cientistavuador.bakedlightingexperiment.camera.FreeCamera;
 import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.CubeTree;
 import cientistavuador.bakedlightingexperiment.cube.CubeProgram;
-import cientistavuador.bakedlightingexperiment.cube.CubeVAO;
 import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowFilter;
 import cientistavuador.bakedlightingexperiment.cube.light.directional.DirectionalLight;
 import cientistavuador.bakedlightingexperiment.cube.light.icon.IconRender;
 import cientistavuador.bakedlightingexperiment.cube.light.point.PointLight;
+import cientistavuador.bakedlightingexperiment.cube.light.sky.SkyLight;
 import cientistavuador.bakedlightingexperiment.cube.light.spot.SpotLight;
+import cientistavuador.bakedlightingexperiment.cube.probe.ProbeProgram;
+import cientistavuador.bakedlightingexperiment.cube.probe.Prop;
 import cientistavuador.bakedlightingexperiment.ubo.CameraUBO;
+import cientistavuador.bakedlightingexperiment.ubo.SkyLightUBO;
 import cientistavuador.bakedlightingexperiment.ubo.UBOBindingPoints;
 import cientistavuador.bakedlightingexperiment.debug.AabRender;
 import cientistavuador.bakedlightingexperiment.text.GLFontRenderer;
@@ -44,9 +57,11 @@ import cientistavuador.bakedlightingexperiment.text.GLFontSpecification;
 import cientistavuador.bakedlightingexperiment.text.GLFontSpecifications;
 import java.awt.Color;
 import java.awt.Toolkit;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import javax.swing.JColorChooser;
+import org.joml.FrustumIntersection;
 import org.joml.Matrix4f;
 import org.joml.Vector3dc;
 import org.joml.Vector3f;
@@ -67,8 +82,14 @@ public class Game {
 
     private final FreeCamera camera = new FreeCamera();
     private final DirectionalLight sun = new DirectionalLight();
+    private final SkyLight sky = new SkyLight();
     private final List<Cube> cubes = new ArrayList<>();
+    private final CubeTree cubeTree = new CubeTree();
     private final List<Light> lights = new ArrayList<>();
+    private final CPUBaker cpuBaker = new CPUBaker();
+    private final BakeScheduler bakeScheduler = new BakeScheduler(this.cubes, this.lights);
+    private final List<Prop> props = new ArrayList<>();
+    private ProbeBaker probeBaker = null;
     private final float[] colors = {1f, 1f, 1f};
     private int currentComponent = 0;
     private boolean textEnabled = true;
@@ -77,6 +98,9 @@ public class Game {
     private boolean hideIcons = false;
     private float brightness = 4.0f;
     private float spotAngle = 60.0f;
+    private boolean cpuBaking = false;
+    private float texelsPerUnit = Cube.DEFAULT_TEXELS_PER_UNIT;
+    private int ambientOcclusionTier = AmbientOcclusionBaker.TIER_MEDIUM;
 
     private Game() {
 
@@ -89,35 +113,69 @@ public class Game {
         Matrix4f model = new Matrix4f()
                 .translate(0f, -0.5f, 0f)
                 .scale(50f, 1f, 50f);
-        cubes.add(new Cube(model, true));
+        Cube ground = new Cube(model, true);
+        cubes.add(ground);
+        cubeTree.insert(ground);
 
         lights.add(sun);
+
+        this.bakeScheduler.setCubeTree(this.cubeTree);
+
+        this.bakeScheduler.setCache(new LightmapCache(Path.of("lightmap.cache")));
+        this.bakeScheduler.setContributionCache(new ContributionCache());
+        this.bakeScheduler.loadCache();
+        
+        this.probeBaker = new ProbeBaker(this.cpuBaker);
     }
 
     public void loop() {
         camera.updateMovement();
+        this.bakeScheduler.update();
+        this.probeBaker.update(this.cubes, this.lights);
         Matrix4f cameraProjectionView = new Matrix4f(this.camera.getProjectionView());
 
         glUseProgram(Cube.SHADER_PROGRAM);
         CubeProgram.sendPerFrameUniforms(Cube.CUBE_TEXTURE, cameraProjectionView);
 
-        for (Cube c : cubes) {
-            if (c.isGroundCube()) {
-                glBindVertexArray(CubeVAO.GROUND_CUBE_VAO);
-            } else {
-                glBindVertexArray(Cube.VAO);
+        FrustumIntersection frustum = new FrustumIntersection(cameraProjectionView);
+        List<Cube> visibleCubes = this.cubeTree.queryFrustum(frustum, new ArrayList<>());
+
+        int boundVao = 0;
+        int boundLightmap = 0;
+        for (Cube c : visibleCubes) {
+            if (c.getVAO() != boundVao) {
+                boundVao = c.getVAO();
+                glBindVertexArray(boundVao);
+            }
+            if (c.getLightmap() != boundLightmap) {
+                boundLightmap = c.getLightmap();
+                CubeProgram.sendLightmapTexture(boundLightmap, c.getAmbientOcclusion());
             }
 
-            CubeProgram.sendPerDrawUniforms(c.getLightmap(), c.getModel());
+            CubeProgram.sendPerDrawUniforms(c.getLightmapRegion(), c.getModel());
             glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
 
-            Main.NUMBER_OF_DRAWCALLS++;
-            Main.NUMBER_OF_VERTICES += Cube.NUMBER_OF_INDICES;
-
-            glBindVertexArray(0);
+            Main.countDrawCall(Cube.NUMBER_OF_INDICES);
         }
+        glBindVertexArray(0);
 
         glUseProgram(0);
+        
+        if (!this.props.isEmpty() && !this.probeBaker.getGrid().isEmpty()) {
+            glUseProgram(ProbeProgram.SHADER_PROGRAM);
+            ProbeProgram.sendPerFrameUniforms(Cube.CUBE_TEXTURE, cameraProjectionView, this.probeBaker.getGrid());
+            
+            glBindVertexArray(Cube.VAO);
+            for (Prop p : this.props) {
+                ProbeProgram.sendPerDrawUniforms(p.getModel(), p.getNormalModel());
+                glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
+                
+                Main.countDrawCall(Cube.NUMBER_OF_INDICES);
+            }
+            glBindVertexArray(0);
+            
+            glUseProgram(0);
+        }
 
         IconRender.begin(cameraProjectionView);
 
@@ -169,12 +227,31 @@ public class Game {
                                 .append("\tAlt - Wander\n")
                                 .append("\tCtrl - Unlock/Lock mouse\n")
                                 .append("\tF - Spawn Cube\n")
+                                .append("\tJ - Texel Density (+Shift Decrease): ").append(formatColor(this.texelsPerUnit)).append(" Texels Per Unit\n")
                                 .append("\tR - Remove Last Cube").append(" [").append(this.cubes.size() - 1).append(" Cubes]\n")
-                                .append("\tL - Update Lightmap").append(" [").append(this.lights.size() - 1).append(" Lights]\n")
+                                .append("\t2 - Spawn Prop (+Shift Remove Last Prop)").append(" [").append(this.props.size()).append(" Props]\n")
+                                .append("\t3 - Probe Order. [").append(this.probeBaker.getOrder() == ProbeBaker.ORDER_L1 ? "L1" : "L2").append(", ").append(this.probeBaker.getGrid().getNumberOfProbes()).append(" Probes]")
+                                .append(this.probeBaker.isBaking() ? " [Baking...]" : "").append("\n")
+                                .append("\tL - Update Lightmap").append(" [").append(this.lights.size() - 1).append(" Lights]")
+                                .append(this.bakeScheduler.isBaking() ? " [Baking... " + ((int) (this.bakeScheduler.getProgress() * 100f)) + "%]" : "").append("\n")
+                                .append("\tK - Update Lightmap (CPU)").append(this.cpuBaking ? " [Baking...]" : "").append("\n")
                                 .append("\tX - Enable/Disable Sun. [").append(sun.isEnabled() ? "Enabled" : "Disabled").append("]\n")
+                                .append("\tZ - Enable/Disable Sky (+Shift Directions). [").append(this.lights.contains(this.sky) ? "Enabled" : "Disabled").append(", ").append(this.sky.getDirections()).append(" Directions]\n")
                                 .append("\tShift + Left Click - Place Spotlight.\n")
                                 .append("\tShift + Right Click - Place Point Light.\n")
                                 .append("\tB - Remove Last Light.\n")
+                                .append("\tU - Recolor Last Light.\n")
+                                .append("\tN - Light Layers. [").append(this.bakeScheduler.isLayered() ? "Enabled" : "Disabled").append("]\n")
+                                .append("\tM - Progressive Preview. [").append(this.bakeScheduler.isProgressive() ? "Enabled" : "Disabled").append("]\n")
+                                .append("\t1 - Light Clustering. [").append(this.bakeScheduler.isClustered() ? "Enabled, " + this.bakeScheduler.getClusterLights() + " Lights, " + formatColor(this.bakeScheduler.getAverageCutSize()) + " Clusters Per Cube, " + this.bakeScheduler.getClusterRepresentatives() + " Shadow Maps" : "Disabled").append("]\n")
+                                .append("\tV - Shadow Filter. [").append(ShadowFilter.getModeName()).append("]\n")
+                                .append("\tG - Contribution Cache. [").append(this.bakeScheduler.getContributionCache() != null ? "Enabled" : "Disabled").append("]\n")
+                                .append("\tY - Bounce Lighting. [").append(this.bakeScheduler.getRadiosity() != null ? "Enabled, " + this.bakeScheduler.getRadiosity().getBounces() + " Bounces" : "Disabled").append("]")
+                                .append(this.bakeScheduler.isBouncing() ? " [Bouncing...]" : "").append("\n")
+                                .append("\tQ - Ambient Occlusion. [").append(this.bakeScheduler.getAmbientOcclusion() != null ? this.bakeScheduler.getAmbientOcclusion().getModeName() : "Disabled").append("]")
+                                .append(this.bakeScheduler.getAmbientOcclusion() != null && this.bakeScheduler.getAmbientOcclusion().isBaking() ? " [Baking...]" : "").append("\n")
+                                .append("\tE - Ambient Occlusion Samples. [").append(AmbientOcclusionBaker.tierNameOf(this.ambientOcclusionTier)).append(", ").append(AmbientOcclusionBaker.samplesOf(this.ambientOcclusionTier)).append(" Samples]\n")
+                                .append("\tH - Background Bake Worker. [").append(this.bakeScheduler.getWorker() != null ? "Enabled" : "Disabled").append("]\n")
                                 .append("\tT - Hide This Wall of Text.\n")
                                 .append("\tI - ").append(this.hideIcons ? "Show" : "Hide").append(" Light Icons.")
                                 .toString(),
@@ -198,6 +275,14 @@ public class Game {
         }
     }
 
+    /**
+     * Stops the bake worker, it must be called before the window is
+     * destroyed.
+     */
+    public void stop() {
+        this.bakeScheduler.delete();
+    }
+
     private String format(double d) {
         return String.format("%.2f", d);
     }
@@ -225,33 +310,93 @@ public class Game {
                             (float) (Math.random() * (Math.PI * 2.0))
                     )
                     .scale((float) (Math.random() * 2.5) + 0.5f);
-            cubes.add(new Cube(model, false));
+            Cube c = new Cube(model, false, this.texelsPerUnit);
+            cubes.add(c);
+            cubeTree.insert(c);
+            this.bakeScheduler.cubeAdded(c);
+        }
+        if (key == GLFW_KEY_2 && action == GLFW_PRESS) {
+            if ((mods & GLFW_MOD_SHIFT) != 0) {
+                if (!this.props.isEmpty()) {
+                    this.props.remove(this.props.size() - 1);
+                }
+            } else {
+                Vector3dc camPos = camera.getPosition();
+                Matrix4f model = new Matrix4f()
+                        .translate((float) camPos.x(), (float) camPos.y() - 0.6f, (float) camPos.z())
+                        .rotateXYZ(
+                                (float) (Math.random() * (Math.PI * 2.0)),
+                                (float) (Math.random() * (Math.PI * 2.0)),
+                                (float) (Math.random() * (Math.PI * 2.0))
+                        )
+                        .scale((float) (Math.random() * 0.5) + 0.25f);
+                this.props.add(new Prop(model));
+            }
+        }
+        if (key == GLFW_KEY_3 && action == GLFW_PRESS) {
+            this.probeBaker.setOrder(this.probeBaker.getOrder() == ProbeBaker.ORDER_L1 ? ProbeBaker.ORDER_L2 : ProbeBaker.ORDER_L1);
+        }
+        if (key == GLFW_KEY_J && action == GLFW_PRESS) {
+            if ((mods & GLFW_MOD_SHIFT) != 0) {
+                this.texelsPerUnit = Math.max(this.texelsPerUnit / 2f, 4f);
+            } else {
+                this.texelsPerUnit = Math.min(this.texelsPerUnit * 2f, 256f);
+            }
         }
         if (key == GLFW_KEY_R && action == GLFW_PRESS) {
             if (cubes.size() > 1) {
                 Cube c = cubes.remove(cubes.size() - 1);
                 if (c != null) {
+                    cubeTree.remove(c);
+                    this.bakeScheduler.cubeRemoved(c);
                     c.free();
                 }
             }
         }
         if (key == GLFW_KEY_L && action == GLFW_PRESS) {
-            for (Cube c : this.cubes) {
-                c.clearLightmap();
+            this.bakeScheduler.requestFullBake();
+        }
+        if (key == GLFW_KEY_K && action == GLFW_PRESS && !this.cpuBaking) {
+            this.cpuBaking = true;
+            
+            List<Cube> targets = new ArrayList<>(this.cubes);
+            List<Light> bakeLights = new ArrayList<>(this.lights);
+            List<CPUBaker.Surface> surfaces = new ArrayList<>();
+            for (Cube c : targets) {
+                surfaces.add(CPUBaker.Surface.of(c));
             }
-            for (Light l : this.lights) {
-                if (!l.isEnabled()) {
-                    continue;
+            
+            Thread e = new Thread(() -> {
+                try {
+                    this.cpuBaker.bake(surfaces, bakeLights);
+                    Main.MAIN_TASKS.add(() -> {
+                        for (int i = 0; i < targets.size(); i++) {
+                            Cube c = targets.get(i);
+                            if (this.cubes.contains(c)) {
+                                c.uploadLightmap(surfaces.get(i).getLightmap());
+                            }
+                        }
+                        this.cpuBaking = false;
+                    });
+                } catch (Throwable t) {
+                    t.printStackTrace(System.err);
+                    Main.MAIN_TASKS.add(() -> {
+                        this.cpuBaking = false;
+                    });
                 }
-                l.renderShadowMap(this.cubes);
-                for (Cube c : this.cubes) {
-                    c.updateLightmap(l);
-                }
-            }
+            });
+            e.setDaemon(true);
+            e.start();
         }
         if (key == GLFW_KEY_X && action == GLFW_PRESS) {
             boolean enabled = this.sun.isEnabled();
-            this.sun.setEnabled(!enabled);
+            if (enabled) {
+                this.bakeScheduler.lightRemoved(this.sun);
+            }
+            this.bakeScheduler.edit(() -> this.sun.setEnabled(!enabled));
+            if (!enabled) {
+                this.bakeScheduler.lightAdded(this.sun);
+            }
 
             if (enabled) {
                 DEFAULT_CLEAR_COLOR.set(0f, 0f, 0f);
@@ -260,9 +405,103 @@ public class Game {
             }
             glClearColor(DEFAULT_CLEAR_COLOR.x(), DEFAULT_CLEAR_COLOR.y(), DEFAULT_CLEAR_COLOR.z(), 1.0f);
         }
+        if (key == GLFW_KEY_Z && action == GLFW_PRESS) {
+            if ((mods & GLFW_MOD_SHIFT) != 0) {
+                int directions = this.sky.getDirections() * 2;
+                if (directions > SkyLightUBO.MAX_DIRECTIONS) {
+                    directions = SkyLight.DEFAULT_DIRECTIONS;
+                }
+                int skyDirections = directions;
+                this.bakeScheduler.edit(() -> this.sky.setDirections(skyDirections));
+                if (this.lights.contains(this.sky)) {
+                    this.bakeScheduler.lightChanged(this.sky);
+                }
+            } else if (this.lights.remove(this.sky)) {
+                this.bakeScheduler.lightRemoved(this.sky);
+            } else {
+                this.lights.add(1, this.sky);
+                this.bakeScheduler.lightAdded(this.sky);
+            }
+        }
         if (key == GLFW_KEY_B && action == GLFW_PRESS) {
             if (this.lights.size() > 1) {
-                this.lights.remove(this.lights.size() - 1);
+                Light l = this.lights.remove(this.lights.size() - 1);
+                this.bakeScheduler.lightRemoved(l);
+            }
+        }
+        if (key == GLFW_KEY_U && action == GLFW_PRESS) {
+            Light l = this.lights.get(this.lights.size() - 1);
+            Vector3f color = new Vector3f(this.colors);
+            float lightBrightness = this.brightness;
+            if (l instanceof PointLight p) {
+                this.bakeScheduler.edit(() -> p.setColor(color, lightBrightness));
+                this.bakeScheduler.lightChanged(l);
+            } else if (l instanceof SpotLight p) {
+                this.bakeScheduler.edit(() -> p.setColor(color, lightBrightness));
+                this.bakeScheduler.lightChanged(l);
+            }
+        }
+        if (key == GLFW_KEY_N && action == GLFW_PRESS) {
+            this.bakeScheduler.setLayered(!this.bakeScheduler.isLayered());
+        }
+        if (key == GLFW_KEY_M && action == GLFW_PRESS) {
+            this.bakeScheduler.setProgressive(!this.bakeScheduler.isProgressive());
+        }
+        if (key == GLFW_KEY_1 && action == GLFW_PRESS) {
+            this.bakeScheduler.setClustered(!this.bakeScheduler.isClustered());
+        }
+        if (key == GLFW_KEY_V && action == GLFW_PRESS) {
+            this.bakeScheduler.edit(() -> {
+                switch (ShadowFilter.getMode()) {
+                    case ShadowFilter.MODE_PCF ->
+                        ShadowFilter.setMode(ShadowFilter.MODE_ESM);
+                    case ShadowFilter.MODE_ESM ->
+                        ShadowFilter.setMode(ShadowFilter.MODE_ADAPTIVE);
+                    default ->
+                        ShadowFilter.setMode(ShadowFilter.MODE_PCF);
+                }
+            });
+            this.bakeScheduler.requestFullBake();
+        }
+        if (key == GLFW_KEY_G && action == GLFW_PRESS) {
+            if (this.bakeScheduler.getContributionCache() != null) {
+                this.bakeScheduler.setContributionCache(null);
+            } else {
+                this.bakeScheduler.setContributionCache(new ContributionCache());
+            }
+        }
+        if (key == GLFW_KEY_Y && action == GLFW_PRESS) {
+            if (this.bakeScheduler.getRadiosity() != null) {
+                this.bakeScheduler.setRadiosity(null);
+            } else {
+                this.bakeScheduler.setRadiosity(new RadiosityBaker(this.cpuBaker));
+            }
+        }
+        if (key == GLFW_KEY_Q && action == GLFW_PRESS) {
+            AmbientOcclusionBaker ambientOcclusion = this.bakeScheduler.getAmbientOcclusion();
+            if (ambientOcclusion == null) {
+                ambientOcclusion = new AmbientOcclusionBaker(this.cpuBaker, AmbientOcclusionBaker.MODE_GPU);
+            } else if (ambientOcclusion.getMode() == AmbientOcclusionBaker.MODE_GPU) {
+                ambientOcclusion = new AmbientOcclusionBaker(this.cpuBaker, AmbientOcclusionBaker.MODE_CPU);
+            } else {
+                ambientOcclusion = null;
+            }
+            if (ambientOcclusion != null) {
+                ambientOcclusion.setTier(this.ambientOcclusionTier);
+            }
+            this.bakeScheduler.setAmbientOcclusion(ambientOcclusion);
+        }
+        if (key == GLFW_KEY_E && action == GLFW_PRESS) {
+            this.ambientOcclusionTier = (this.ambientOcclusionTier + 1) % 3;
+            if (this.bakeScheduler.getAmbientOcclusion() != null) {
+                this.bakeScheduler.getAmbientOcclusion().setTier(this.ambientOcclusionTier);
+            }
+        }
+        if (key == GLFW_KEY_H && action == GLFW_PRESS) {
+            if (this.bakeScheduler.getWorker() != null) {
+                this.bakeScheduler.setWorker(null);
+            } else {
+                this.bakeScheduler.setWorker(new BakeWorker());
             }
         }
         if (key == GLFW_KEY_O && action == GLFW_PRESS) {
@@ -357,6 +596,7 @@ public class Game {
                     this.brightness
             );
             this.lights.add(light);
+            this.bakeScheduler.lightAdded(light);
         }
         if (button == GLFW_MOUSE_BUTTON_LEFT && (mods & GLFW_MOD_SHIFT) != 0 && action == GLFW_PRESS) {
             SpotLight light = new SpotLight(
@@ -367,6 +607,7 @@ public class Game {
                     this.brightness
             );
             this.lights.add(light);
+            this.bakeScheduler.lightAdded(light);
         }
     }
 }
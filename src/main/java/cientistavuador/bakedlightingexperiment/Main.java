@@ -106,6 +106,7 @@ public class Main {
     public static double ONE_MINUTE_COUNTER = 0.0;
     public static int NUMBER_OF_DRAWCALLS = 0;
     public static int NUMBER_OF_VERTICES = 0;
+    private static final Thread MAIN_THREAD = Thread.currentThread();
     public static final ConcurrentLinkedQueue<Runnable> MAIN_TASKS = new ConcurrentLinkedQueue<>();
     public static final Vector3f DEFAULT_CLEAR_COLOR = new Vector3f(0.2f, 0.4f, 0.6f);
     private static GLDebugMessageCallback DEBUG_CALLBACK = null;
@@ -163,6 +164,36 @@ public class Main {
         };
     }
 
+    /**
+     * Counts a draw call of the window, draws made by other contexts (such
+     * as the bake worker) are not part of the frame and are not counted.
+     *
+     * @param vertices the number of vertices drawn
+     */
+    public static void countDrawCall(int vertices) {
+        if (Thread.currentThread() != MAIN_THREAD) {
+            return;
+        }
+        NUMBER_OF_DRAWCALLS++;
+        NUMBER_OF_VERTICES += vertices;
+    }
+
+    /**
+     * Sets the default state of the current context, it must be called on
+     * every context that renders with the programs of the game.
+     */
+    public static void setDefaultState() {
+        glEnable(GL_BLEND);
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        glClearColor(DEFAULT_CLEAR_COLOR.x(), DEFAULT_CLEAR_COLOR.y(), DEFAULT_CLEAR_COLOR.z(), 1.0f);
+        glEnable(GL_DEPTH_TEST);
+        glClearDepth(1f);
+        glDepthFunc(GL_LEQUAL);
+        glEnable(GL_CULL_FACE);
+        glCullFace(GL_BACK);
+        glLineWidth(1f);
+    }
+
     /**
      * @param args the command line arguments
      */
@@ -241,15 +272,7 @@ public class Main {
         if (USE_MSAA) {
             glEnable(GL_MULTISAMPLE);
         }
-        glEnable(GL_BLEND);
-        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
-        glClearColor(DEFAULT_CLEAR_COLOR.x(), DEFAULT_CLEAR_COLOR.y(), DEFAULT_CLEAR_COLOR.z(), 1.0f);
-        glEnable(GL_DEPTH_TEST);
-        glClearDepth(1f);
-        glDepthFunc(GL_LEQUAL);
-        glEnable(GL_CULL_FACE);
-        glCullFace(GL_BACK);
-        glLineWidth(1f);
+        setDefaultState();
         int maxUBOBindings = glGetInteger(GL_MAX_UNIFORM_BUFFER_BINDINGS);
         if (maxUBOBindings < MIN_UNIFORM_BUFFER_BINDINGS) {
             throw new IllegalStateException("Max UBO Bindings too small! Update your drivers or buy a new GPU.");
@@ -354,6 +377,9 @@ public class Main {
 
             Main.FRAME++;
         }
+
+        Game.get().stop();
+
         if (DEBUG_CALLBACK != null) {
             DEBUG_CALLBACK.free();
         }
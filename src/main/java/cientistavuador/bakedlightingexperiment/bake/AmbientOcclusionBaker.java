@@ -0,0 +1,537 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.Main;
+import cientistavuador.bakedlightingexperiment.cube.AmbientOcclusionProgram;
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.VerticesStream;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowInstances;
+import cientistavuador.bakedlightingexperiment.cube.light.directional.DirectionalLightShadowProgram;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * Bakes the ambient occlusion of the cubes into the ambient occlusion
+ * textures of the lightmap atlas, occlusion only depends on the cubes, so it
+ * is kept apart from the lightmaps and only runs while no lightmap is being
+ * baked.
+ * <p>
+ * On the gpu the scene is rendered to batches of
+ * {@link AmbientOcclusionProgram#MAX_VIEWS} orthographic depth views from
+ * directions spread over a sphere and every cube gathers a batch in a single
+ * draw. On the cpu every texel casts cosine weighted rays over its hemisphere
+ * against the boxes near the cube.
+ * <p>
+ * Adding or removing a cube only rebakes the cubes within the occlusion
+ * radius of it.
+ *
+ * @author Cien
+ */
+public class AmbientOcclusionBaker {
+
+    public static final int MODE_GPU = 0;
+    public static final int MODE_CPU = 1;
+
+    public static final int TIER_LOW = 0;
+    public static final int TIER_MEDIUM = 1;
+    public static final int TIER_HIGH = 2;
+
+    public static final float DEFAULT_RADIUS = 1.5f;
+    public static final float VIEW_MARGIN = 1f;
+    public static final float VIEW_BIAS_TEXELS = 1.5f;
+
+    public static int samplesOf(int tier) {
+        return switch (tier) {
+            case TIER_LOW -> 32;
+            case TIER_HIGH -> 256;
+            default -> 64;
+        };
+    }
+
+    public static String tierNameOf(int tier) {
+        return switch (tier) {
+            case TIER_LOW -> "Low";
+            case TIER_HIGH -> "High";
+            default -> "Medium";
+        };
+    }
+
+    private static class Target {
+
+        private final Cube cube;
+        private final CPUBaker.Surface surface;
+        private final List<CPUBaker.Occluder> occluders;
+        private final float[] result;
+
+        public Target(Cube cube, List<CPUBaker.Occluder> occluders) {
+            this.cube = cube;
+            this.surface = CPUBaker.Surface.of(cube);
+            this.occluders = occluders;
+            this.result = new float[cube.getLightmapWidth() * cube.getLightmapHeight()];
+        }
+    }
+
+    private static class Context {
+
+        private final Vector3f origin = new Vector3f();
+        private final Vector3f direction = new Vector3f();
+        private final Vector3f tangent = new Vector3f();
+        private final Vector3f bitangent = new Vector3f();
+        private final Vector3f localOrigin = new Vector3f();
+        private final Vector3f localDirection = new Vector3f();
+        private final Vector2f result = new Vector2f();
+    }
+
+    private final CPUBaker baker;
+    private final int mode;
+    private int tier = TIER_MEDIUM;
+    private float radius = DEFAULT_RADIUS;
+
+    private final Set<Cube> dirty = new LinkedHashSet<>();
+    private final List<Cube> changed = new ArrayList<>();
+    private boolean fullBakeRequested = true;
+    private BakeJob job = null;
+
+    private int generation = 0;
+    private boolean running = false;
+    private volatile List<Target> finished = null;
+    private volatile int finishedGeneration = -1;
+
+    public AmbientOcclusionBaker(CPUBaker baker, int mode) {
+        if (mode != MODE_GPU && mode != MODE_CPU) {
+            throw new IllegalArgumentException("Invalid ambient occlusion mode: " + mode);
+        }
+        this.baker = baker;
+        this.mode = mode;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public String getModeName() {
+        return (this.mode == MODE_GPU ? "GPU" : "CPU");
+    }
+
+    public int getTier() {
+        return tier;
+    }
+
+    public String getTierName() {
+        return tierNameOf(this.tier);
+    }
+
+    /**
+     * Sets the number of samples of every texel and rebakes every cube.
+     *
+     * @param tier {@link #TIER_LOW}, {@link #TIER_MEDIUM} or {@link #TIER_HIGH}
+     */
+    public void setTier(int tier) {
+        if (tier != TIER_LOW && tier != TIER_MEDIUM && tier != TIER_HIGH) {
+            throw new IllegalArgumentException("Invalid ambient occlusion tier: " + tier);
+        }
+        this.tier = tier;
+        requestFullBake();
+    }
+
+    public float getRadius() {
+        return radius;
+    }
+
+    /**
+     * Sets how far a surface must be to stop occluding and rebakes every
+     * cube.
+     *
+     * @param radius the radius in world units
+     */
+    public void setRadius(float radius) {
+        if (radius <= 0f) {
+            throw new IllegalArgumentException("Radius must be positive: " + radius);
+        }
+        this.radius = radius;
+        requestFullBake();
+    }
+
+    public boolean isBaking() {
+        return this.job != null || this.running || this.fullBakeRequested
+                || !this.dirty.isEmpty() || !this.changed.isEmpty();
+    }
+
+    public void requestFullBake() {
+        this.fullBakeRequested = true;
+    }
+
+    public void cubeAdded(Cube cube) {
+        this.changed.add(cube);
+    }
+
+    public void cubeRemoved(Cube cube) {
+        if (this.job != null) {
+            this.job.cubeRemoved(cube);
+        }
+        this.dirty.remove(cube);
+        this.changed.add(cube);
+    }
+
+    /**
+     * Discards the bake in progress, the cubes it was baking keep whatever
+     * was written so far.
+     */
+    public void cancel() {
+        if (this.job != null) {
+            this.job.cancel();
+            this.job = null;
+        }
+        this.generation++;
+        this.running = false;
+    }
+
+    /**
+     * Cancels the bake in progress and clears the ambient occlusion of every
+     * cube back to unoccluded.
+     *
+     * @param cubes every cube of the scene
+     */
+    public void restore(List<Cube> cubes) {
+        cancel();
+        for (Cube c : cubes) {
+            c.clearAmbientOcclusion();
+        }
+        this.dirty.clear();
+        this.changed.clear();
+        this.fullBakeRequested = false;
+    }
+
+    private boolean isNear(Cube a, Cube b) {
+        return a.getMin().x() - this.radius <= b.getMax().x() && a.getMax().x() + this.radius >= b.getMin().x()
+                && a.getMin().y() - this.radius <= b.getMax().y() && a.getMax().y() + this.radius >= b.getMin().y()
+                && a.getMin().z() - this.radius <= b.getMax().z() && a.getMax().z() + this.radius >= b.getMin().z();
+    }
+
+    /**
+     * Uploads a finished cpu bake, runs a slice of the gpu bake or starts a
+     * new bake if some cube is out of date, it must be called on the main
+     * thread.
+     *
+     * @param cubes every cube of the scene
+     * @param budgetNanos the time budget of a gpu slice in nanoseconds
+     */
+    public void update(List<Cube> cubes, long budgetNanos) {
+        List<Target> targets = this.finished;
+        if (targets != null) {
+            this.finished = null;
+            if (this.finishedGeneration == this.generation) {
+                this.running = false;
+                upload(cubes, targets);
+            }
+        }
+
+        if (this.job != null) {
+            this.job.run(budgetNanos);
+            if (this.job.isDone()) {
+                this.job = null;
+            }
+            return;
+        }
+        if (this.running) {
+            return;
+        }
+
+        if (this.fullBakeRequested) {
+            this.dirty.addAll(cubes);
+        } else if (!this.changed.isEmpty()) {
+            for (Cube c : cubes) {
+                for (Cube other : this.changed) {
+                    if (isNear(c, other)) {
+                        this.dirty.add(c);
+                        break;
+                    }
+                }
+            }
+        }
+        this.fullBakeRequested = false;
+        this.changed.clear();
+
+        if (this.dirty.isEmpty()) {
+            return;
+        }
+
+        List<Cube> dirtyCubes = new ArrayList<>(this.dirty);
+        this.dirty.clear();
+
+        if (this.mode == MODE_GPU) {
+            this.job = new BakeJob();
+            buildJob(this.job, cubes, dirtyCubes);
+            this.job.run(budgetNanos);
+        } else {
+            startCPU(cubes, dirtyCubes);
+        }
+    }
+
+    private void upload(List<Cube> cubes, List<Target> targets) {
+        Set<Cube> present = Collections.newSetFromMap(new IdentityHashMap<>());
+        present.addAll(cubes);
+        for (Target t : targets) {
+            if (present.contains(t.cube) && t.result.length == t.cube.getLightmapWidth() * t.cube.getLightmapHeight()) {
+                t.cube.uploadAmbientOcclusion(t.result);
+            }
+        }
+    }
+
+    private static Vector3f[] sphere(int samples) {
+        Vector3f[] directions = new Vector3f[samples];
+        double goldenAngle = Math.PI * (3.0 - Math.sqrt(5.0));
+        for (int i = 0; i < samples; i++) {
+            double y = 1.0 - (((i + 0.5) * 2.0) / samples);
+            double r = Math.sqrt(1.0 - (y * y));
+            double theta = goldenAngle * i;
+            directions[i] = new Vector3f(
+                    (float) (Math.cos(theta) * r),
+                    (float) y,
+                    (float) (Math.sin(theta) * r)
+            );
+        }
+        return directions;
+    }
+
+    private void buildJob(BakeJob bakeJob, List<Cube> cubes, List<Cube> targets) {
+        List<Cube> scene = new ArrayList<>(cubes);
+
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
+        for (Cube c : scene) {
+            min.min(c.getMin());
+            max.max(c.getMax());
+        }
+        Vector3f center = new Vector3f(min).add(max).mul(0.5f);
+        float sceneRadius = Math.max(min.distance(max) * 0.5f, 1E-3f);
+        float distance = sceneRadius + VIEW_MARGIN;
+        float viewDepth = distance * 2f;
+        float bias = ((sceneRadius * 2f) / AmbientOcclusionProgram.VIEW_SIZE) * VIEW_BIAS_TEXELS;
+
+        int samples = samplesOf(this.tier);
+        float weight = 4f / samples;
+        float batchRadius = this.radius;
+        Vector3f[] directions = sphere(samples);
+
+        for (int start = 0; start < samples; start += AmbientOcclusionProgram.MAX_VIEWS) {
+            int count = Math.min(AmbientOcclusionProgram.MAX_VIEWS, samples - start);
+            boolean accumulate = start != 0;
+
+            Matrix4f[] projectionViews = new Matrix4f[count];
+            Vector3f[] viewDirections = Arrays.copyOfRange(directions, start, start + count);
+            for (int i = 0; i < count; i++) {
+                Vector3f dir = viewDirections[i];
+                Vector3f eye = new Vector3f(dir).mul(distance).add(center);
+                float upX = (Math.abs(dir.y()) > 0.99f ? 1f : 0f);
+                float upY = (Math.abs(dir.y()) > 0.99f ? 0f : 1f);
+                projectionViews[i] = new Matrix4f()
+                        .ortho(-sceneRadius, sceneRadius, -sceneRadius, sceneRadius, 0f, viewDepth)
+                        .lookAt(eye.x(), eye.y(), eye.z(), center.x(), center.y(), center.z(), upX, upY, 0f);
+            }
+
+            bakeJob.add(() -> {
+                renderViews(bakeJob.filterRemoved(scene), projectionViews);
+
+                glUseProgram(AmbientOcclusionProgram.SHADER_PROGRAM);
+                AmbientOcclusionProgram.sendPerBatchUniforms(
+                        projectionViews, viewDirections, count,
+                        viewDepth, batchRadius, bias, weight
+                );
+                glUseProgram(0);
+            });
+            for (Cube c : targets) {
+                bakeJob.add(c, () -> c.updateAmbientOcclusion(accumulate));
+            }
+        }
+    }
+
+    private static void renderViews(List<Cube> scene, Matrix4f[] projectionViews) {
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, AmbientOcclusionProgram.DEPTH_VIEWS_FBO.get());
+        glViewport(0, 0, AmbientOcclusionProgram.VIEW_SIZE, AmbientOcclusionProgram.VIEW_SIZE);
+        glUseProgram(DirectionalLightShadowProgram.SHADER_PROGRAM);
+
+        for (int i = 0; i < projectionViews.length; i++) {
+            glFramebufferTextureLayer(GL_DRAW_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, AmbientOcclusionProgram.DEPTH_VIEWS, 0, i);
+            glClear(GL_DEPTH_BUFFER_BIT);
+
+            DirectionalLightShadowProgram.sendPerFrameUniforms(projectionViews[i]);
+            ShadowInstances.draw(scene);
+        }
+
+        glUseProgram(0);
+        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+    }
+
+    private void startCPU(List<Cube> cubes, List<Cube> dirtyCubes) {
+        List<Target> targets = new ArrayList<>();
+        for (Cube c : dirtyCubes) {
+            List<CPUBaker.Occluder> occluders = new ArrayList<>();
+            for (Cube other : cubes) {
+                if (other != c && isNear(c, other)) {
+                    occluders.add(new CPUBaker.Occluder(other.getModel()));
+                }
+            }
+            targets.add(new Target(c, occluders));
+        }
+
+        int passGeneration = this.generation;
+        int passSamples = samplesOf(this.tier);
+        float passRadius = this.radius;
+        this.running = true;
+
+        Thread thread = new Thread(() -> {
+            try {
+                compute(targets, passSamples, passRadius);
+                this.finished = targets;
+                this.finishedGeneration = passGeneration;
+            } catch (Throwable t) {
+                t.printStackTrace(System.err);
+            }
+        }, "Ambient Occlusion Baker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void compute(List<Target> targets, int samples, float maxDistance) {
+        //cosine weighted hammersley points in tangent space
+        float[] hemisphere = new float[samples * 3];
+        for (int i = 0; i < samples; i++) {
+            float u = (i + 0.5f) / samples;
+            float v = (Integer.reverse(i) & 0xFFFFFFFFL) * 0x1p-32f;
+            float r = (float) Math.sqrt(u);
+            float phi = (float) (2.0 * Math.PI * v);
+            hemisphere[(i * 3) + 0] = (float) (Math.cos(phi) * r);
+            hemisphere[(i * 3) + 1] = (float) (Math.sin(phi) * r);
+            hemisphere[(i * 3) + 2] = (float) Math.sqrt(1f - u);
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Target t : targets) {
+            Arrays.fill(t.result, 1f);
+
+            CPUBaker.Surface s = t.surface;
+            VerticesStream stream = this.baker.verticesOf(s.getWidth(), s.getHeight());
+            float[] streamVertices = stream.vertices();
+            int[] streamIndices = stream.indices();
+
+            for (int row = 0; row < s.getHeight(); row += CPUBaker.ROWS_PER_TASK) {
+                int yStart = row;
+                int yEnd = Math.min(row + CPUBaker.ROWS_PER_TASK, s.getHeight());
+                tasks.add(() -> {
+                    Context ctx = new Context();
+                    CPUBaker.rasterize(s, streamVertices, streamIndices, yStart, yEnd, (x, y, face, position, normal, area) -> {
+                        t.result[(y * s.getWidth()) + x] = occlusion(ctx, x, y, position, normal, hemisphere, maxDistance, t.occluders);
+                    });
+                    return null;
+                });
+            }
+        }
+
+        List<Future<Void>> results = this.baker.getPool().invokeAll(tasks);
+        for (Future<Void> f : results) {
+            try {
+                f.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    private static float occlusion(
+            Context ctx, int x, int y, Vector3f position, Vector3f normal,
+            float[] hemisphere, float maxDistance, List<CPUBaker.Occluder> occluders
+    ) {
+        if (occluders.isEmpty()) {
+            return 1f;
+        }
+
+        if (Math.abs(normal.y()) < 0.99f) {
+            ctx.tangent.set(0f, 1f, 0f);
+        } else {
+            ctx.tangent.set(1f, 0f, 0f);
+        }
+        ctx.tangent.cross(normal).normalize();
+        normal.cross(ctx.tangent, ctx.bitangent);
+
+        //rotates the samples of every texel by a different angle, turning
+        //banding into noise
+        int hash = (x * 73856093) ^ (y * 19349663);
+        hash ^= (hash >>> 13);
+        hash *= 0x5bd1e995;
+        hash ^= (hash >>> 15);
+        float angle = (float) (((hash & 0xFFFF) / 65536.0) * 2.0 * Math.PI);
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+
+        ctx.origin.set(normal).mul(CPUBaker.SHADOW_BIAS).add(position);
+
+        int samples = hemisphere.length / 3;
+        int visible = 0;
+        for (int i = 0; i < samples; i++) {
+            float hx = hemisphere[(i * 3) + 0];
+            float hy = hemisphere[(i * 3) + 1];
+            float hz = hemisphere[(i * 3) + 2];
+            float tx = (hx * cos) - (hy * sin);
+            float ty = (hx * sin) + (hy * cos);
+
+            ctx.direction.set(
+                    (ctx.tangent.x() * tx) + (ctx.bitangent.x() * ty) + (normal.x() * hz),
+                    (ctx.tangent.y() * tx) + (ctx.bitangent.y() * ty) + (normal.y() * hz),
+                    (ctx.tangent.z() * tx) + (ctx.bitangent.z() * ty) + (normal.z() * hz)
+            );
+
+            boolean occluded = false;
+            for (CPUBaker.Occluder o : occluders) {
+                if (o.intersects(ctx.origin, ctx.direction, maxDistance, ctx.localOrigin, ctx.localDirection, ctx.result)) {
+                    occluded = true;
+                    break;
+                }
+            }
+            if (!occluded) {
+                visible++;
+            }
+        }
+
+        return visible / ((float) samples);
+    }
+
+}
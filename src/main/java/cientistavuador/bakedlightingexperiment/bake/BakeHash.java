@@ -0,0 +1,106 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.directional.DirectionalLight;
+import cientistavuador.bakedlightingexperiment.cube.light.sky.SkyLight;
+import cientistavuador.bakedlightingexperiment.cube.light.spot.SpotLight;
+import org.joml.Matrix4fc;
+import org.joml.Vector3fc;
+
+/**
+ * 64 bit FNV style hashing of the inputs of a bake.
+ *
+ * @author Cien
+ */
+public class BakeHash {
+
+    public static final long SEED = 0xCBF29CE484222325L;
+
+    public static long hash(long hash, int value) {
+        return (hash * 0x100000001B3L) ^ value;
+    }
+
+    public static long hash(long hash, long value) {
+        return hash(hash(hash, (int) (value >>> 32)), (int) value);
+    }
+
+    public static long hash(long hash, float value) {
+        return hash(hash, Float.floatToIntBits(value));
+    }
+
+    public static long hash(long hash, Vector3fc value) {
+        return hash(hash(hash(hash, value.x()), value.y()), value.z());
+    }
+
+    public static long hash(long hash, Matrix4fc value) {
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                hash = hash(hash, value.get(column, row));
+            }
+        }
+        return hash;
+    }
+
+    public static long hash(long hash, Cube cube) {
+        hash = hash(hash, cube.getModel());
+        hash = hash(hash, cube.getLightmapWidth());
+        hash = hash(hash, cube.getLightmapHeight());
+        return hash;
+    }
+
+    public static long hash(long hash, Light light) {
+        hash = hash(hash, light.getClass().getName().hashCode());
+        hash = hash(hash, light.isEnabled() ? 1 : 0);
+        if (!light.isEnabled()) {
+            return hash;
+        }
+        hash = hash(hash, light.getDiffuseColor());
+        hash = hash(hash, light.getAmbientColor());
+        if (light instanceof DirectionalLight d) {
+            hash = hash(hash, d.getDirection());
+        } else {
+            hash = hash(hash, light.getPosition());
+        }
+        if (light instanceof SkyLight s) {
+            hash = hash(hash, s.getDirections());
+        }
+        if (light instanceof SpotLight s) {
+            hash = hash(hash, s.getDirection());
+            hash = hash(hash, s.getCutOff());
+            hash = hash(hash, s.getOuterCutOff());
+        }
+        return hash;
+    }
+
+    private BakeHash() {
+
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * A bake split into small steps that are run from the main loop under a time
+ * budget per frame.
+ * <p>
+ * A fence is placed after every slice and no step runs until the gpu finished
+ * the previous slice, the number of steps per slice grows while the gpu keeps
+ * up and shrinks when it does not, so a slice never stalls the frame.
+ * <p>
+ * A job submitted to a {@link BakeWorker} runs on the context of the worker
+ * instead and is only done after the render thread saw its last fence.
+ *
+ * @author Cien
+ */
+public class BakeJob {
+
+    public static final int INITIAL_STEPS_PER_SLICE = 32;
+    public static final int MAX_STEPS_PER_SLICE = 4096;
+
+    private static class Step {
+
+        private final Cube cube;
+        private final Runnable action;
+
+        public Step(Cube cube, Runnable action) {
+            this.cube = cube;
+            this.action = action;
+        }
+    }
+
+    private final ArrayDeque<Step> steps = new ArrayDeque<>();
+    private final Set<Cube> removedCubes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Cube> cubes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int total = 0;
+    private volatile int done = 0;
+    private int stepsPerSlice = INITIAL_STEPS_PER_SLICE;
+    private long fence = 0;
+    private volatile boolean cancelled = false;
+    private boolean async = false;
+    private boolean finished = false;
+
+    public BakeJob() {
+
+    }
+
+    /**
+     * Adds a step that does not write to a cube lightmap.
+     *
+     * @param action the step
+     */
+    public void add(Runnable action) {
+        add(null, action);
+    }
+
+    /**
+     * Adds a step that writes to the lightmap of a cube, the step is skipped
+     * if the cube is removed before it runs.
+     *
+     * @param cube the cube or null
+     * @param action the step
+     */
+    public void add(Cube cube, Runnable action) {
+        this.steps.add(new Step(cube, action));
+        this.total++;
+        if (cube != null) {
+            this.cubes.add(cube);
+        }
+    }
+
+    /**
+     * Returns the cubes with at least one step, removed cubes included.
+     *
+     * @return the cubes written by the job
+     */
+    public Set<Cube> getCubes() {
+        return Collections.unmodifiableSet(this.cubes);
+    }
+
+    /**
+     * Marks a cube as removed, if the job runs on a worker this waits for the
+     * step being run to finish, so no step of the cube runs after it returns.
+     *
+     * @param cube the removed cube
+     */
+    public synchronized void cubeRemoved(Cube cube) {
+        this.removedCubes.add(cube);
+    }
+
+    /**
+     * Returns a copy of the list without the cubes removed so far.
+     *
+     * @param cubes the cubes
+     * @return the cubes that were not removed
+     */
+    public synchronized List<Cube> filterRemoved(List<Cube> cubes) {
+        List<Cube> alive = new ArrayList<>(cubes.size());
+        for (Cube c : cubes) {
+            if (!this.removedCubes.contains(c)) {
+                alive.add(c);
+            }
+        }
+        return alive;
+    }
+
+    public boolean isDone() {
+        if (this.async) {
+            return this.finished;
+        }
+        return this.steps.isEmpty() && this.fence == 0;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void setAsync() {
+        this.async = true;
+    }
+
+    void finish() {
+        this.finished = true;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getDone() {
+        return done;
+    }
+
+    public float getProgress() {
+        if (this.total == 0) {
+            return 1f;
+        }
+        return this.done / ((float) this.total);
+    }
+
+    private boolean waitFence() {
+        if (this.fence == 0) {
+            return true;
+        }
+        int status = glClientWaitSync(this.fence, GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+        if (status == GL_TIMEOUT_EXPIRED) {
+            this.stepsPerSlice = Math.max(this.stepsPerSlice / 2, 1);
+            return false;
+        }
+        glDeleteSync(this.fence);
+        this.fence = 0;
+        return true;
+    }
+
+    /**
+     * Runs steps until the budget or the step limit of the slice is reached,
+     * does nothing if the gpu is still working on the previous slice.
+     *
+     * @param budgetNanos the time budget in nanoseconds
+     */
+    public void run(long budgetNanos) {
+        if (!waitFence()) {
+            return;
+        }
+        if (this.steps.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        int ran = 0;
+        while (ran < this.stepsPerSlice && runNext()) {
+            ran++;
+            if (System.nanoTime() - start >= budgetNanos) {
+                break;
+            }
+        }
+        if (ran >= this.stepsPerSlice) {
+            this.stepsPerSlice = Math.min(this.stepsPerSlice * 2, MAX_STEPS_PER_SLICE);
+        }
+
+        this.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    /**
+     * Runs the next step on the current context.
+     *
+     * @return false if there are no steps left or the job was cancelled
+     */
+    synchronized boolean runNext() {
+        if (this.cancelled) {
+            return false;
+        }
+        Step step = this.steps.poll();
+        if (step == null) {
+            return false;
+        }
+        if (step.cube == null || !this.removedCubes.contains(step.cube)) {
+            step.action.run();
+        }
+        this.done++;
+        return true;
+    }
+
+    /**
+     * Runs an action between two steps, if the job runs on a worker this
+     * waits for the step being run to finish and no step runs until the
+     * action returns.
+     *
+     * @param action the action
+     */
+    public synchronized void runBetweenSteps(Runnable action) {
+        action.run();
+    }
+
+    /**
+     * Cancels the job, a job running on a worker stops after the current step
+     * and is done once the worker handed it back.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        if (this.async) {
+            return;
+        }
+        this.steps.clear();
+        if (this.fence != 0) {
+            glDeleteSync(this.fence);
+            this.fence = 0;
+        }
+    }
+
+}
@@ -0,0 +1,1158 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.CubeTree;
+import cientistavuador.bakedlightingexperiment.cube.LightmapAtlas;
+import cientistavuador.bakedlightingexperiment.cube.LightmapRefiner;
+import cientistavuador.bakedlightingexperiment.cube.light.BakeLightsProgram;
+import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.LightRange;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowAtlas;
+import cientistavuador.bakedlightingexperiment.cube.light.directional.DirectionalLight;
+import cientistavuador.bakedlightingexperiment.cube.light.sky.SkyLight;
+import cientistavuador.bakedlightingexperiment.cube.light.spot.SpotLight;
+import cientistavuador.bakedlightingexperiment.ubo.BakeLightsUBO;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+/**
+ * Keeps track of what changed since the last bake and only rebakes the cubes
+ * and lights affected by it.
+ * <p>
+ * In layered mode every cube keeps one lightmap layer per light, so removing
+ * or recoloring a light only needs the layers to be composited again, unless
+ * the recolor changes the range of the light.
+ * <p>
+ * The work is not done at once, it is queued into a {@link BakeJob} that runs
+ * a slice per frame, so the lightmaps are updated in place while the window
+ * stays interactive, changes made while a job runs are baked by the next job.
+ * <p>
+ * In progressive mode every affected cube is rebaked from scratch at a few
+ * increasing resolutions, so a preview of the whole scene shows up quickly
+ * and is refined afterwards.
+ * <p>
+ * If a {@link BakeWorker} is set, new jobs run on the worker context instead
+ * of in slices, the steps read the lights when they run, so lights must be
+ * changed through {@link #edit(Runnable)} while a job runs.
+ * <p>
+ * If a {@link RadiosityBaker} is set, a bounce pass over the whole scene is
+ * started after every finished job.
+ * <p>
+ * In clustered mode point and spot lights are grouped in a {@link LightTree}
+ * and every cube is baked with only a few clusters chosen for it, it is not
+ * used in layered mode and the contribution cache is bypassed.
+ *
+ * @author Cien
+ */
+public class BakeScheduler {
+
+    public static final long DEFAULT_FRAME_BUDGET = 4L * 1000000L;
+
+    private final List<Cube> cubes;
+    private final List<Light> lights;
+
+    private final Set<Cube> dirtyCubes = new LinkedHashSet<>();
+    private final Map<Cube, Set<Light>> dirtyLayers = new LinkedHashMap<>();
+    private final Set<Light> addedLights = new LinkedHashSet<>();
+    private final Set<Light> removedLights = new LinkedHashSet<>();
+    private final Set<Light> changedLights = new LinkedHashSet<>();
+    private final Map<Light, Float> bakedRanges = new HashMap<>();
+    private boolean fullBakeRequested = false;
+    private boolean baked = false;
+    private boolean layered = false;
+    private boolean progressive = false;
+    private boolean clustered = false;
+    private int clusterLights = 0;
+    private int clusterReceivers = 0;
+    private int clusterCuts = 0;
+    private int clusterRepresentatives = 0;
+    private boolean bakedInClusters = false;
+    private LightmapCache cache = null;
+    private ContributionCache contributions = null;
+    private final List<ContributionCache> retiredContributions = new ArrayList<>();
+    private CubeTree tree = null;
+    private BakeJob job = null;
+    private BakeWorker worker = null;
+    private BakeWorker jobWorker = null;
+    private RadiosityBaker radiosity = null;
+    private AmbientOcclusionBaker ambientOcclusion = null;
+    private boolean fullBounce = false;
+    private long frameBudget = DEFAULT_FRAME_BUDGET;
+
+    public BakeScheduler(List<Cube> cubes, List<Light> lights) {
+        this.cubes = cubes;
+        this.lights = lights;
+    }
+
+    public boolean isBaked() {
+        return baked;
+    }
+
+    public boolean isBaking() {
+        return this.job != null;
+    }
+
+    /**
+     * Returns the progress of the running bake job.
+     *
+     * @return the progress from 0 to 1 or 1 if there is no job running
+     */
+    public float getProgress() {
+        if (this.job == null) {
+            return 1f;
+        }
+        return this.job.getProgress();
+    }
+
+    public long getFrameBudget() {
+        return frameBudget;
+    }
+
+    /**
+     * Sets how much time a bake job may use per frame.
+     *
+     * @param frameBudget the budget in nanoseconds
+     */
+    public void setFrameBudget(long frameBudget) {
+        if (frameBudget <= 0) {
+            throw new IllegalArgumentException("Frame budget must be positive: " + frameBudget);
+        }
+        this.frameBudget = frameBudget;
+    }
+
+    public BakeWorker getWorker() {
+        return worker;
+    }
+
+    /**
+     * Sets the worker used by the next jobs, a running job keeps running
+     * where it was started.
+     * <p>
+     * The scheduler owns the worker, the replaced worker is deleted, right
+     * away if it is idle or once the job running on it is done.
+     *
+     * @param worker the worker or null to bake in slices on the render thread
+     */
+    public void setWorker(BakeWorker worker) {
+        if (this.worker != null && this.worker != worker && this.worker != this.jobWorker) {
+            this.worker.delete();
+        }
+        this.worker = worker;
+    }
+
+    public RadiosityBaker getRadiosity() {
+        return radiosity;
+    }
+
+    /**
+     * Sets the bounce pass run after every bake, removing it uploads the
+     * direct lightmaps back.
+     *
+     * @param radiosity the radiosity baker or null to disable bounces
+     */
+    public void setRadiosity(RadiosityBaker radiosity) {
+        if (this.radiosity != null) {
+            this.radiosity.restore(this.cubes);
+        }
+        this.radiosity = radiosity;
+        if (this.radiosity != null && this.baked && this.job == null) {
+            this.radiosity.bounce(this.cubes, Collections.emptySet());
+        }
+    }
+
+    public boolean isBouncing() {
+        return this.radiosity != null && this.radiosity.isRunning();
+    }
+
+    public AmbientOcclusionBaker getAmbientOcclusion() {
+        return ambientOcclusion;
+    }
+
+    /**
+     * Sets the ambient occlusion baker, it only runs while no lightmap is
+     * being baked, removing it clears the ambient occlusion of every cube.
+     *
+     * @param ambientOcclusion the ambient occlusion baker or null to disable
+     * ambient occlusion
+     */
+    public void setAmbientOcclusion(AmbientOcclusionBaker ambientOcclusion) {
+        if (this.ambientOcclusion != null) {
+            this.ambientOcclusion.restore(this.cubes);
+        }
+        this.ambientOcclusion = ambientOcclusion;
+        if (this.ambientOcclusion != null) {
+            this.ambientOcclusion.requestFullBake();
+        }
+    }
+
+    public boolean isLayered() {
+        return layered;
+    }
+
+    public void setLayered(boolean layered) {
+        if (this.layered == layered) {
+            return;
+        }
+        this.layered = layered;
+        if (this.baked) {
+            requestFullBake();
+        }
+    }
+
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    /**
+     * Enables coarse to fine baking, it is not used in layered mode and the
+     * contribution cache is bypassed, as every level rebakes whole cubes.
+     *
+     * @param progressive true to enable
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    private boolean isRefining() {
+        return this.progressive && !this.layered;
+    }
+
+    public boolean isClustered() {
+        return clustered;
+    }
+
+    public void setClustered(boolean clustered) {
+        if (this.clustered == clustered) {
+            return;
+        }
+        this.clustered = clustered;
+        if (this.baked) {
+            requestFullBake();
+        }
+    }
+
+    private boolean isClustering() {
+        return this.clustered && !this.layered;
+    }
+
+    /**
+     * Returns the number of point and spot lights in the last clustered bake.
+     *
+     * @return the number of lights
+     */
+    public int getClusterLights() {
+        return clusterLights;
+    }
+
+    /**
+     * Returns the average number of clusters a cube was baked with in the
+     * last clustered bake.
+     *
+     * @return the average cut size
+     */
+    public float getAverageCutSize() {
+        if (this.clusterReceivers == 0) {
+            return 0f;
+        }
+        return this.clusterCuts / ((float) this.clusterReceivers);
+    }
+
+    /**
+     * Returns the number of shadow maps rendered in the last clustered bake.
+     *
+     * @return the number of representatives
+     */
+    public int getClusterRepresentatives() {
+        return clusterRepresentatives;
+    }
+
+    public LightmapCache getCache() {
+        return cache;
+    }
+
+    public void setCache(LightmapCache cache) {
+        this.cache = cache;
+    }
+
+    public ContributionCache getContributionCache() {
+        return contributions;
+    }
+
+    /**
+     * Sets the contribution cache, the replaced cache is cleared, but only
+     * after the running job is done, as its steps may still use the textures
+     * of the cache.
+     *
+     * @param contributions the contribution cache or null
+     */
+    public void setContributionCache(ContributionCache contributions) {
+        if (this.contributions != null && this.contributions != contributions) {
+            if (this.job != null) {
+                this.retiredContributions.add(this.contributions);
+            } else {
+                this.contributions.clear();
+            }
+        }
+        this.contributions = contributions;
+    }
+
+    public CubeTree getCubeTree() {
+        return tree;
+    }
+
+    /**
+     * Sets a tree with the same cubes as the cube list, it is used to only
+     * visit the cubes in range of a light.
+     *
+     * @param tree the cube tree or null
+     */
+    public void setCubeTree(CubeTree tree) {
+        this.tree = tree;
+    }
+
+    private List<Cube> candidates(Light light) {
+        float range = light.getRange();
+        if (this.tree == null || Float.isInfinite(range)) {
+            return this.cubes;
+        }
+        List<Cube> found = new ArrayList<>();
+        //the ambient term of a spot light is added outside of its cone too
+        if (light instanceof SpotLight spot && !hasAmbient(spot)) {
+            return this.tree.queryCone(
+                    spot.getPosition(),
+                    spot.getDirection(),
+                    (float) Math.toRadians(spot.getOuterCutOff()),
+                    range,
+                    found
+            );
+        }
+        return this.tree.querySphere(light.getPosition(), range, found);
+    }
+
+    private static boolean hasAmbient(Light light) {
+        Vector3fc ambient = light.getAmbientColor();
+        return ambient.x() > 0f || ambient.y() > 0f || ambient.z() > 0f;
+    }
+
+    private float getBakedRange(Light light) {
+        Float range = this.bakedRanges.get(light);
+        if (range == null) {
+            return light.getRange();
+        }
+        return range;
+    }
+
+    /**
+     * Returns the cubes a light may have touched at its last bake or may
+     * touch now, the range of a light grows and shrinks with its brightness.
+     *
+     * @param light the light
+     * @return the cubes touched by the light before or after the change
+     */
+    private List<Cube> changedCandidates(Light light) {
+        float bakedRange = getBakedRange(light);
+        float range = Math.max(bakedRange, light.getRange());
+        //the cone is not used, the ambient color the light was baked with may differ
+        List<Cube> nearby = this.cubes;
+        if (this.tree != null && !Float.isInfinite(range)) {
+            nearby = this.tree.querySphere(light.getPosition(), range, new ArrayList<>());
+        }
+        List<Cube> found = new ArrayList<>();
+        for (Cube c : nearby) {
+            if (LightBounds.affects(light, c)
+                    || LightRange.inRange(light.getPosition(), bakedRange, c.getCenter(), c.getRadius())) {
+                found.add(c);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Runs a change to the lights or to the shadow filter between two steps
+     * of the running job, as a job running on a worker reads them while its
+     * steps run.
+     *
+     * @param change the change
+     */
+    public void edit(Runnable change) {
+        if (this.job != null && this.job.isAsync()) {
+            this.job.runBetweenSteps(change);
+        } else {
+            change.run();
+        }
+    }
+
+    public boolean loadCache() {
+        if (this.cache == null || this.layered) {
+            return false;
+        }
+        if (this.cache.load(this.cubes, this.lights, isClustering())) {
+            this.baked = true;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean hasPendingWork() {
+        return this.fullBakeRequested
+                || !this.dirtyCubes.isEmpty()
+                || !this.dirtyLayers.isEmpty()
+                || !this.addedLights.isEmpty()
+                || !this.removedLights.isEmpty()
+                || !this.changedLights.isEmpty();
+    }
+
+    public void requestFullBake() {
+        this.fullBakeRequested = true;
+    }
+
+    private void markDirty(Cube cube, Light light) {
+        if (this.layered) {
+            this.dirtyLayers.computeIfAbsent(cube, (k) -> new LinkedHashSet<>()).add(light);
+        } else {
+            this.dirtyCubes.add(cube);
+        }
+    }
+
+    private void markShadowed(Cube occluder) {
+        for (Light l : this.lights) {
+            if (!l.isEnabled() || !LightBounds.affects(l, occluder)) {
+                continue;
+            }
+            for (Cube c : candidates(l)) {
+                if (c == occluder || this.dirtyCubes.contains(c)) {
+                    continue;
+                }
+                if (LightBounds.affects(l, c) && LightBounds.shadows(l, occluder, c)) {
+                    markDirty(c, l);
+                }
+            }
+        }
+    }
+
+    public void cubeAdded(Cube cube) {
+        if (this.ambientOcclusion != null) {
+            this.ambientOcclusion.cubeAdded(cube);
+        }
+        if (!this.baked) {
+            return;
+        }
+        this.dirtyCubes.add(cube);
+        markShadowed(cube);
+    }
+
+    public void cubeRemoved(Cube cube) {
+        if (this.job != null) {
+            this.job.cubeRemoved(cube);
+        }
+        if (this.radiosity != null) {
+            this.radiosity.cubeRemoved(cube);
+        }
+        if (this.ambientOcclusion != null) {
+            this.ambientOcclusion.cubeRemoved(cube);
+        }
+        if (!this.baked) {
+            return;
+        }
+        this.dirtyCubes.remove(cube);
+        this.dirtyLayers.remove(cube);
+        markShadowed(cube);
+    }
+
+    public void lightAdded(Light light) {
+        if (!this.baked) {
+            return;
+        }
+        this.removedLights.remove(light);
+        this.addedLights.add(light);
+    }
+
+    public void lightRemoved(Light light) {
+        if (!this.baked) {
+            return;
+        }
+        this.changedLights.remove(light);
+        if (this.addedLights.remove(light)) {
+            return;
+        }
+        if (this.layered) {
+            this.removedLights.add(light);
+            return;
+        }
+        this.dirtyCubes.addAll(changedCandidates(light));
+    }
+
+    public void lightChanged(Light light) {
+        if (!this.baked || this.addedLights.contains(light)) {
+            return;
+        }
+        if (this.layered) {
+            this.changedLights.add(light);
+            return;
+        }
+        this.dirtyCubes.addAll(changedCandidates(light));
+    }
+
+    private void fullBake() {
+        this.fullBounce = true;
+        this.bakedInClusters = false;
+        if (loadCache()) {
+            for (Cube c : this.cubes) {
+                c.clearLightmapLayers();
+            }
+            return;
+        }
+        
+        if (isRefining()) {
+            for (Cube c : this.cubes) {
+                c.clearLightmapLayers();
+            }
+            refineBake(new LinkedHashSet<>(this.cubes));
+            if (this.cache != null) {
+                saveCache();
+            }
+            return;
+        }
+        
+        for (Cube c : this.cubes) {
+            c.clearLightmapLayers();
+            this.job.add(c, c::clearLightmap);
+        }
+        
+        Map<Light, List<Cube>> work = new LinkedHashMap<>();
+        for (Light l : this.lights) {
+            if (!l.isEnabled()) {
+                continue;
+            }
+            //a full bake is only gated by range, the cone of a spot light is left to the shaders
+            List<Cube> targets = new ArrayList<>();
+            for (Cube c : candidates(l)) {
+                if (LightRange.inRange(l, c)) {
+                    targets.add(c);
+                }
+            }
+            if (!targets.isEmpty()) {
+                work.put(l, targets);
+            }
+        }
+        bake(work);
+        
+        if (this.layered) {
+            for (Cube c : this.cubes) {
+                this.job.add(c, c::compositeLightmapLayers);
+            }
+        } else if (this.cache != null) {
+            saveCache();
+        }
+    }
+    
+    private void saveCache() {
+        LightmapCache saveCache = this.cache;
+        List<Cube> saveCubes = new ArrayList<>(this.cubes);
+        List<Light> saveLights = new ArrayList<>(this.lights);
+        //a progressive bake only uses clusters when it can not be refined
+        boolean saveClustered = this.bakedInClusters;
+        this.job.add(() -> saveCache.save(saveCubes, saveLights, saveClustered));
+    }
+
+    private void incrementalBake() {
+        if (isRefining()) {
+            Set<Cube> targets = new LinkedHashSet<>(this.dirtyCubes);
+            for (Light l : this.addedLights) {
+                if (!l.isEnabled()) {
+                    continue;
+                }
+                for (Cube c : candidates(l)) {
+                    if (LightBounds.affects(l, c)) {
+                        targets.add(c);
+                    }
+                }
+            }
+            refineBake(targets);
+            return;
+        }
+        
+        if (isClustering()) {
+            //a new light changes the clusters of every cube it reaches
+            for (Light l : this.addedLights) {
+                if (!l.isEnabled()) {
+                    continue;
+                }
+                for (Cube c : candidates(l)) {
+                    if (LightBounds.affects(l, c)) {
+                        this.dirtyCubes.add(c);
+                    }
+                }
+            }
+            this.addedLights.clear();
+        }
+        
+        for (Cube c : this.cubes) {
+            if (this.dirtyCubes.contains(c)) {
+                this.job.add(c, c::clearLightmap);
+            }
+        }
+
+        Map<Light, List<Cube>> work = new LinkedHashMap<>();
+        for (Light l : this.lights) {
+            if (!l.isEnabled()) {
+                continue;
+            }
+            boolean added = this.addedLights.contains(l);
+
+            List<Cube> targets = new ArrayList<>();
+            for (Cube c : candidates(l)) {
+                if ((added || this.dirtyCubes.contains(c)) && LightBounds.affects(l, c)) {
+                    targets.add(c);
+                }
+            }
+            if (!targets.isEmpty()) {
+                work.put(l, targets);
+            }
+        }
+        bake(work);
+    }
+
+    private void refineBake(Set<Cube> targets) {
+        Map<Light, List<Cube>> work = new LinkedHashMap<>();
+        List<Light> batchLights = new ArrayList<>();
+        int ownShadowMaps = 0;
+        boolean sky = false;
+        for (Light l : this.lights) {
+            if (!l.isEnabled()) {
+                continue;
+            }
+            List<Cube> lightTargets = new ArrayList<>();
+            for (Cube c : candidates(l)) {
+                if (targets.contains(c) && LightBounds.affects(l, c)) {
+                    lightTargets.add(c);
+                }
+            }
+            if (lightTargets.isEmpty()) {
+                continue;
+            }
+            work.put(l, lightTargets);
+            if (l instanceof SkyLight) {
+                sky = true;
+            }
+            if (l.getShadowAtlasTiles() <= 0) {
+                ownShadowMaps++;
+                batchLights.add(0, l);
+            } else {
+                batchLights.add(l);
+            }
+        }
+        
+        List<DirectionalLight.ShadowTile> sunTiles = null;
+        if (ownShadowMaps == 1 && batchLights.get(0) instanceof DirectionalLight sun) {
+            sunTiles = sun.fitShadowTiles(work.get(sun), candidates(sun));
+        }
+        
+        //lights with their own shadow map share it, so only one can be baked at a time
+        //and the sky can not be refined
+        if (sky || ownShadowMaps > 1 || (sunTiles != null && sunTiles.size() > 1)) {
+            for (Cube c : targets) {
+                this.job.add(c, c::clearLightmap);
+            }
+            bake(work);
+            return;
+        }
+        
+        packShadowAtlas(this.lights);
+        for (Light l : batchLights) {
+            if (l instanceof DirectionalLight sun && sunTiles != null) {
+                renderShadowTile(sun, sunTiles.get(0), candidates(sun));
+            } else {
+                renderShadowMap(l);
+            }
+        }
+        
+        List<List<Light>> batches = new ArrayList<>();
+        for (int start = 0; start < batchLights.size(); start += BakeLightsUBO.MAX_LIGHTS) {
+            batches.add(new ArrayList<>(batchLights.subList(start, Math.min(start + BakeLightsUBO.MAX_LIGHTS, batchLights.size()))));
+        }
+        Map<Cube, int[]> masks = new LinkedHashMap<>();
+        for (Cube c : targets) {
+            masks.put(c, new int[batches.size()]);
+        }
+        for (int b = 0; b < batches.size(); b++) {
+            List<Light> batch = batches.get(b);
+            for (int i = 0; i < batch.size(); i++) {
+                for (Cube c : work.get(batch.get(i))) {
+                    masks.get(c)[b] |= 1 << i;
+                }
+            }
+        }
+        
+        int[] uploaded = {-1};
+        for (int divisor : LightmapRefiner.LEVELS) {
+            for (Map.Entry<Cube, int[]> e : masks.entrySet()) {
+                Cube c = e.getKey();
+                int[] cubeMasks = e.getValue();
+                this.job.add(c, () -> {
+                    LightmapRefiner.begin(c, divisor);
+                    for (int b = 0; b < cubeMasks.length; b++) {
+                        if (cubeMasks[b] == 0) {
+                            continue;
+                        }
+                        if (uploaded[0] != b) {
+                            BakeLightsProgram.uploadBatch(batches.get(b));
+                            uploaded[0] = b;
+                        }
+                        LightmapRefiner.draw(c, divisor, cubeMasks[b]);
+                    }
+                    LightmapRefiner.end(c, divisor);
+                });
+            }
+        }
+    }
+
+    private void packShadowAtlas(Collection<Light> lightsToPack) {
+        List<Light> packLights = new ArrayList<>(lightsToPack);
+        float[] importance = new float[packLights.size()];
+        for (int i = 0; i < importance.length; i++) {
+            Light l = packLights.get(i);
+            if (!l.isEnabled() || l.getShadowAtlasTiles() <= 0) {
+                continue;
+            }
+            int affected = 0;
+            for (Cube c : candidates(l)) {
+                if (LightBounds.affects(l, c)) {
+                    affected++;
+                }
+            }
+            Vector3fc diffuse = l.getDiffuseColor();
+            importance[i] = Math.max(diffuse.x(), Math.max(diffuse.y(), diffuse.z())) * affected;
+        }
+        this.job.add(() -> ShadowAtlas.pack(packLights, importance));
+    }
+
+    private void renderShadowMap(Light light) {
+        BakeJob shadowJob = this.job;
+        List<Cube> casters = new ArrayList<>(candidates(light));
+        this.job.add(() -> light.renderShadowMap(shadowJob.filterRemoved(casters)));
+    }
+    
+    private void renderShadowTile(DirectionalLight sun, DirectionalLight.ShadowTile tile, List<Cube> candidates) {
+        BakeJob shadowJob = this.job;
+        List<Cube> casters = new ArrayList<>(candidates);
+        this.job.add(() -> {
+            sun.setShadowTile(tile);
+            sun.renderShadowMap(shadowJob.filterRemoved(casters));
+        });
+    }
+
+    private void bake(Map<Light, List<Cube>> work) {
+        Vector3fc one = new Vector3f(1f);
+        
+        Map<Light, List<Cube>> misses = new LinkedHashMap<>();
+        for (Map.Entry<Light, List<Cube>> e : work.entrySet()) {
+            Light light = e.getKey();
+            if (this.layered || this.contributions == null || isClustering()) {
+                misses.put(light, e.getValue());
+                continue;
+            }
+            
+            ContributionCache.Occluders occluders = ContributionCache.occluders(light, candidates(light));
+            List<Cube> lightMisses = new ArrayList<>();
+            for (Cube c : e.getValue()) {
+                if (!LightBounds.affects(light, c)) {
+                    continue;
+                }
+                long key = ContributionCache.key(occluders, c);
+                int contribution = this.contributions.get(key);
+                if (contribution != 0) {
+                    this.job.add(c, () -> c.addLightmapLayer(contribution, one));
+                } else {
+                    lightMisses.add(c);
+                }
+            }
+            if (!lightMisses.isEmpty()) {
+                misses.put(light, lightMisses);
+            }
+        }
+        if (misses.isEmpty()) {
+            return;
+        }
+        
+        //every light in the shadow atlas has its shadow maps rendered first
+        Map<Light, List<Cube>> atlasMisses = new LinkedHashMap<>();
+        for (Map.Entry<Light, List<Cube>> e : misses.entrySet()) {
+            if (e.getKey().getShadowAtlasTiles() > 0) {
+                atlasMisses.put(e.getKey(), e.getValue());
+            }
+        }
+        if (isClustering()) {
+            clusteredBake(atlasMisses);
+        } else if (isBatched()) {
+            packShadowAtlas(this.lights);
+            for (Light l : atlasMisses.keySet()) {
+                renderShadowMap(l);
+            }
+            updateLightmapsBatched(atlasMisses);
+        } else {
+            packShadowAtlas(this.lights);
+            for (Map.Entry<Light, List<Cube>> e : atlasMisses.entrySet()) {
+                renderShadowMap(e.getKey());
+                updateLightmaps(e.getKey(), e.getValue(), one);
+            }
+        }
+        
+        //lights with their own shadow map, the sun is baked one tile at a time
+        for (Map.Entry<Light, List<Cube>> e : misses.entrySet()) {
+            Light light = e.getKey();
+            if (light.getShadowAtlasTiles() > 0) {
+                continue;
+            }
+            if (light instanceof DirectionalLight sun) {
+                List<Cube> sunCandidates = candidates(sun);
+                for (DirectionalLight.ShadowTile tile : sun.fitShadowTiles(e.getValue(), sunCandidates)) {
+                    renderShadowTile(sun, tile, sunCandidates);
+                    updateOwnShadowMapLightmaps(sun, tile.getReceivers(), one);
+                }
+            } else {
+                renderShadowMap(light);
+                updateOwnShadowMapLightmaps(light, e.getValue(), one);
+            }
+        }
+    }
+    
+    private void updateOwnShadowMapLightmaps(Light light, List<Cube> targets, Vector3fc one) {
+        //the sky is not part of the light batches, it already bakes in a single draw
+        if (isBatched() && !(light instanceof SkyLight)) {
+            updateLightmapsBatched(Map.of(light, targets));
+        } else {
+            updateLightmaps(light, targets, one);
+        }
+    }
+    
+    private boolean isBatched() {
+        return !this.layered && this.contributions == null;
+    }
+    
+    private void clusteredBake(Map<Light, List<Cube>> work) {
+        this.bakedInClusters = true;
+        LightTree lightTree = new LightTree(new ArrayList<>(work.keySet()));
+        Set<Cube> receivers = new LinkedHashSet<>();
+        for (List<Cube> targets : work.values()) {
+            receivers.addAll(targets);
+        }
+        
+        Map<Cube, List<LightTree.Node>> cuts = new LinkedHashMap<>();
+        Set<LightTree.Node> nodes = new LinkedHashSet<>();
+        Set<Light> representatives = new LinkedHashSet<>();
+        int cutSizes = 0;
+        for (Cube c : receivers) {
+            List<LightTree.Node> cut = lightTree.cut(c, LightTree.DEFAULT_ERROR_RATIO, LightTree.DEFAULT_MAX_CUT, new ArrayList<>());
+            cuts.put(c, cut);
+            nodes.addAll(cut);
+            cutSizes += cut.size();
+        }
+        
+        //nodes close in the tree are close in space, so batches share receivers
+        List<LightTree.Node> sorted = new ArrayList<>(nodes);
+        sorted.sort(Comparator.comparingInt(LightTree.Node::getOrder));
+        for (LightTree.Node n : sorted) {
+            representatives.add(n.getRepresentative());
+        }
+        
+        //only the representatives take space in the shadow atlas
+        packShadowAtlas(representatives);
+        for (Light l : representatives) {
+            renderShadowMap(l);
+        }
+        
+        this.clusterLights = lightTree.getNumberOfLights();
+        this.clusterReceivers = receivers.size();
+        this.clusterCuts = cutSizes;
+        this.clusterRepresentatives = representatives.size();
+        
+        Map<LightTree.Node, Integer> indices = new HashMap<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            indices.put(sorted.get(i), i);
+        }
+        for (int start = 0; start < sorted.size(); start += BakeLightsUBO.MAX_LIGHTS) {
+            int end = Math.min(start + BakeLightsUBO.MAX_LIGHTS, sorted.size());
+            List<Light> batch = new ArrayList<>();
+            Vector3fc[] diffuse = new Vector3fc[end - start];
+            Vector3fc[] ambient = new Vector3fc[end - start];
+            float[] ranges = new float[end - start];
+            for (int i = start; i < end; i++) {
+                LightTree.Node n = sorted.get(i);
+                batch.add(n.getRepresentative());
+                diffuse[i - start] = new Vector3f(n.getDiffuse());
+                ambient[i - start] = new Vector3f(n.getAmbient());
+                ranges[i - start] = n.getRange();
+            }
+            this.job.add(() -> BakeLightsProgram.uploadBatch(batch, diffuse, ambient, ranges));
+            
+            for (Map.Entry<Cube, List<LightTree.Node>> e : cuts.entrySet()) {
+                int mask = 0;
+                for (LightTree.Node n : e.getValue()) {
+                    int index = indices.get(n);
+                    if (index >= start && index < end) {
+                        mask |= 1 << (index - start);
+                    }
+                }
+                if (mask != 0) {
+                    Cube c = e.getKey();
+                    int cubeMask = mask;
+                    this.job.add(c, () -> c.updateLightmap(cubeMask));
+                }
+            }
+        }
+    }
+    
+    private void updateLightmapsBatched(Map<Light, List<Cube>> work) {
+        List<Light> workLights = new ArrayList<>(work.keySet());
+        for (int start = 0; start < workLights.size(); start += BakeLightsUBO.MAX_LIGHTS) {
+            List<Light> batch = new ArrayList<>(workLights.subList(start, Math.min(start + BakeLightsUBO.MAX_LIGHTS, workLights.size())));
+            this.job.add(() -> BakeLightsProgram.uploadBatch(batch));
+            
+            Map<Cube, Integer> masks = new LinkedHashMap<>();
+            for (int i = 0; i < batch.size(); i++) {
+                int bit = 1 << i;
+                for (Cube c : work.get(batch.get(i))) {
+                    masks.merge(c, bit, (a, b) -> a | b);
+                }
+            }
+            for (Map.Entry<Cube, Integer> e : masks.entrySet()) {
+                Cube c = e.getKey();
+                int mask = e.getValue();
+                this.job.add(c, () -> c.updateLightmap(mask));
+            }
+        }
+    }
+
+    private void updateLightmaps(Light light, List<Cube> targets, Vector3fc one) {
+        ContributionCache contributionCache = this.contributions;
+        ContributionCache.Occluders occluders = null;
+        if (!this.layered && contributionCache != null) {
+            occluders = ContributionCache.occluders(light, candidates(light));
+        }
+        for (Cube c : targets) {
+            if (this.layered) {
+                this.job.add(c, () -> c.updateLightmapLayer(light));
+            } else if (contributionCache != null) {
+                long key = ContributionCache.key(occluders, c);
+                this.job.add(c, () -> {
+                    int contribution = contributionCache.bake(key, light, c);
+                    c.addLightmapLayer(contribution, one);
+                });
+            } else {
+                this.job.add(c, () -> c.updateLightmap(light));
+            }
+        }
+    }
+
+    private void layeredBake() {
+        Set<Cube> composite = new LinkedHashSet<>(this.dirtyCubes);
+
+        for (Light l : this.removedLights) {
+            for (Cube c : this.cubes) {
+                if (c.removeLightmapLayer(l)) {
+                    composite.add(c);
+                }
+            }
+        }
+
+        Map<Light, List<Cube>> work = new LinkedHashMap<>();
+        for (Light l : this.lights) {
+            if (!l.isEnabled()) {
+                continue;
+            }
+            boolean added = this.addedLights.contains(l);
+            boolean changed = this.changedLights.contains(l);
+            //the window of the attenuation moves with the range, so the layers can not be scaled
+            boolean resized = changed && getBakedRange(l) != l.getRange();
+
+            if (resized) {
+                for (Cube c : this.cubes) {
+                    if (!LightBounds.affects(l, c) && c.removeLightmapLayer(l)) {
+                        composite.add(c);
+                    }
+                }
+            }
+
+            List<Cube> targets = new ArrayList<>();
+            for (Cube c : candidates(l)) {
+                if (!LightBounds.affects(l, c)) {
+                    continue;
+                }
+                //a recolor that lights a channel baked at zero can not be composited
+                if (added
+                        || resized
+                        || this.dirtyCubes.contains(c)
+                        || this.dirtyLayers.getOrDefault(c, Collections.emptySet()).contains(l)
+                        || (changed && c.hasLightmapLayer(l) && !c.isLightmapLayerScalable(l))) {
+                    targets.add(c);
+                }
+            }
+            if (!targets.isEmpty()) {
+                work.put(l, targets);
+                composite.addAll(targets);
+            }
+        }
+        bake(work);
+
+        for (Light l : this.changedLights) {
+            for (Cube c : this.cubes) {
+                if (c.hasLightmapLayer(l)) {
+                    composite.add(c);
+                }
+            }
+        }
+
+        for (Cube c : this.cubes) {
+            if (composite.contains(c)) {
+                this.job.add(c, c::compositeLightmapLayers);
+            }
+        }
+    }
+
+    private void runJob() {
+        if (this.job.isAsync()) {
+            this.jobWorker.update();
+        } else {
+            this.job.run(this.frameBudget);
+        }
+        if (this.job.isDone()) {
+            BakeJob done = this.job;
+            this.job = null;
+            if (this.jobWorker != null && this.jobWorker != this.worker) {
+                this.jobWorker.delete();
+            }
+            this.jobWorker = null;
+            if (done.isAsync()) {
+                LightmapAtlas.setLocked(false);
+            }
+            for (ContributionCache retired : this.retiredContributions) {
+                retired.clear();
+            }
+            this.retiredContributions.clear();
+            if (this.radiosity != null && !done.isCancelled()) {
+                this.radiosity.bounce(this.cubes, (this.fullBounce ? new LinkedHashSet<>(this.cubes) : done.getCubes()));
+                this.fullBounce = false;
+            }
+        }
+    }
+
+    /**
+     * Runs a slice of the current bake job or starts a new job if there is
+     * pending work, a full bake request cancels the current job.
+     * <p>
+     * A job cancelled on a worker is waited for before the next job starts,
+     * so two jobs never write to the same lightmaps at once. Ambient occlusion
+     * is only updated while there is no lightmap work.
+     */
+    public void update() {
+        if (this.radiosity != null) {
+            this.radiosity.update(this.cubes);
+        }
+        if (this.ambientOcclusion != null && this.job == null && !hasPendingWork()) {
+            this.ambientOcclusion.update(this.cubes, this.frameBudget);
+        }
+        
+        if (this.job != null) {
+            if (this.fullBakeRequested && !this.job.isCancelled()) {
+                this.job.cancel();
+            }
+            runJob();
+            if (this.job != null || !this.fullBakeRequested) {
+                return;
+            }
+        }
+        
+        if (this.fullBakeRequested) {
+            this.job = new BakeJob();
+            fullBake();
+            this.baked = true;
+        } else if (this.baked && hasPendingWork()) {
+            this.job = new BakeJob();
+            if (this.layered) {
+                layeredBake();
+            } else {
+                incrementalBake();
+            }
+        }
+        this.fullBakeRequested = false;
+        this.dirtyCubes.clear();
+        this.dirtyLayers.clear();
+        this.addedLights.clear();
+        this.removedLights.clear();
+        this.changedLights.clear();
+        
+        if (this.job != null) {
+            this.bakedRanges.clear();
+            for (Light l : this.lights) {
+                this.bakedRanges.put(l, l.getRange());
+            }
+            if (this.radiosity != null) {
+                this.radiosity.cancel();
+            }
+            if (this.worker != null) {
+                this.jobWorker = this.worker;
+                //the worker writes the lightmaps on its own context until the job is done
+                LightmapAtlas.setLocked(true);
+                this.jobWorker.submit(this.job);
+            }
+            runJob();
+        }
+    }
+
+    /**
+     * Cancels the running job and deletes the workers, it must be called on
+     * the render thread before the window is destroyed.
+     */
+    public void delete() {
+        if (this.job != null) {
+            this.job.cancel();
+            if (this.jobWorker != null && this.jobWorker != this.worker) {
+                this.jobWorker.delete();
+            }
+            this.job = null;
+            this.jobWorker = null;
+        }
+        if (this.worker != null) {
+            this.worker.delete();
+            this.worker = null;
+        }
+    }
+
+}
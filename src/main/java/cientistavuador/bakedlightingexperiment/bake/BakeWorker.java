@@ -0,0 +1,207 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.Main;
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import static org.lwjgl.glfw.GLFW.*;
+import org.lwjgl.opengl.GL;
+import static org.lwjgl.opengl.GL33C.*;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * Runs bake jobs on a thread with its own hidden context, shared with the
+ * context of the window, so heavy bakes overlap with rendering.
+ * <p>
+ * Textures and buffers are shared, framebuffers and vertex arrays are not, so
+ * everything a job uses is created again on the worker context the first time
+ * it is used there, and deleted on the worker context as well, at the latest
+ * when the worker stops.
+ * <p>
+ * The worker places a fence every few steps and after the last step of a job,
+ * the render thread polls those fences in {@link #update()} and only considers
+ * a job done after its last fence is signaled, so the lightmaps it sees were
+ * fully written.
+ *
+ * @author Cien
+ */
+public class BakeWorker {
+
+    public static final int STEPS_PER_FENCE = 64;
+
+    private static class Handoff {
+
+        private final long fence;
+        private final BakeJob job;
+        private final boolean last;
+
+        public Handoff(long fence, BakeJob job, boolean last) {
+            this.fence = fence;
+            this.job = job;
+            this.last = last;
+        }
+    }
+
+    private final long window;
+    private final Thread thread;
+    private final BlockingQueue<BakeJob> jobs = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<Handoff> handoffs = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * Creates the worker context and starts the worker thread, it must be
+     * called on the main thread.
+     */
+    public BakeWorker() {
+        glfwDefaultWindowHints();
+        glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 3);
+        glfwWindowHint(GLFW_OPENGL_PROFILE, GLFW_OPENGL_CORE_PROFILE);
+        glfwWindowHint(GLFW_OPENGL_FORWARD_COMPAT, GL_TRUE);
+        this.window = glfwCreateWindow(1, 1, "Bake Worker", NULL, Main.WINDOW_POINTER);
+        glfwDefaultWindowHints();
+        if (this.window == NULL) {
+            throw new IllegalStateException("Could not create the bake worker context!");
+        }
+
+        this.thread = new Thread(this::loop, "Bake Worker");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void loop() {
+        glfwMakeContextCurrent(this.window);
+        GL.createCapabilities();
+        Main.setDefaultState();
+
+        try {
+            while (this.running) {
+                ContextObject.deletePending();
+                BakeJob job = this.jobs.take();
+                ContextObject.deletePending();
+
+                int steps = 0;
+                while (true) {
+                    try {
+                        if (!job.runNext()) {
+                            break;
+                        }
+                    } catch (Throwable t) {
+                        t.printStackTrace(System.err);
+                        job.cancel();
+                        break;
+                    }
+                    steps++;
+                    if (steps % STEPS_PER_FENCE == 0) {
+                        handoff(job, false);
+                    }
+                }
+                handoff(job, true);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ContextObject.releaseContext();
+            glfwMakeContextCurrent(NULL);
+            GL.setCapabilities(null);
+        }
+    }
+
+    private void handoff(BakeJob job, boolean last) {
+        long fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        glFlush();
+        this.handoffs.add(new Handoff(fence, job, last));
+    }
+
+    /**
+     * Queues a job to run on the worker, the job must not be run by the
+     * render thread anymore.
+     *
+     * @param job the job
+     */
+    public void submit(BakeJob job) {
+        if (!this.running) {
+            throw new IllegalStateException("Bake worker was deleted.");
+        }
+        job.setAsync();
+        this.jobs.add(job);
+    }
+
+    /**
+     * Polls the fences placed by the worker without waiting and finishes the
+     * jobs whose last fence was signaled, it must be called on the render
+     * thread.
+     */
+    public void update() {
+        Handoff handoff;
+        while ((handoff = this.handoffs.peek()) != null) {
+            int status = glClientWaitSync(handoff.fence, 0, 0);
+            if (status == GL_TIMEOUT_EXPIRED) {
+                break;
+            }
+            glDeleteSync(handoff.fence);
+            this.handoffs.poll();
+            if (handoff.last) {
+                handoff.job.finish();
+            }
+        }
+    }
+
+    /**
+     * Stops the worker thread and destroys its context, queued jobs are
+     * cancelled and the running job must be cancelled first or this waits for
+     * it.
+     */
+    public void delete() {
+        this.running = false;
+        List<BakeJob> dropped = new ArrayList<>();
+        this.jobs.drainTo(dropped);
+        for (BakeJob job : dropped) {
+            job.cancel();
+            job.finish();
+        }
+        this.thread.interrupt();
+        try {
+            this.thread.join();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+        Handoff handoff;
+        while ((handoff = this.handoffs.poll()) != null) {
+            glDeleteSync(handoff.fence);
+            handoff.job.finish();
+        }
+        glfwDestroyWindow(this.window);
+    }
+
+}
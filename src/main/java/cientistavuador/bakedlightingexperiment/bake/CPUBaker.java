@@ -0,0 +1,446 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.CubeTexture;
+import cientistavuador.bakedlightingexperiment.cube.CubeVertices;
+import cientistavuador.bakedlightingexperiment.cube.VerticesStream;
+import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.LightRange;
+import cientistavuador.bakedlightingexperiment.cube.light.directional.DirectionalLight;
+import cientistavuador.bakedlightingexperiment.cube.light.point.PointLight;
+import cientistavuador.bakedlightingexperiment.cube.light.sky.SkyLight;
+import cientistavuador.bakedlightingexperiment.cube.light.spot.SpotLight;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import org.joml.Intersectionf;
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+/**
+ * Bakes lightmaps on the cpu using a fork join pool, no OpenGL context is
+ * required, the results can be uploaded with {@link Cube#uploadLightmap(float[])}
+ *
+ * @author Cien
+ */
+public class CPUBaker {
+
+    public static final int ROWS_PER_TASK = 16;
+    public static final float SHADOW_BIAS = 0.002f;
+
+    public static class Surface {
+
+        private final Matrix4f model = new Matrix4f();
+        private final Matrix3f normalModel = new Matrix3f();
+        private final int width;
+        private final int height;
+        private final float[] lightmap;
+
+        public Surface(Matrix4fc model, int width, int height) {
+            this.model.set(model);
+            this.normalModel.set(new Matrix4f(model).invert().transpose());
+            this.width = width;
+            this.height = height;
+            this.lightmap = new float[width * height * 3];
+        }
+
+        public static Surface of(Cube cube) {
+            return new Surface(cube.getModel(), cube.getLightmapWidth(), cube.getLightmapHeight());
+        }
+
+        public Matrix4fc getModel() {
+            return model;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public float[] getLightmap() {
+            return lightmap;
+        }
+
+    }
+
+    static class Occluder {
+
+        private final Matrix4f inverseModel = new Matrix4f();
+        private final Vector3f min = new Vector3f();
+        private final Vector3f max = new Vector3f();
+
+        public Occluder(Matrix4fc model) {
+            model.invert(this.inverseModel);
+            model.transformAab(-0.5f, -0.5f, -0.5f, 0.5f, 0.5f, 0.5f, this.min, this.max);
+        }
+
+        public boolean intersects(
+                Vector3f origin, Vector3f direction, float maxDistance,
+                Vector3f localOrigin, Vector3f localDirection, Vector2f result
+        ) {
+            if (!Intersectionf.intersectRayAab(origin, direction, this.min, this.max, result)
+                    || result.x() >= maxDistance) {
+                return false;
+            }
+
+            this.inverseModel.transformPosition(origin, localOrigin);
+            this.inverseModel.transformDirection(direction, localDirection);
+
+            return Intersectionf.intersectRayAab(
+                    localOrigin.x(), localOrigin.y(), localOrigin.z(),
+                    localDirection.x(), localDirection.y(), localDirection.z(),
+                    -0.5f, -0.5f, -0.5f,
+                    0.5f, 0.5f, 0.5f,
+                    result
+            ) && result.x() < maxDistance;
+        }
+
+        public boolean contains(Vector3f position, Vector3f localPosition) {
+            if (position.x() < this.min.x() || position.y() < this.min.y() || position.z() < this.min.z()
+                    || position.x() > this.max.x() || position.y() > this.max.y() || position.z() > this.max.z()) {
+                return false;
+            }
+
+            this.inverseModel.transformPosition(position, localPosition);
+
+            return Math.abs(localPosition.x()) <= 0.5f
+                    && Math.abs(localPosition.y()) <= 0.5f
+                    && Math.abs(localPosition.z()) <= 0.5f;
+        }
+    }
+
+    /**
+     * Receives the texels covered by a cube surface.
+     */
+    interface TexelVisitor {
+
+        /**
+         * @param x the texel x
+         * @param y the texel y
+         * @param face the face of the texel, from 0 to 5
+         * @param position the world position
+         * @param normal the world normal
+         * @param area the world area covered by one texel
+         */
+        public void visit(int x, int y, int face, Vector3f position, Vector3f normal, float area);
+    }
+
+    private static class Context {
+
+        private final Vector3f origin = new Vector3f();
+        private final Vector3f direction = new Vector3f();
+        private final Vector3f localOrigin = new Vector3f();
+        private final Vector3f localDirection = new Vector3f();
+        private final Vector2f result = new Vector2f();
+        private final Vector3f position = new Vector3f();
+        private final Vector3f normal = new Vector3f();
+        private final Vector3f color = new Vector3f();
+    }
+
+    private final ForkJoinPool pool;
+    private final Map<Long, VerticesStream> vertices = new ConcurrentHashMap<>();
+    private final int textureWidth;
+    private final int textureHeight;
+
+    public CPUBaker(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+        //read on the constructing thread, the cube texture is created on the first access
+        this.textureWidth = CubeTexture.TEXTURE_WIDTH;
+        this.textureHeight = CubeTexture.TEXTURE_HEIGHT;
+    }
+
+    public CPUBaker() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    ForkJoinPool getPool() {
+        return pool;
+    }
+
+    VerticesStream verticesOf(int width, int height) {
+        return this.vertices.computeIfAbsent(
+                (((long) width) << 32) | (height & 0xFFFFFFFFL),
+                (k) -> CubeVertices.generate(this.textureWidth, this.textureHeight, width, height)
+        );
+    }
+
+    public void bake(List<Surface> surfaces, List<Light> lights) {
+        List<Occluder> occluders = new ArrayList<>();
+        for (Surface s : surfaces) {
+            occluders.add(new Occluder(s.model));
+        }
+
+        List<Light> enabledLights = new ArrayList<>();
+        for (Light l : lights) {
+            if (l.isEnabled()) {
+                enabledLights.add(l);
+            }
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Surface s : surfaces) {
+            Arrays.fill(s.lightmap, 0f);
+
+            VerticesStream stream = verticesOf(s.width, s.height);
+            float[] streamVertices = stream.vertices();
+            int[] streamIndices = stream.indices();
+
+            for (int y = 0; y < s.height; y += ROWS_PER_TASK) {
+                int yStart = y;
+                int yEnd = Math.min(y + ROWS_PER_TASK, s.height);
+                tasks.add(() -> {
+                    bakeRows(s, streamVertices, streamIndices, yStart, yEnd, enabledLights, occluders);
+                    return null;
+                });
+            }
+        }
+
+        List<Future<Void>> results = this.pool.invokeAll(tasks);
+        for (Future<Void> f : results) {
+            try {
+                f.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    private static float edge(float ax, float ay, float bx, float by, float cx, float cy) {
+        return ((bx - ax) * (cy - ay)) - ((by - ay) * (cx - ax));
+    }
+
+    private void bakeRows(Surface s, float[] v, int[] indices, int yStart, int yEnd, List<Light> lights, List<Occluder> occluders) {
+        Context ctx = new Context();
+        rasterize(s, v, indices, yStart, yEnd, (x, y, face, position, normal, area) -> {
+            ctx.position.set(position);
+            ctx.normal.set(normal);
+
+            shade(ctx, lights, occluders);
+
+            int index = ((y * s.width) + x) * 3;
+            s.lightmap[index + 0] = ctx.color.x();
+            s.lightmap[index + 1] = ctx.color.y();
+            s.lightmap[index + 2] = ctx.color.z();
+        });
+    }
+
+    /**
+     * Visits every texel of the rows of a surface that is covered by a
+     * triangle of the cube.
+     *
+     * @param s the surface
+     * @param v the vertices of the surface
+     * @param indices the indices of the surface
+     * @param yStart the first row
+     * @param yEnd the last row (exclusive)
+     * @param visitor the texel visitor
+     */
+    static void rasterize(Surface s, float[] v, int[] indices, int yStart, int yEnd, TexelVisitor visitor) {
+        final int stride = Cube.VERTEX_SIZE_ELEMENTS;
+        final float epsilon = -1E-5f;
+        Vector3f position = new Vector3f();
+        Vector3f normal = new Vector3f();
+        Vector3f a = new Vector3f();
+        Vector3f b = new Vector3f();
+        Vector3f c = new Vector3f();
+
+        for (int i = 0; i < indices.length; i += 3) {
+            int i0 = indices[i + 0] * stride;
+            int i1 = indices[i + 1] * stride;
+            int i2 = indices[i + 2] * stride;
+
+            float x0 = ((v[i0 + 10] + 1f) * 0.5f) * s.width;
+            float y0 = ((v[i0 + 11] + 1f) * 0.5f) * s.height;
+            float x1 = ((v[i1 + 10] + 1f) * 0.5f) * s.width;
+            float y1 = ((v[i1 + 11] + 1f) * 0.5f) * s.height;
+            float x2 = ((v[i2 + 10] + 1f) * 0.5f) * s.width;
+            float y2 = ((v[i2 + 11] + 1f) * 0.5f) * s.height;
+
+            float area = edge(x0, y0, x1, y1, x2, y2);
+            if (Math.abs(area) < 1E-12f) {
+                continue;
+            }
+
+            s.model.transformPosition(v[i0 + 0], v[i0 + 1], v[i0 + 2], a);
+            s.model.transformPosition(v[i1 + 0], v[i1 + 1], v[i1 + 2], b);
+            s.model.transformPosition(v[i2 + 0], v[i2 + 1], v[i2 + 2], c);
+            b.sub(a);
+            c.sub(a);
+            float texelArea = (b.cross(c).length() * 0.5f) / (Math.abs(area) * 0.5f);
+
+            float lx = v[i0 + 3];
+            float ly = v[i0 + 4];
+            float lz = v[i0 + 5];
+            int face;
+            if (Math.abs(lx) >= Math.abs(ly) && Math.abs(lx) >= Math.abs(lz)) {
+                face = (lx > 0f ? 0 : 1);
+            } else if (Math.abs(ly) >= Math.abs(lz)) {
+                face = (ly > 0f ? 2 : 3);
+            } else {
+                face = (lz > 0f ? 4 : 5);
+            }
+
+            int minX = Math.max((int) Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5f), 0);
+            int maxX = Math.min((int) Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5f), s.width - 1);
+            int minY = Math.max((int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5f), yStart);
+            int maxY = Math.min((int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5f), yEnd - 1);
+
+            for (int y = minY; y <= maxY; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    float cx = x + 0.5f;
+                    float cy = y + 0.5f;
+
+                    float w0 = edge(x1, y1, x2, y2, cx, cy) / area;
+                    float w1 = edge(x2, y2, x0, y0, cx, cy) / area;
+                    float w2 = 1f - w0 - w1;
+
+                    if (w0 < epsilon || w1 < epsilon || w2 < epsilon) {
+                        continue;
+                    }
+
+                    position.set(
+                            (v[i0 + 0] * w0) + (v[i1 + 0] * w1) + (v[i2 + 0] * w2),
+                            (v[i0 + 1] * w0) + (v[i1 + 1] * w1) + (v[i2 + 1] * w2),
+                            (v[i0 + 2] * w0) + (v[i1 + 2] * w1) + (v[i2 + 2] * w2)
+                    );
+                    normal.set(
+                            (v[i0 + 3] * w0) + (v[i1 + 3] * w1) + (v[i2 + 3] * w2),
+                            (v[i0 + 4] * w0) + (v[i1 + 4] * w1) + (v[i2 + 4] * w2),
+                            (v[i0 + 5] * w0) + (v[i1 + 5] * w1) + (v[i2 + 5] * w2)
+                    );
+                    s.model.transformPosition(position);
+                    s.normalModel.transform(normal).normalize();
+
+                    visitor.visit(x, y, face, position, normal, texelArea);
+                }
+            }
+        }
+    }
+
+    private void shade(Context ctx, List<Light> lights, List<Occluder> occluders) {
+        Vector3f p = ctx.position;
+        Vector3f n = ctx.normal;
+        ctx.color.zero();
+
+        for (Light light : lights) {
+            if (light instanceof DirectionalLight sun) {
+                Vector3f dir = sun.getDirection();
+                float diff = Math.max(-n.dot(dir), 0f);
+                float shadow = 0f;
+                if (diff > 0f) {
+                    shadow = visibility(ctx, -dir.x(), -dir.y(), -dir.z(), Float.POSITIVE_INFINITY, occluders);
+                }
+                ctx.color.add(
+                        (sun.getDiffuseColor().x() * diff * shadow) + sun.getAmbientColor().x(),
+                        (sun.getDiffuseColor().y() * diff * shadow) + sun.getAmbientColor().y(),
+                        (sun.getDiffuseColor().z() * diff * shadow) + sun.getAmbientColor().z()
+                );
+            } else if (light instanceof SkyLight sky) {
+                int count = sky.getDirections();
+                float visible = 0f;
+                for (int i = 0; i < count; i++) {
+                    Vector3fc dir = sky.getDirection(i);
+                    float diff = n.dot(dir);
+                    if (diff <= 0f) {
+                        continue;
+                    }
+                    visible += diff * visibility(ctx, dir.x(), dir.y(), dir.z(), Float.POSITIVE_INFINITY, occluders);
+                }
+                //an unoccluded surface facing up gathers about half of the directions
+                visible *= 2f / count;
+                ctx.color.add(
+                        (sky.getDiffuseColor().x() * visible) + sky.getAmbientColor().x(),
+                        (sky.getDiffuseColor().y() * visible) + sky.getAmbientColor().y(),
+                        (sky.getDiffuseColor().z() * visible) + sky.getAmbientColor().z()
+                );
+            } else if (light instanceof PointLight || light instanceof SpotLight) {
+                float lx = light.getPosition().x() - p.x();
+                float ly = light.getPosition().y() - p.y();
+                float lz = light.getPosition().z() - p.z();
+                float distanceSquared = (lx * lx) + (ly * ly) + (lz * lz);
+                float distance = (float) Math.sqrt(distanceSquared);
+                float range = light.getRange();
+                if (distance >= range) {
+                    continue;
+                }
+                float attenuation = (1f / distanceSquared) * LightRange.window(distance, range);
+
+                float diff = Math.max(((n.x() * lx) + (n.y() * ly) + (n.z() * lz)) / distance, 0f);
+
+                float intensity = 1f;
+                if (light instanceof SpotLight spot) {
+                    Vector3f spotDir = spot.getDirection();
+                    float theta = -((lx * spotDir.x()) + (ly * spotDir.y()) + (lz * spotDir.z())) / (distance * spotDir.length());
+                    float cutOff = (float) Math.cos(Math.toRadians(spot.getCutOff()));
+                    float outerCutOff = (float) Math.cos(Math.toRadians(spot.getOuterCutOff()));
+                    intensity = Math.min(Math.max((theta - outerCutOff) / (cutOff - outerCutOff), 0f), 1f);
+                }
+
+                float shadow = 0f;
+                if (diff > 0f && intensity > 0f) {
+                    shadow = visibility(ctx, lx, ly, lz, 1f, occluders);
+                }
+
+                float direct = diff * attenuation * intensity * shadow;
+                ctx.color.add(
+                        (light.getDiffuseColor().x() * direct) + (light.getAmbientColor().x() * attenuation),
+                        (light.getDiffuseColor().y() * direct) + (light.getAmbientColor().y() * attenuation),
+                        (light.getDiffuseColor().z() * direct) + (light.getAmbientColor().z() * attenuation)
+                );
+            }
+        }
+    }
+
+    private float visibility(Context ctx, float dx, float dy, float dz, float maxDistance, List<Occluder> occluders) {
+        ctx.origin.set(ctx.normal).mul(SHADOW_BIAS).add(ctx.position);
+        ctx.direction.set(dx, dy, dz);
+
+        for (Occluder o : occluders) {
+            if (o.intersects(ctx.origin, ctx.direction, maxDistance, ctx.localOrigin, ctx.localDirection, ctx.result)) {
+                return 0f;
+            }
+        }
+
+        return 1f;
+    }
+
+}
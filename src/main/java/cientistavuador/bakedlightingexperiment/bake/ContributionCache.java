@@ -0,0 +1,212 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowFilter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * Least recently used cache of light x cube lightmap contributions.
+ * <p>
+ * A contribution is keyed by the cube transform, the light parameters and the
+ * set of cubes that may cast shadows on the cube, so the same contribution is
+ * reused when a light is toggled off and on again or a cube is placed back
+ * where it was.
+ * <p>
+ * The cache is synchronized, as it is also used by jobs running on a
+ * {@link BakeWorker}.
+ *
+ * @author Cien
+ */
+public class ContributionCache {
+
+    public static final long DEFAULT_BUDGET = 256L * 1024L * 1024L;
+    public static final int TEXEL_SIZE = 4;
+
+    private static class Entry {
+
+        private final int texture;
+        private final long size;
+
+        public Entry(int texture, long size) {
+            this.texture = texture;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The cubes a light reaches, with their hashes computed once per light
+     * and shared by the keys of every receiver of the light.
+     */
+    public static class Occluders {
+
+        private final Light light;
+        private final long lightHash;
+        private final List<Cube> cubes;
+        private final long[] hashes;
+
+        private Occluders(Light light, List<Cube> cubes) {
+            this.light = light;
+            this.lightHash = BakeHash.hash(BakeHash.SEED, light);
+            this.cubes = cubes;
+            this.hashes = new long[cubes.size()];
+            for (int i = 0; i < this.hashes.length; i++) {
+                this.hashes[i] = BakeHash.hash(BakeHash.SEED, cubes.get(i).getModel());
+            }
+        }
+    }
+
+    /**
+     * Collects the occluders of a light from the cubes that may be in its
+     * range, such as the cubes found by a tree query.
+     *
+     * @param light the light
+     * @param candidates the cubes that may be in range of the light
+     * @return the occluders of the light
+     */
+    public static Occluders occluders(Light light, List<Cube> candidates) {
+        List<Cube> affected = new ArrayList<>();
+        for (Cube c : candidates) {
+            if (LightBounds.affects(light, c)) {
+                affected.add(c);
+            }
+        }
+        return new Occluders(light, affected);
+    }
+
+    public static long key(Occluders occluders, Cube receiver) {
+        long hash = BakeHash.hash(occluders.lightHash, receiver);
+        hash = BakeHash.hash(hash, ShadowFilter.getMode());
+
+        //sum of the occluder hashes, the order of the cubes does not matter
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; i < occluders.hashes.length; i++) {
+            Cube c = occluders.cubes.get(i);
+            if (c == receiver || !LightBounds.shadows(occluders.light, c, receiver)) {
+                continue;
+            }
+            sum += occluders.hashes[i];
+            count++;
+        }
+        hash = BakeHash.hash(hash, count);
+        hash = BakeHash.hash(hash, sum);
+
+        return hash;
+    }
+
+    private final Map<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long budget;
+    private long usage = 0;
+    private int hits = 0;
+    private int misses = 0;
+
+    public ContributionCache(long budget) {
+        this.budget = budget;
+    }
+
+    public ContributionCache() {
+        this(DEFAULT_BUDGET);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getUsage() {
+        return usage;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int get(long key) {
+        Entry e = this.entries.get(key);
+        if (e == null) {
+            this.misses++;
+            return 0;
+        }
+        this.hits++;
+        return e.texture;
+    }
+
+    public synchronized int bake(long key, Light light, Cube cube) {
+        int width = cube.getLightmapWidth();
+        int height = cube.getLightmapHeight();
+
+        int texture = Cube.createLightmapLayerTexture(width, height);
+        cube.renderLightmapLayer(light, texture);
+
+        Entry old = this.entries.put(key, new Entry(texture, ((long) width) * height * TEXEL_SIZE));
+        if (old != null) {
+            glDeleteTextures(old.texture);
+            this.usage -= old.size;
+        }
+        this.usage += ((long) width) * height * TEXEL_SIZE;
+
+        evict(texture);
+
+        return texture;
+    }
+
+    private void evict(int keep) {
+        for (Iterator<Entry> it = this.entries.values().iterator(); it.hasNext() && this.usage > this.budget;) {
+            Entry e = it.next();
+            if (e.texture == keep) {
+                continue;
+            }
+            glDeleteTextures(e.texture);
+            this.usage -= e.size;
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        for (Entry e : this.entries.values()) {
+            glDeleteTextures(e.texture);
+        }
+        this.entries.clear();
+        this.usage = 0;
+    }
+
+}
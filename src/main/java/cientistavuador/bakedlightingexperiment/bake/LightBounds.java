@@ -0,0 +1,144 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.LightRange;
+import cientistavuador.bakedlightingexperiment.cube.light.directional.DirectionalLight;
+import cientistavuador.bakedlightingexperiment.cube.light.sky.SkyLight;
+import cientistavuador.bakedlightingexperiment.cube.light.spot.SpotLight;
+import org.joml.Vector3fc;
+
+/**
+ * Conservative bounding sphere tests used to find out which cubes a light
+ * change can touch, cubes outside of the range of a light are never touched
+ * by it, neither are cubes outside of the cone of a spot light without an
+ * ambient color.
+ *
+ * @author Cien
+ */
+public class LightBounds {
+
+    private static float angle(float ax, float ay, float az, float bx, float by, float bz) {
+        float lengths = (float) Math.sqrt(((ax * ax) + (ay * ay) + (az * az)) * ((bx * bx) + (by * by) + (bz * bz)));
+        if (lengths == 0f) {
+            return 0f;
+        }
+        float cos = ((ax * bx) + (ay * by) + (az * bz)) / lengths;
+        return (float) Math.acos(Math.min(Math.max(cos, -1f), 1f));
+    }
+
+    private static float angularRadius(float radius, float distance) {
+        if (distance <= radius) {
+            return (float) Math.PI;
+        }
+        return (float) Math.asin(radius / distance);
+    }
+
+    public static boolean affects(Light light, Vector3fc center, float radius) {
+        if (!LightRange.inRange(light, center, radius)) {
+            return false;
+        }
+        if (!(light instanceof SpotLight spot)) {
+            return true;
+        }
+
+        //the ambient term of a spot light is added outside of its cone too
+        Vector3fc ambient = spot.getAmbientColor();
+        if (ambient.x() > 0f || ambient.y() > 0f || ambient.z() > 0f) {
+            return true;
+        }
+
+        Vector3fc position = spot.getPosition();
+        float vx = center.x() - position.x();
+        float vy = center.y() - position.y();
+        float vz = center.z() - position.z();
+        float distance = (float) Math.sqrt((vx * vx) + (vy * vy) + (vz * vz));
+
+        Vector3fc direction = spot.getDirection();
+        float theta = angle(vx, vy, vz, direction.x(), direction.y(), direction.z());
+
+        return (theta - angularRadius(radius, distance)) <= Math.toRadians(spot.getOuterCutOff());
+    }
+
+    public static boolean affects(Light light, Cube cube) {
+        return affects(light, cube.getCenter(), cube.getRadius());
+    }
+
+    public static boolean shadows(
+            Light light,
+            Vector3fc occluderCenter, float occluderRadius,
+            Vector3fc receiverCenter, float receiverRadius
+    ) {
+        if (light instanceof DirectionalLight sun) {
+            Vector3fc direction = sun.getDirection();
+            float wx = receiverCenter.x() - occluderCenter.x();
+            float wy = receiverCenter.y() - occluderCenter.y();
+            float wz = receiverCenter.z() - occluderCenter.z();
+            float along = ((wx * direction.x()) + (wy * direction.y()) + (wz * direction.z())) / direction.length();
+            if (along < -(occluderRadius + receiverRadius)) {
+                return false;
+            }
+            float perpendicularSquared = ((wx * wx) + (wy * wy) + (wz * wz)) - (along * along);
+            float sum = occluderRadius + receiverRadius;
+            return perpendicularSquared <= (sum * sum);
+        }
+        if (light instanceof SkyLight) {
+            //the sky comes from above, so only occluders not fully below the receiver count
+            return (occluderCenter.y() + occluderRadius) >= (receiverCenter.y() - receiverRadius);
+        }
+
+        Vector3fc position = light.getPosition();
+        float ox = occluderCenter.x() - position.x();
+        float oy = occluderCenter.y() - position.y();
+        float oz = occluderCenter.z() - position.z();
+        float occluderDistance = (float) Math.sqrt((ox * ox) + (oy * oy) + (oz * oz));
+        if (occluderDistance <= occluderRadius) {
+            return true;
+        }
+
+        float rx = receiverCenter.x() - position.x();
+        float ry = receiverCenter.y() - position.y();
+        float rz = receiverCenter.z() - position.z();
+        float receiverDistance = (float) Math.sqrt((rx * rx) + (ry * ry) + (rz * rz));
+        if ((receiverDistance + receiverRadius) < (occluderDistance - occluderRadius)) {
+            return false;
+        }
+
+        float theta = angle(ox, oy, oz, rx, ry, rz);
+        return theta <= (angularRadius(occluderRadius, occluderDistance) + angularRadius(receiverRadius, receiverDistance));
+    }
+
+    public static boolean shadows(Light light, Cube occluder, Cube receiver) {
+        return shadows(light, occluder.getCenter(), occluder.getRadius(), receiver.getCenter(), receiver.getRadius());
+    }
+
+    private LightBounds() {
+
+    }
+}
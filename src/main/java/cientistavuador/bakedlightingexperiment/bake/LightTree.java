@@ -0,0 +1,401 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.LightRange;
+import cientistavuador.bakedlightingexperiment.cube.light.point.PointLight;
+import cientistavuador.bakedlightingexperiment.cube.light.spot.SpotLight;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+/**
+ * Binary tree of point and spot lights used to bake many small lights as a
+ * few clusters, in the spirit of lightcuts.
+ * <p>
+ * Every node is a cluster with the summed colors of its lights and the
+ * brightest of them as its representative, the representative is baked in
+ * place of the whole cluster using its own position, direction and shadow
+ * map. Point and spot lights are kept in separate trees.
+ * <p>
+ * A cut is chosen for every cube starting at the roots, the node with the
+ * largest error bound is replaced by its children until every bound is
+ * below a fraction of the estimated light reaching the cube. The bound of a
+ * node is its intensity with the attenuation at the closest distance between
+ * the bounds of its lights and the cube, so nearby lights always end up
+ * evaluated alone and clusters out of range are dropped.
+ * <p>
+ * Spot lights also keep a cone bounding the directions of their lights, the
+ * tree is split by direction as well as position, clusters without an
+ * ambient color that can not reach a cube through their cones are dropped
+ * and a cluster whose spot lights point too far apart is always refined, as
+ * its representative would light where the other spots do not point.
+ *
+ * @author Cien
+ */
+public class LightTree {
+
+    public static final float DEFAULT_ERROR_RATIO = 0.02f;
+    public static final int DEFAULT_MAX_CUT = 32;
+    public static final float MAX_CONE_SPREAD = (float) Math.toRadians(15.0);
+
+    public static class Node {
+
+        private final Light representative;
+        private final Vector3f diffuse = new Vector3f();
+        private final Vector3f ambient = new Vector3f();
+        private final Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+        private final Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
+        private final Vector3f axis = new Vector3f();
+        private final boolean spot;
+        private final float coneAngle;
+        private final float minOuterAngle;
+        private final float maxOuterAngle;
+        private final int lights;
+        private final Node left;
+        private final Node right;
+        private float intensity = 0f;
+        private float range = 0f;
+        private int order = 0;
+
+        private Node(Light light) {
+            this.representative = light;
+            this.diffuse.set(light.getDiffuseColor());
+            this.ambient.set(light.getAmbientColor());
+            this.min.set(light.getPosition());
+            this.max.set(light.getPosition());
+            this.lights = 1;
+            this.left = null;
+            this.right = null;
+            this.range = light.getRange();
+            if (light instanceof SpotLight s) {
+                this.spot = true;
+                this.axis.set(s.getDirection()).normalize();
+                this.minOuterAngle = (float) Math.toRadians(s.getOuterCutOff());
+                this.maxOuterAngle = this.minOuterAngle;
+            } else {
+                this.spot = false;
+                this.minOuterAngle = 0f;
+                this.maxOuterAngle = 0f;
+            }
+            this.coneAngle = 0f;
+            finish();
+        }
+
+        private Node(Node left, Node right) {
+            this.representative = (left.intensity >= right.intensity ? left.representative : right.representative);
+            this.diffuse.set(left.diffuse).add(right.diffuse);
+            this.ambient.set(left.ambient).add(right.ambient);
+            this.min.set(left.min).min(right.min);
+            this.max.set(left.max).max(right.max);
+            this.lights = left.lights + right.lights;
+            this.left = left;
+            this.right = right;
+            //a cluster reaches as far as its brightest light would with the summed colors
+            this.range = Math.max(Math.max(left.range, right.range), LightRange.of(this.diffuse, this.ambient));
+            this.spot = left.spot;
+            if (this.spot) {
+                this.axis.set(left.axis).mul(left.lights).add(
+                        right.axis.x() * right.lights,
+                        right.axis.y() * right.lights,
+                        right.axis.z() * right.lights
+                );
+                if (this.axis.lengthSquared() < 1E-8f) {
+                    this.axis.set(left.axis);
+                }
+                this.axis.normalize();
+                this.coneAngle = (float) Math.min(
+                        Math.max(
+                                this.axis.angle(left.axis) + left.coneAngle,
+                                this.axis.angle(right.axis) + right.coneAngle
+                        ),
+                        Math.PI
+                );
+                this.minOuterAngle = Math.min(left.minOuterAngle, right.minOuterAngle);
+                this.maxOuterAngle = Math.max(left.maxOuterAngle, right.maxOuterAngle);
+            } else {
+                this.coneAngle = 0f;
+                this.minOuterAngle = 0f;
+                this.maxOuterAngle = 0f;
+            }
+            finish();
+        }
+
+        private void finish() {
+            this.intensity = Math.max(
+                    this.diffuse.x() + this.ambient.x(),
+                    Math.max(
+                            this.diffuse.y() + this.ambient.y(),
+                            this.diffuse.z() + this.ambient.z()
+                    )
+            );
+        }
+
+        public boolean isLeaf() {
+            return this.left == null;
+        }
+
+        /**
+         * Returns true if the representative stands for every light of the
+         * node, which is not the case for spot lights pointing apart.
+         *
+         * @return true if the node can be baked as its representative
+         */
+        public boolean isCoherent() {
+            return !this.spot
+                    || (this.coneAngle <= MAX_CONE_SPREAD && (this.maxOuterAngle - this.minOuterAngle) <= MAX_CONE_SPREAD);
+        }
+
+        public Light getRepresentative() {
+            return representative;
+        }
+
+        public Vector3fc getDiffuse() {
+            return diffuse;
+        }
+
+        public Vector3fc getAmbient() {
+            return ambient;
+        }
+
+        public float getRange() {
+            return range;
+        }
+
+        public int getNumberOfLights() {
+            return lights;
+        }
+
+        /**
+         * Returns the position of the node in a depth first walk, nodes close
+         * in the order are close in space.
+         *
+         * @return the order
+         */
+        public int getOrder() {
+            return order;
+        }
+    }
+
+    private static class Entry {
+
+        private final Node node;
+        private final float bound;
+        private final float estimate;
+
+        public Entry(Node node, float bound, float estimate) {
+            this.node = node;
+            this.bound = bound;
+            this.estimate = estimate;
+        }
+    }
+
+    private final List<Node> roots = new ArrayList<>();
+    private final int lights;
+
+    /**
+     * Builds the trees of the enabled point and spot lights of the list, any
+     * other light is ignored.
+     *
+     * @param lights the lights
+     */
+    public LightTree(List<Light> lights) {
+        List<Node> points = new ArrayList<>();
+        List<Node> spots = new ArrayList<>();
+        for (Light l : lights) {
+            if (!l.isEnabled()) {
+                continue;
+            }
+            if (l instanceof PointLight) {
+                points.add(new Node(l));
+            } else if (l instanceof SpotLight) {
+                spots.add(new Node(l));
+            }
+        }
+        this.lights = points.size() + spots.size();
+
+        int[] order = {0};
+        if (!points.isEmpty()) {
+            Node root = build(points, 0, points.size());
+            number(root, order);
+            this.roots.add(root);
+        }
+        if (!spots.isEmpty()) {
+            Node root = build(spots, 0, spots.size());
+            number(root, order);
+            this.roots.add(root);
+        }
+    }
+
+    public int getNumberOfLights() {
+        return lights;
+    }
+
+    private static Node build(List<Node> leaves, int start, int end) {
+        if (end - start == 1) {
+            return leaves.get(start);
+        }
+
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
+        Vector3f minAxis = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f maxAxis = new Vector3f(Float.NEGATIVE_INFINITY);
+        for (int i = start; i < end; i++) {
+            min.min(leaves.get(i).min);
+            max.max(leaves.get(i).max);
+            minAxis.min(leaves.get(i).axis);
+            maxAxis.max(leaves.get(i).axis);
+        }
+        Vector3f extent = max.sub(min);
+        Vector3f axisExtent = maxAxis.sub(minAxis);
+
+        //spot directions are split as well, a flipped direction weighs as much as the whole extent
+        float scale = Math.max(extent.get(extent.maxComponent()), 1f);
+        axisExtent.mul(scale);
+        boolean byDirection = axisExtent.get(axisExtent.maxComponent()) > extent.get(extent.maxComponent());
+        int axis = (byDirection ? axisExtent.maxComponent() : extent.maxComponent());
+
+        if (byDirection) {
+            leaves.subList(start, end).sort(Comparator.comparingDouble((n) -> n.axis.get(axis)));
+        } else {
+            leaves.subList(start, end).sort(Comparator.comparingDouble((n) -> n.min.get(axis)));
+        }
+        int middle = (start + end) / 2;
+        return new Node(build(leaves, start, middle), build(leaves, middle, end));
+    }
+
+    private static void number(Node node, int[] order) {
+        node.order = order[0]++;
+        if (!node.isLeaf()) {
+            number(node.left, order);
+            number(node.right, order);
+        }
+    }
+
+    private static float distance(Node node, Cube cube) {
+        Vector3fc cubeMin = cube.getMin();
+        Vector3fc cubeMax = cube.getMax();
+        float dx = Math.max(Math.max(node.min.x() - cubeMax.x(), cubeMin.x() - node.max.x()), 0f);
+        float dy = Math.max(Math.max(node.min.y() - cubeMax.y(), cubeMin.y() - node.max.y()), 0f);
+        float dz = Math.max(Math.max(node.min.z() - cubeMax.z(), cubeMin.z() - node.max.z()), 0f);
+        return (float) Math.sqrt((dx * dx) + (dy * dy) + (dz * dz));
+    }
+
+    private static boolean outsideCone(Node node, Cube cube) {
+        //the ambient term of a spot light is added outside of its cone too
+        if (!node.spot || node.ambient.x() > 0f || node.ambient.y() > 0f || node.ambient.z() > 0f) {
+            return false;
+        }
+        float limit = node.coneAngle + node.maxOuterAngle;
+        if (limit >= Math.PI) {
+            return false;
+        }
+        Vector3f toCube = new Vector3f(node.min).add(node.max).mul(0.5f);
+        float apexRadius = toCube.distance(node.max);
+        toCube.negate().add(cube.getCenter());
+        float length = toCube.length();
+        float spread = apexRadius + cube.getRadius();
+        if (length <= spread) {
+            return false;
+        }
+        float uncertainty = (float) Math.asin(spread / length);
+        return node.axis.angle(toCube) - uncertainty > limit;
+    }
+
+    private static Entry entry(Node node, Cube cube) {
+        float closest = distance(node, cube);
+        if (closest >= node.range || outsideCone(node, cube)) {
+            return null;
+        }
+        float bound = Float.POSITIVE_INFINITY;
+        if (closest > 0f && node.isCoherent()) {
+            bound = (node.intensity / (closest * closest)) * LightRange.window(closest, node.range);
+        }
+
+        Vector3fc position = node.representative.getPosition();
+        float distance = Math.max(position.distance(cube.getCenter()), cube.getRadius());
+        float estimate = (node.intensity / (distance * distance)) * LightRange.window(distance, node.range);
+
+        return new Entry(node, bound, estimate);
+    }
+
+    /**
+     * Chooses the clusters used to bake a cube.
+     *
+     * @param cube the cube
+     * @param errorRatio the largest error bound of a cluster as a fraction of
+     * the estimated light reaching the cube
+     * @param maxCut the maximum number of clusters, incoherent clusters and
+     * clusters touching the cube are refined past it
+     * @param out the list the clusters are added to
+     * @return the out list
+     */
+    public List<Node> cut(Cube cube, float errorRatio, int maxCut, List<Node> out) {
+        PriorityQueue<Entry> queue = new PriorityQueue<>((a, b) -> Float.compare(b.bound, a.bound));
+        float total = 0f;
+        for (Node root : this.roots) {
+            Entry e = entry(root, cube);
+            if (e != null) {
+                queue.add(e);
+                total += e.estimate;
+            }
+        }
+
+        int count = out.size();
+        while (!queue.isEmpty()) {
+            Entry e = queue.peek();
+            if (e.node.isLeaf()) {
+                out.add(queue.poll().node);
+                continue;
+            }
+            //unbounded nodes are always refined, even past the maximum cut
+            if (e.bound != Float.POSITIVE_INFINITY
+                    && (e.bound <= errorRatio * total || (out.size() - count) + queue.size() >= maxCut)) {
+                break;
+            }
+            queue.poll();
+            total -= e.estimate;
+            for (Node child : new Node[]{e.node.left, e.node.right}) {
+                Entry c = entry(child, cube);
+                if (c != null) {
+                    queue.add(c);
+                    total += c.estimate;
+                }
+            }
+        }
+        for (Entry e : queue) {
+            out.add(e.node);
+        }
+        return out;
+    }
+
+}
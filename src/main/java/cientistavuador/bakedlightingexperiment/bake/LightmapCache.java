@@ -0,0 +1,261 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.LightmapAtlas;
+import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import static org.lwjgl.opengl.GL33C.*;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Binary file with the baked lightmaps of a scene.
+ * <p>
+ * The texels are stored packed as R11G11B10 (four bytes per texel), the same
+ * layout used by the lightmap textures, so loading is a single read of the
+ * file handed straight to the driver.
+ * <p>
+ * Layout (little endian): magic, version, scene hash, number of cubes, the
+ * lightmap width and height of every cube and then the texels of every cube in
+ * order.
+ *
+ * @author Cien
+ */
+public class LightmapCache {
+
+    public static final int MAGIC = 0x434D4C42;
+    public static final int VERSION = 1;
+    public static final int TEXEL_SIZE = 4;
+    public static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    public static long sceneHash(List<Cube> cubes, List<Light> lights, boolean clustered) {
+        long hash = BakeHash.hash(BakeHash.SEED, VERSION);
+        hash = BakeHash.hash(hash, ShadowFilter.getMode());
+        //a clustered bake is an approximation of the exact one
+        hash = BakeHash.hash(hash, clustered ? 1 : 0);
+
+        hash = BakeHash.hash(hash, cubes.size());
+        for (Cube c : cubes) {
+            hash = BakeHash.hash(hash, c);
+        }
+
+        hash = BakeHash.hash(hash, lights.size());
+        for (Light l : lights) {
+            hash = BakeHash.hash(hash, l);
+        }
+
+        return hash;
+    }
+
+    private final Path file;
+
+    public LightmapCache(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Loads the lightmaps of the cubes if the file matches the scene, a
+     * missing, outdated or unreadable file only returns false.
+     *
+     * @param cubes the cubes
+     * @param lights the lights
+     * @param clustered true if the lights are baked in clusters
+     * @return true if the lightmaps were loaded
+     */
+    public boolean load(List<Cube> cubes, List<Light> lights, boolean clustered) {
+        if (!Files.isRegularFile(this.file)) {
+            return false;
+        }
+
+        //read instead of mapped, a mapped file can not be replaced on windows until it is collected
+        ByteBuffer data = null;
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return false;
+            }
+
+            data = MemoryUtil.memAlloc((int) size);
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    return false;
+                }
+            }
+            data.flip();
+            data.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (data.getInt(0) != MAGIC
+                    || data.getInt(4) != VERSION
+                    || data.getLong(8) != sceneHash(cubes, lights, clustered)
+                    || data.getInt(16) != cubes.size()) {
+                return false;
+            }
+
+            long expectedSize = HEADER_SIZE + (cubes.size() * 8L);
+            for (int i = 0; i < cubes.size(); i++) {
+                Cube c = cubes.get(i);
+                int width = data.getInt(HEADER_SIZE + (i * 8));
+                int height = data.getInt(HEADER_SIZE + (i * 8) + 4);
+                if (width != c.getLightmapWidth() || height != c.getLightmapHeight()) {
+                    return false;
+                }
+                expectedSize += ((long) width) * height * TEXEL_SIZE;
+            }
+            if (size != expectedSize) {
+                return false;
+            }
+
+            int offset = HEADER_SIZE + (cubes.size() * 8);
+            glActiveTexture(GL_TEXTURE0);
+            for (Cube c : cubes) {
+                LightmapAtlas.Region region = c.getLightmapRegion();
+                int length = region.getWidth() * region.getHeight() * TEXEL_SIZE;
+
+                glBindTexture(GL_TEXTURE_2D, c.getLightmap());
+                glTexSubImage2D(
+                        GL_TEXTURE_2D,
+                        0,
+                        region.getX(),
+                        region.getY(),
+                        region.getWidth(),
+                        region.getHeight(),
+                        GL_RGB,
+                        GL_UNSIGNED_INT_10F_11F_11F_REV,
+                        data.slice(offset, length)
+                );
+
+                offset += length;
+            }
+            glBindTexture(GL_TEXTURE_2D, 0);
+
+            return true;
+        } catch (IOException ex) {
+            System.err.println("Failed to load lightmap cache '" + this.file + "': " + ex);
+            return false;
+        } finally {
+            if (data != null) {
+                MemoryUtil.memFree(data);
+            }
+        }
+    }
+
+    /**
+     * Saves the lightmaps of the cubes, the file is written next to the cache
+     * and moved over it, so a failed save leaves the old cache in place and
+     * only returns false.
+     *
+     * @param cubes the cubes
+     * @param lights the lights
+     * @param clustered true if the lights were baked in clusters
+     * @return true if the cache was saved
+     */
+    public boolean save(List<Cube> cubes, List<Light> lights, boolean clustered) {
+        long size = HEADER_SIZE + (cubes.size() * 8L);
+        for (Cube c : cubes) {
+            size += ((long) c.getLightmapWidth()) * c.getLightmapHeight() * TEXEL_SIZE;
+        }
+        if (size > Integer.MAX_VALUE) {
+            System.err.println("Lightmap cache is too large: " + size + " bytes");
+            return false;
+        }
+
+        ByteBuffer data = MemoryUtil.memAlloc((int) size);
+        try {
+            data.order(ByteOrder.LITTLE_ENDIAN);
+
+            data.putInt(0, MAGIC);
+            data.putInt(4, VERSION);
+            data.putLong(8, sceneHash(cubes, lights, clustered));
+            data.putInt(16, cubes.size());
+
+            int offset = HEADER_SIZE + (cubes.size() * 8);
+            for (int i = 0; i < cubes.size(); i++) {
+                Cube c = cubes.get(i);
+                LightmapAtlas.Region region = c.getLightmapRegion();
+                int length = region.getWidth() * region.getHeight() * TEXEL_SIZE;
+
+                data.putInt(HEADER_SIZE + (i * 8), region.getWidth());
+                data.putInt(HEADER_SIZE + (i * 8) + 4, region.getHeight());
+
+                glBindFramebuffer(GL_READ_FRAMEBUFFER, region.getPage().fbo());
+                glReadBuffer(GL_COLOR_ATTACHMENT0);
+                glReadPixels(
+                        region.getX(),
+                        region.getY(),
+                        region.getWidth(),
+                        region.getHeight(),
+                        GL_RGB,
+                        GL_UNSIGNED_INT_10F_11F_11F_REV,
+                        data.slice(offset, length)
+                );
+
+                offset += length;
+            }
+            glBindFramebuffer(GL_READ_FRAMEBUFFER, 0);
+
+            Path temporary = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(
+                    temporary,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+            )) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temporary, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporary, this.file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException ex) {
+            System.err.println("Failed to save lightmap cache '" + this.file + "': " + ex);
+            return false;
+        } finally {
+            MemoryUtil.memFree(data);
+        }
+    }
+
+}
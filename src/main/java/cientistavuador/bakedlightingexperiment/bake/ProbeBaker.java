@@ -0,0 +1,499 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.LightRange;
+import cientistavuador.bakedlightingexperiment.cube.light.directional.DirectionalLight;
+import cientistavuador.bakedlightingexperiment.cube.light.point.PointLight;
+import cientistavuador.bakedlightingexperiment.cube.light.sky.SkyLight;
+import cientistavuador.bakedlightingexperiment.cube.light.spot.SpotLight;
+import cientistavuador.bakedlightingexperiment.cube.probe.ProbeGrid;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+/**
+ * Bakes a {@link ProbeGrid} of spherical harmonics irradiance over the bounds
+ * of the cubes from the same lights as the lightmaps, so cubes without a
+ * lightmap can still be lit.
+ * <p>
+ * Every light reaches a probe from a single direction, or from many in the
+ * case of the sky, and is projected with the cosine lobe already applied.
+ * Shadows are traced against the boxes of the cubes on the cpu. Probes
+ * inside a cube take the average of their valid neighbours.
+ * <p>
+ * The grid is rebaked on a background thread whenever a cube or a light
+ * changes.
+ *
+ * @author Cien
+ */
+public class ProbeBaker {
+
+    public static final int ORDER_L1 = 1;
+    public static final int ORDER_L2 = 2;
+
+    public static final float DEFAULT_SPACING = 2f;
+    public static final int MAX_RESOLUTION = 32;
+    public static final float MARGIN = 1f;
+    public static final int DILATE_PASSES = 4;
+
+    //cosine lobe convolution of every band
+    private static final float BAND_0 = (float) Math.PI;
+    private static final float BAND_1 = (float) ((2.0 * Math.PI) / 3.0);
+    private static final float BAND_2 = (float) (Math.PI / 4.0);
+
+    public static int coefficientsOf(int order) {
+        return switch (order) {
+            case ORDER_L1 -> ProbeGrid.L1_COEFFICIENTS;
+            case ORDER_L2 -> ProbeGrid.L2_COEFFICIENTS;
+            default -> throw new IllegalArgumentException("Invalid order: " + order);
+        };
+    }
+
+    private static class Source {
+
+        private final Light type;
+        private final Vector3f position = new Vector3f();
+        private final Vector3f direction = new Vector3f();
+        private final Vector3f diffuse = new Vector3f();
+        private final Vector3f ambient = new Vector3f();
+        private final Vector3f[] directions;
+        private final float range;
+        private final float cutOff;
+        private final float outerCutOff;
+
+        public Source(Light light) {
+            this.type = light;
+            this.position.set(light.getPosition());
+            this.diffuse.set(light.getDiffuseColor());
+            this.ambient.set(light.getAmbientColor());
+            this.range = light.getRange();
+            if (light instanceof DirectionalLight sun) {
+                this.direction.set(sun.getDirection()).normalize();
+            } else if (light instanceof SpotLight spot) {
+                this.direction.set(spot.getDirection()).normalize();
+            }
+            if (light instanceof SpotLight spot) {
+                this.cutOff = (float) Math.cos(Math.toRadians(spot.getCutOff()));
+                this.outerCutOff = (float) Math.cos(Math.toRadians(spot.getOuterCutOff()));
+            } else {
+                this.cutOff = 0f;
+                this.outerCutOff = 0f;
+            }
+            if (light instanceof SkyLight sky) {
+                this.directions = new Vector3f[sky.getDirections()];
+                for (int i = 0; i < this.directions.length; i++) {
+                    this.directions[i] = new Vector3f(sky.getDirection(i));
+                }
+            } else {
+                this.directions = null;
+            }
+        }
+    }
+
+    private static class Result {
+
+        private final Vector3f min = new Vector3f();
+        private final Vector3f max = new Vector3f();
+        private final int resolutionX;
+        private final int resolutionY;
+        private final int resolutionZ;
+        private final int coefficients;
+        private final float[] data;
+        private final boolean[] valid;
+
+        public Result(Vector3fc min, Vector3fc max, int resolutionX, int resolutionY, int resolutionZ, int coefficients) {
+            this.min.set(min);
+            this.max.set(max);
+            this.resolutionX = resolutionX;
+            this.resolutionY = resolutionY;
+            this.resolutionZ = resolutionZ;
+            this.coefficients = coefficients;
+            this.data = new float[resolutionX * resolutionY * resolutionZ * coefficients * 3];
+            this.valid = new boolean[resolutionX * resolutionY * resolutionZ];
+        }
+
+        public int probes() {
+            return this.resolutionX * this.resolutionY * this.resolutionZ;
+        }
+
+        public int index(int x, int y, int z) {
+            return (((z * this.resolutionY) + y) * this.resolutionX) + x;
+        }
+    }
+
+    private static class Context {
+
+        private final Vector3f position = new Vector3f();
+        private final Vector3f direction = new Vector3f();
+        private final Vector3f localOrigin = new Vector3f();
+        private final Vector3f localDirection = new Vector3f();
+        private final Vector2f result = new Vector2f();
+        private final float[] basis = new float[ProbeGrid.L2_COEFFICIENTS];
+        private final float[] coefficients = new float[ProbeGrid.L2_COEFFICIENTS * 3];
+    }
+
+    private final CPUBaker baker;
+    private final ProbeGrid grid = new ProbeGrid();
+    private int order = ORDER_L2;
+    private float spacing = DEFAULT_SPACING;
+
+    private long bakedHash = 0L;
+    private boolean fullBakeRequested = true;
+    private int generation = 0;
+    private boolean running = false;
+    private volatile Result finished = null;
+    private volatile int finishedGeneration = -1;
+
+    public ProbeBaker(CPUBaker baker) {
+        this.baker = baker;
+    }
+
+    public ProbeGrid getGrid() {
+        return grid;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Sets the spherical harmonics order of the probes and rebakes the grid.
+     *
+     * @param order {@link #ORDER_L1} or {@link #ORDER_L2}
+     */
+    public void setOrder(int order) {
+        coefficientsOf(order);
+        this.order = order;
+        requestFullBake();
+    }
+
+    public float getSpacing() {
+        return spacing;
+    }
+
+    /**
+     * Sets the distance between probes and rebakes the grid, the resolution
+     * is capped at {@link #MAX_RESOLUTION} probes per axis.
+     *
+     * @param spacing the spacing in world units
+     */
+    public void setSpacing(float spacing) {
+        if (spacing <= 0f) {
+            throw new IllegalArgumentException("Spacing must be positive: " + spacing);
+        }
+        this.spacing = spacing;
+        requestFullBake();
+    }
+
+    public boolean isBaking() {
+        return this.running || this.fullBakeRequested;
+    }
+
+    public void requestFullBake() {
+        this.fullBakeRequested = true;
+    }
+
+    /**
+     * Uploads a finished bake or starts a new one if a cube or a light
+     * changed, it must be called on the main thread.
+     *
+     * @param cubes every cube of the scene
+     * @param lights every light of the scene
+     */
+    public void update(List<Cube> cubes, List<Light> lights) {
+        Result result = this.finished;
+        if (result != null) {
+            this.finished = null;
+            if (this.finishedGeneration == this.generation) {
+                this.running = false;
+                this.grid.upload(
+                        result.min, result.max,
+                        result.resolutionX, result.resolutionY, result.resolutionZ,
+                        result.coefficients, result.data
+                );
+            }
+        }
+        if (this.running || cubes.isEmpty()) {
+            return;
+        }
+
+        long hash = BakeHash.SEED;
+        for (Cube c : cubes) {
+            hash = BakeHash.hash(hash, c);
+        }
+        for (Light l : lights) {
+            hash = BakeHash.hash(hash, l);
+        }
+        if (!this.fullBakeRequested && hash == this.bakedHash) {
+            return;
+        }
+        this.fullBakeRequested = false;
+        this.bakedHash = hash;
+
+        start(cubes, lights);
+    }
+
+    private void start(List<Cube> cubes, List<Light> lights) {
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
+        List<CPUBaker.Occluder> occluders = new ArrayList<>();
+        for (Cube c : cubes) {
+            min.min(c.getMin());
+            max.max(c.getMax());
+            occluders.add(new CPUBaker.Occluder(c.getModel()));
+        }
+        max.add(0f, MARGIN, 0f);
+
+        List<Source> sources = new ArrayList<>();
+        for (Light l : lights) {
+            if (l.isEnabled()) {
+                sources.add(new Source(l));
+            }
+        }
+
+        int resolutionX = resolution(max.x() - min.x());
+        int resolutionY = resolution(max.y() - min.y());
+        int resolutionZ = resolution(max.z() - min.z());
+        Result result = new Result(min, max, resolutionX, resolutionY, resolutionZ, coefficientsOf(this.order));
+
+        int passGeneration = ++this.generation;
+        this.running = true;
+
+        Thread thread = new Thread(() -> {
+            try {
+                compute(result, sources, occluders);
+                this.finished = result;
+                this.finishedGeneration = passGeneration;
+            } catch (Throwable t) {
+                t.printStackTrace(System.err);
+            }
+        }, "Probe Baker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private int resolution(float size) {
+        int probes = ((int) Math.ceil(size / this.spacing)) + 1;
+        return Math.max(Math.min(probes, MAX_RESOLUTION), 2);
+    }
+
+    private void compute(Result r, List<Source> sources, List<CPUBaker.Occluder> occluders) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int z = 0; z < r.resolutionZ; z++) {
+            int sliceZ = z;
+            tasks.add(() -> {
+                Context ctx = new Context();
+                for (int y = 0; y < r.resolutionY; y++) {
+                    for (int x = 0; x < r.resolutionX; x++) {
+                        bakeProbe(ctx, r, x, y, sliceZ, sources, occluders);
+                    }
+                }
+                return null;
+            });
+        }
+
+        List<Future<Void>> results = this.baker.getPool().invokeAll(tasks);
+        for (Future<Void> f : results) {
+            try {
+                f.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        dilate(r);
+    }
+
+    private void bakeProbe(Context ctx, Result r, int x, int y, int z, List<Source> sources, List<CPUBaker.Occluder> occluders) {
+        ctx.position.set(
+                r.min.x() + ((r.max.x() - r.min.x()) * (x / (r.resolutionX - 1f))),
+                r.min.y() + ((r.max.y() - r.min.y()) * (y / (r.resolutionY - 1f))),
+                r.min.z() + ((r.max.z() - r.min.z()) * (z / (r.resolutionZ - 1f)))
+        );
+
+        int probe = r.index(x, y, z);
+        for (CPUBaker.Occluder o : occluders) {
+            if (o.contains(ctx.position, ctx.localOrigin)) {
+                return;
+            }
+        }
+        r.valid[probe] = true;
+
+        Arrays.fill(ctx.coefficients, 0f);
+        Vector3f p = ctx.position;
+        for (Source s : sources) {
+            if (s.type instanceof DirectionalLight) {
+                float shadow = visibility(ctx, -s.direction.x(), -s.direction.y(), -s.direction.z(), Float.POSITIVE_INFINITY, occluders);
+                add(ctx, r.coefficients, -s.direction.x(), -s.direction.y(), -s.direction.z(), s.diffuse, shadow);
+                ambient(ctx, s.ambient, 1f);
+            } else if (s.type instanceof SkyLight) {
+                //same weight as the lightmaps, an open surface facing up gathers about half of the directions
+                float weight = 2f / s.directions.length;
+                for (Vector3f dir : s.directions) {
+                    float shadow = visibility(ctx, dir.x(), dir.y(), dir.z(), Float.POSITIVE_INFINITY, occluders);
+                    add(ctx, r.coefficients, dir.x(), dir.y(), dir.z(), s.diffuse, weight * shadow);
+                }
+                ambient(ctx, s.ambient, 1f);
+            } else if (s.type instanceof PointLight || s.type instanceof SpotLight) {
+                float lx = s.position.x() - p.x();
+                float ly = s.position.y() - p.y();
+                float lz = s.position.z() - p.z();
+                float distanceSquared = (lx * lx) + (ly * ly) + (lz * lz);
+                float distance = (float) Math.sqrt(distanceSquared);
+                if (distance >= s.range || distance <= 0f) {
+                    continue;
+                }
+                float attenuation = (1f / distanceSquared) * LightRange.window(distance, s.range);
+
+                float intensity = 1f;
+                if (s.type instanceof SpotLight) {
+                    float theta = -((lx * s.direction.x()) + (ly * s.direction.y()) + (lz * s.direction.z())) / distance;
+                    intensity = Math.min(Math.max((theta - s.outerCutOff) / (s.cutOff - s.outerCutOff), 0f), 1f);
+                }
+
+                float shadow = 0f;
+                if (intensity > 0f) {
+                    shadow = visibility(ctx, lx, ly, lz, 1f, occluders);
+                }
+                add(ctx, r.coefficients, lx / distance, ly / distance, lz / distance, s.diffuse, attenuation * intensity * shadow);
+                ambient(ctx, s.ambient, attenuation);
+            }
+        }
+
+        int probes = r.probes();
+        for (int i = 0; i < r.coefficients; i++) {
+            int index = ((i * probes) + probe) * 3;
+            r.data[index + 0] = ctx.coefficients[(i * 3) + 0];
+            r.data[index + 1] = ctx.coefficients[(i * 3) + 1];
+            r.data[index + 2] = ctx.coefficients[(i * 3) + 2];
+        }
+    }
+
+    private static void add(Context ctx, int coefficients, float x, float y, float z, Vector3fc color, float weight) {
+        if (weight <= 0f) {
+            return;
+        }
+        float[] b = ctx.basis;
+        b[0] = 0.282095f * BAND_0;
+        b[1] = 0.488603f * y * BAND_1;
+        b[2] = 0.488603f * z * BAND_1;
+        b[3] = 0.488603f * x * BAND_1;
+        if (coefficients > ProbeGrid.L1_COEFFICIENTS) {
+            b[4] = 1.092548f * x * y * BAND_2;
+            b[5] = 1.092548f * y * z * BAND_2;
+            b[6] = 0.315392f * ((3f * z * z) - 1f) * BAND_2;
+            b[7] = 1.092548f * x * z * BAND_2;
+            b[8] = 0.546274f * ((x * x) - (y * y)) * BAND_2;
+        }
+        for (int i = 0; i < coefficients; i++) {
+            ctx.coefficients[(i * 3) + 0] += color.x() * weight * b[i];
+            ctx.coefficients[(i * 3) + 1] += color.y() * weight * b[i];
+            ctx.coefficients[(i * 3) + 2] += color.z() * weight * b[i];
+        }
+    }
+
+    private static void ambient(Context ctx, Vector3fc color, float weight) {
+        //a constant irradiance only lives in the first coefficient
+        float scale = weight / 0.282095f;
+        ctx.coefficients[0] += color.x() * scale;
+        ctx.coefficients[1] += color.y() * scale;
+        ctx.coefficients[2] += color.z() * scale;
+    }
+
+    private static float visibility(Context ctx, float dx, float dy, float dz, float maxDistance, List<CPUBaker.Occluder> occluders) {
+        ctx.direction.set(dx, dy, dz);
+        for (CPUBaker.Occluder o : occluders) {
+            if (o.intersects(ctx.position, ctx.direction, maxDistance, ctx.localOrigin, ctx.localDirection, ctx.result)) {
+                return 0f;
+            }
+        }
+        return 1f;
+    }
+
+    private static void dilate(Result r) {
+        int probes = r.probes();
+        for (int pass = 0; pass < DILATE_PASSES; pass++) {
+            boolean[] valid = r.valid.clone();
+            boolean changed = false;
+            for (int z = 0; z < r.resolutionZ; z++) {
+                for (int y = 0; y < r.resolutionY; y++) {
+                    for (int x = 0; x < r.resolutionX; x++) {
+                        int probe = r.index(x, y, z);
+                        if (r.valid[probe]) {
+                            continue;
+                        }
+                        int count = 0;
+                        for (int n = 0; n < 6; n++) {
+                            int nx = x + (n == 0 ? -1 : (n == 1 ? 1 : 0));
+                            int ny = y + (n == 2 ? -1 : (n == 3 ? 1 : 0));
+                            int nz = z + (n == 4 ? -1 : (n == 5 ? 1 : 0));
+                            if (nx < 0 || ny < 0 || nz < 0 || nx >= r.resolutionX || ny >= r.resolutionY || nz >= r.resolutionZ) {
+                                continue;
+                            }
+                            int neighbour = r.index(nx, ny, nz);
+                            if (!r.valid[neighbour]) {
+                                continue;
+                            }
+                            for (int i = 0; i < r.coefficients; i++) {
+                                int from = ((i * probes) + neighbour) * 3;
+                                int to = ((i * probes) + probe) * 3;
+                                r.data[to + 0] += r.data[from + 0];
+                                r.data[to + 1] += r.data[from + 1];
+                                r.data[to + 2] += r.data[from + 2];
+                            }
+                            count++;
+                        }
+                        if (count > 0) {
+                            for (int i = 0; i < r.coefficients; i++) {
+                                int to = ((i * probes) + probe) * 3;
+                                r.data[to + 0] /= count;
+                                r.data[to + 1] /= count;
+                                r.data[to + 2] /= count;
+                            }
+                            valid[probe] = true;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+            System.arraycopy(valid, 0, r.valid, 0, valid.length);
+            if (!changed) {
+                break;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,719 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.bake;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.VerticesStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+
+/**
+ * Adds multi bounce indirect light to the baked lightmaps on the cpu.
+ * <p>
+ * The texels of every cube face are grouped into patches of about
+ * {@link #PATCH_SIZE} world units and the patches are clustered into a
+ * bounding volume tree. Every patch gathers the light reflected by the others
+ * and only walks down the tree while a cluster is too close to be treated as
+ * a single emitter, so the cost grows close to linearly with the number of
+ * patches. A cluster stores its power projected on the six axis directions.
+ * <p>
+ * Bounces are gathered until the energy added by the last one is below a
+ * fraction of the direct energy. The indirect light is then interpolated back
+ * to the texels and added to the direct light.
+ * <p>
+ * The direct lightmap of every cube is kept packed, so after an incremental
+ * bake only the rebaked cubes are read back and indirect light is never
+ * bounced twice.
+ *
+ * @author Cien
+ */
+public class RadiosityBaker {
+
+    public static final float PATCH_SIZE = 0.5f;
+    public static final int LEAF_SIZE = 8;
+    public static final float OPENING_RATIO = 0.5f;
+    public static final int MAX_BOUNCES = 4;
+    public static final float DEFAULT_ALBEDO = 0.5f;
+    public static final float DEFAULT_THRESHOLD = 0.02f;
+    public static final int PATCHES_PER_TASK = 256;
+
+    private static class Patch {
+
+        private final int face;
+        private float x = 0f;
+        private float y = 0f;
+        private float z = 0f;
+        private float nx = 0f;
+        private float ny = 0f;
+        private float nz = 0f;
+        private float area = 0f;
+        private final float[] direct = new float[3];
+        private final float[] emitted = new float[3];
+        private final float[] gathered = new float[3];
+        private final float[] indirect = new float[3];
+
+        public Patch(int face) {
+            this.face = face;
+        }
+
+        public void add(Patch other) {
+            this.x += other.x;
+            this.y += other.y;
+            this.z += other.z;
+            this.nx += other.nx;
+            this.ny += other.ny;
+            this.nz += other.nz;
+            this.area += other.area;
+            for (int i = 0; i < 3; i++) {
+                this.direct[i] += other.direct[i];
+            }
+        }
+
+        public void finish() {
+            float invArea = 1f / this.area;
+            this.x *= invArea;
+            this.y *= invArea;
+            this.z *= invArea;
+            float length = (float) Math.sqrt((this.nx * this.nx) + (this.ny * this.ny) + (this.nz * this.nz));
+            this.nx /= length;
+            this.ny /= length;
+            this.nz /= length;
+            for (int i = 0; i < 3; i++) {
+                this.direct[i] *= invArea;
+            }
+        }
+
+        public float axis(int axis) {
+            return switch (axis) {
+                case 0 ->
+                    this.x;
+                case 1 ->
+                    this.y;
+                default ->
+                    this.z;
+            };
+        }
+    }
+
+    private static class Node {
+
+        private final int start;
+        private final int end;
+        private Node left = null;
+        private Node right = null;
+        private float x = 0f;
+        private float y = 0f;
+        private float z = 0f;
+        private float radius = 0f;
+        private float area = 0f;
+        private final float[] power = new float[6 * 3];
+
+        public Node(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean isLeaf() {
+            return this.left == null;
+        }
+    }
+
+    private static class Target {
+
+        private final Cube cube;
+        private final CPUBaker.Surface surface;
+        private final int[] direct;
+        private final Map<Long, Patch> patches = new HashMap<>();
+        private int[] result = null;
+
+        public Target(Cube cube, int[] direct) {
+            this.cube = cube;
+            this.surface = new CPUBaker.Surface(cube.getModel(), cube.getLightmapWidth(), cube.getLightmapHeight());
+            this.direct = direct;
+        }
+    }
+
+    private static class Gather {
+
+        private final Vector3f origin = new Vector3f();
+        private final Vector3f direction = new Vector3f();
+        private final Vector3f localOrigin = new Vector3f();
+        private final Vector3f localDirection = new Vector3f();
+        private final Vector2f result = new Vector2f();
+    }
+
+    private static float unpackFloat(int bits, int mantissaBits) {
+        int exponent = (bits >>> mantissaBits) & 0x1F;
+        float mantissa = (bits & ((1 << mantissaBits) - 1)) / ((float) (1 << mantissaBits));
+        if (exponent == 0) {
+            return mantissa * 0x1p-14f;
+        }
+        if (exponent == 0x1F) {
+            return 65000f;
+        }
+        return (1f + mantissa) * Math.scalb(1f, exponent - 15);
+    }
+
+    private static int packFloat(float value, int mantissaBits) {
+        if (!(value > 0f)) {
+            return 0;
+        }
+        int exponent = Math.getExponent(value) + 15;
+        if (exponent >= 0x1F) {
+            return (0x1E << mantissaBits) | ((1 << mantissaBits) - 1);
+        }
+        if (exponent <= 0) {
+            int mantissa = Math.round(value * 0x1p14f * (1 << mantissaBits));
+            return Math.min(mantissa, 1 << mantissaBits);
+        }
+        int mantissa = Math.round(((value / Math.scalb(1f, exponent - 15)) - 1f) * (1 << mantissaBits));
+        int packed = (exponent << mantissaBits) + mantissa;
+        return Math.min(packed, (0x1E << mantissaBits) | ((1 << mantissaBits) - 1));
+    }
+
+    private static void unpack(int texel, float[] dest) {
+        dest[0] = unpackFloat(texel & 0x7FF, 6);
+        dest[1] = unpackFloat((texel >>> 11) & 0x7FF, 6);
+        dest[2] = unpackFloat((texel >>> 22) & 0x3FF, 5);
+    }
+
+    private static int pack(float r, float g, float b) {
+        return packFloat(r, 6) | (packFloat(g, 6) << 11) | (packFloat(b, 5) << 22);
+    }
+
+    private static long key(int face, Vector3f position, int offsetX, int offsetY, int offsetZ) {
+        long cx = ((long) Math.floor(position.x() / PATCH_SIZE)) + offsetX;
+        long cy = ((long) Math.floor(position.y() / PATCH_SIZE)) + offsetY;
+        long cz = ((long) Math.floor(position.z() / PATCH_SIZE)) + offsetZ;
+        return (((long) face) << 60) | ((cx & 0xFFFFFL) << 40) | ((cy & 0xFFFFFL) << 20) | (cz & 0xFFFFFL);
+    }
+
+    private final CPUBaker baker;
+    private final Map<Cube, int[]> directLightmaps = new IdentityHashMap<>();
+    private float albedo = DEFAULT_ALBEDO;
+    private float threshold = DEFAULT_THRESHOLD;
+    private int generation = 0;
+    private boolean running = false;
+    private volatile List<Target> finished = null;
+    private volatile int finishedGeneration = -1;
+    private volatile int bounces = 0;
+
+    public RadiosityBaker(CPUBaker baker) {
+        this.baker = baker;
+    }
+
+    public float getAlbedo() {
+        return albedo;
+    }
+
+    /**
+     * Sets the fraction of the incoming light reflected by every surface, the
+     * lightmaps are multiplied by the cube textures when rendered, so the
+     * bounce uses a single gray albedo.
+     *
+     * @param albedo the albedo from 0 to 1
+     */
+    public void setAlbedo(float albedo) {
+        if (albedo < 0f || albedo >= 1f) {
+            throw new IllegalArgumentException("Albedo must be in [0, 1): " + albedo);
+        }
+        this.albedo = albedo;
+    }
+
+    public float getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets when the bounces stop, as a fraction of the direct energy.
+     *
+     * @param threshold the threshold
+     */
+    public void setThreshold(float threshold) {
+        if (threshold <= 0f) {
+            throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+        }
+        this.threshold = threshold;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the number of bounces gathered by the last finished pass.
+     *
+     * @return the number of bounces
+     */
+    public int getBounces() {
+        return bounces;
+    }
+
+    public void cubeRemoved(Cube cube) {
+        this.directLightmaps.remove(cube);
+    }
+
+    /**
+     * Discards the pass being computed, it must be called before the
+     * lightmaps are written again.
+     */
+    public void cancel() {
+        this.generation++;
+        this.running = false;
+    }
+
+    /**
+     * Starts a pass over the cubes in the background, the rebaked cubes and
+     * the cubes seen for the first time have their direct lightmaps read back.
+     *
+     * @param cubes every cube of the scene
+     * @param rebaked the cubes whose lightmap only has direct light
+     */
+    public void bounce(List<Cube> cubes, Set<Cube> rebaked) {
+        cancel();
+
+        Set<Cube> present = Collections.newSetFromMap(new IdentityHashMap<>());
+        present.addAll(cubes);
+        this.directLightmaps.keySet().retainAll(present);
+
+        List<Target> targets = new ArrayList<>();
+        for (Cube c : cubes) {
+            int[] direct = this.directLightmaps.get(c);
+            if (direct == null || rebaked.contains(c) || direct.length != c.getLightmapWidth() * c.getLightmapHeight()) {
+                direct = c.readPackedLightmap();
+                this.directLightmaps.put(c, direct);
+            }
+            targets.add(new Target(c, direct));
+        }
+
+        int passGeneration = this.generation;
+        float passAlbedo = this.albedo;
+        float passThreshold = this.threshold;
+        this.running = true;
+
+        Thread thread = new Thread(() -> {
+            try {
+                int passBounces = compute(targets, passAlbedo, passThreshold);
+                this.bounces = passBounces;
+                this.finished = targets;
+                this.finishedGeneration = passGeneration;
+            } catch (Throwable t) {
+                t.printStackTrace(System.err);
+            }
+        }, "Radiosity Baker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Uploads the result of the last pass if it finished and was not
+     * cancelled, it must be called on the main thread.
+     *
+     * @param cubes every cube of the scene
+     */
+    public void update(List<Cube> cubes) {
+        List<Target> targets = this.finished;
+        if (targets == null) {
+            return;
+        }
+        this.finished = null;
+        if (this.finishedGeneration != this.generation) {
+            return;
+        }
+        this.running = false;
+
+        Set<Cube> present = Collections.newSetFromMap(new IdentityHashMap<>());
+        present.addAll(cubes);
+        for (Target t : targets) {
+            if (present.contains(t.cube) && t.result.length == t.cube.getLightmapWidth() * t.cube.getLightmapHeight()) {
+                t.cube.uploadPackedLightmap(t.result);
+            }
+        }
+    }
+
+    /**
+     * Cancels the pass being computed and uploads the direct lightmaps back.
+     *
+     * @param cubes every cube of the scene
+     */
+    public void restore(List<Cube> cubes) {
+        cancel();
+        for (Cube c : cubes) {
+            int[] direct = this.directLightmaps.get(c);
+            if (direct != null && direct.length == c.getLightmapWidth() * c.getLightmapHeight()) {
+                c.uploadPackedLightmap(direct);
+            }
+        }
+        this.directLightmaps.clear();
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) {
+        List<Future<Void>> results = this.baker.getPool().invokeAll(tasks);
+        for (Future<Void> f : results) {
+            try {
+                f.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    private int compute(List<Target> targets, float passAlbedo, float passThreshold) {
+        List<CPUBaker.Occluder> occluders = new ArrayList<>();
+        for (Target t : targets) {
+            occluders.add(new CPUBaker.Occluder(t.surface.getModel()));
+        }
+
+        buildPatches(targets);
+
+        List<Patch> patchList = new ArrayList<>();
+        for (Target t : targets) {
+            patchList.addAll(t.patches.values());
+        }
+        if (patchList.isEmpty()) {
+            for (Target t : targets) {
+                t.result = t.direct;
+            }
+            return 0;
+        }
+        Patch[] patches = patchList.toArray(Patch[]::new);
+        Node root = build(patches, 0, patches.length);
+
+        float directEnergy = 0f;
+        for (Patch p : patches) {
+            for (int i = 0; i < 3; i++) {
+                p.emitted[i] = p.direct[i] * passAlbedo;
+                directEnergy += p.direct[i] * p.area;
+            }
+        }
+
+        int bounce = 0;
+        while (bounce < MAX_BOUNCES) {
+            aggregate(root, patches);
+
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int start = 0; start < patches.length; start += PATCHES_PER_TASK) {
+                int taskStart = start;
+                int taskEnd = Math.min(start + PATCHES_PER_TASK, patches.length);
+                tasks.add(() -> {
+                    Gather g = new Gather();
+                    for (int i = taskStart; i < taskEnd; i++) {
+                        Patch p = patches[i];
+                        Arrays.fill(p.gathered, 0f);
+                        gather(g, p, root, patches, occluders);
+                    }
+                    return null;
+                });
+            }
+            invokeAll(tasks);
+            bounce++;
+
+            float energy = 0f;
+            for (Patch p : patches) {
+                for (int i = 0; i < 3; i++) {
+                    p.indirect[i] += p.gathered[i];
+                    p.emitted[i] = p.gathered[i] * passAlbedo;
+                    energy += p.gathered[i] * p.area;
+                }
+            }
+            if (energy <= directEnergy * passThreshold) {
+                break;
+            }
+        }
+
+        writeLightmaps(targets);
+
+        return bounce;
+    }
+
+    private void buildPatches(List<Target> targets) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Target t : targets) {
+            CPUBaker.Surface s = t.surface;
+            VerticesStream stream = this.baker.verticesOf(s.getWidth(), s.getHeight());
+            float[] streamVertices = stream.vertices();
+            int[] streamIndices = stream.indices();
+
+            tasks.add(() -> {
+                float[] texel = new float[3];
+                CPUBaker.rasterize(s, streamVertices, streamIndices, 0, s.getHeight(), (x, y, face, position, normal, area) -> {
+                    Patch p = t.patches.computeIfAbsent(key(face, position, 0, 0, 0), (k) -> new Patch(face));
+                    unpack(t.direct[(y * s.getWidth()) + x], texel);
+
+                    Patch sample = new Patch(face);
+                    sample.x = position.x() * area;
+                    sample.y = position.y() * area;
+                    sample.z = position.z() * area;
+                    sample.nx = normal.x() * area;
+                    sample.ny = normal.y() * area;
+                    sample.nz = normal.z() * area;
+                    sample.area = area;
+                    for (int i = 0; i < 3; i++) {
+                        sample.direct[i] = texel[i] * area;
+                    }
+                    p.add(sample);
+                });
+                for (Patch p : t.patches.values()) {
+                    p.finish();
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    private static Node build(Patch[] patches, int start, int end) {
+        Node node = new Node(start, end);
+
+        for (int i = start; i < end; i++) {
+            Patch p = patches[i];
+            node.x += p.x * p.area;
+            node.y += p.y * p.area;
+            node.z += p.z * p.area;
+            node.area += p.area;
+        }
+        node.x /= node.area;
+        node.y /= node.area;
+        node.z /= node.area;
+        for (int i = start; i < end; i++) {
+            Patch p = patches[i];
+            float dx = p.x - node.x;
+            float dy = p.y - node.y;
+            float dz = p.z - node.z;
+            node.radius = Math.max(node.radius, (float) Math.sqrt((dx * dx) + (dy * dy) + (dz * dz)) + PATCH_SIZE);
+        }
+
+        if (end - start <= LEAF_SIZE) {
+            return node;
+        }
+
+        float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int i = start; i < end; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                min[axis] = Math.min(min[axis], patches[i].axis(axis));
+                max[axis] = Math.max(max[axis], patches[i].axis(axis));
+            }
+        }
+        int splitAxis = 0;
+        for (int axis = 1; axis < 3; axis++) {
+            if ((max[axis] - min[axis]) > (max[splitAxis] - min[splitAxis])) {
+                splitAxis = axis;
+            }
+        }
+        int sortAxis = splitAxis;
+        Arrays.sort(patches, start, end, Comparator.comparingDouble((p) -> p.axis(sortAxis)));
+
+        int middle = (start + end) >>> 1;
+        node.left = build(patches, start, middle);
+        node.right = build(patches, middle, end);
+        return node;
+    }
+
+    private static void aggregate(Node node, Patch[] patches) {
+        Arrays.fill(node.power, 0f);
+        if (!node.isLeaf()) {
+            aggregate(node.left, patches);
+            aggregate(node.right, patches);
+            for (int i = 0; i < node.power.length; i++) {
+                node.power[i] = node.left.power[i] + node.right.power[i];
+            }
+            return;
+        }
+        for (int i = node.start; i < node.end; i++) {
+            Patch p = patches[i];
+            float[] normal = {p.nx, p.ny, p.nz};
+            for (int axis = 0; axis < 3; axis++) {
+                float positive = Math.max(normal[axis], 0f) * p.area;
+                float negative = Math.max(-normal[axis], 0f) * p.area;
+                for (int c = 0; c < 3; c++) {
+                    node.power[(((axis * 2) + 0) * 3) + c] += p.emitted[c] * positive;
+                    node.power[(((axis * 2) + 1) * 3) + c] += p.emitted[c] * negative;
+                }
+            }
+        }
+    }
+
+    private static boolean visible(Gather g, Patch receiver, float dx, float dy, float dz, float maxDistance, List<CPUBaker.Occluder> occluders) {
+        if (maxDistance <= 0f) {
+            return true;
+        }
+        g.origin.set(receiver.nx, receiver.ny, receiver.nz).mul(CPUBaker.SHADOW_BIAS).add(receiver.x, receiver.y, receiver.z);
+        g.direction.set(dx, dy, dz);
+        for (CPUBaker.Occluder o : occluders) {
+            if (o.intersects(g.origin, g.direction, maxDistance, g.localOrigin, g.localDirection, g.result)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void gather(Gather g, Patch receiver, Node node, Patch[] patches, List<CPUBaker.Occluder> occluders) {
+        float dx = node.x - receiver.x;
+        float dy = node.y - receiver.y;
+        float dz = node.z - receiver.z;
+        float distanceSquared = (dx * dx) + (dy * dy) + (dz * dz);
+        float distance = (float) Math.sqrt(distanceSquared);
+
+        //fully behind the receiver
+        if (((dx * receiver.nx) + (dy * receiver.ny) + (dz * receiver.nz)) < -node.radius) {
+            return;
+        }
+
+        if (distance > node.radius && node.radius < OPENING_RATIO * distance) {
+            dx /= distance;
+            dy /= distance;
+            dz /= distance;
+            float cosReceiver = (dx * receiver.nx) + (dy * receiver.ny) + (dz * receiver.nz);
+            if (cosReceiver <= 0f) {
+                return;
+            }
+            if (!visible(g, receiver, dx, dy, dz, distance - node.radius, occluders)) {
+                return;
+            }
+            //power leaving the cluster towards the receiver, from the six axis projections
+            float wx = Math.abs(dx);
+            float wy = Math.abs(dy);
+            float wz = Math.abs(dz);
+            int faceX = (dx < 0f ? 0 : 1);
+            int faceY = (dy < 0f ? 2 : 3);
+            int faceZ = (dz < 0f ? 4 : 5);
+            float factor = cosReceiver / ((((float) Math.PI) * distanceSquared) + node.area);
+            for (int c = 0; c < 3; c++) {
+                float power = (wx * node.power[(faceX * 3) + c])
+                        + (wy * node.power[(faceY * 3) + c])
+                        + (wz * node.power[(faceZ * 3) + c]);
+                receiver.gathered[c] += power * factor;
+            }
+            return;
+        }
+
+        if (!node.isLeaf()) {
+            gather(g, receiver, node.left, patches, occluders);
+            gather(g, receiver, node.right, patches, occluders);
+            return;
+        }
+
+        for (int i = node.start; i < node.end; i++) {
+            Patch emitter = patches[i];
+            if (emitter == receiver) {
+                continue;
+            }
+            float ex = emitter.x - receiver.x;
+            float ey = emitter.y - receiver.y;
+            float ez = emitter.z - receiver.z;
+            float emitterDistanceSquared = (ex * ex) + (ey * ey) + (ez * ez);
+            float emitterDistance = (float) Math.sqrt(emitterDistanceSquared);
+            if (emitterDistance <= 0f) {
+                continue;
+            }
+            ex /= emitterDistance;
+            ey /= emitterDistance;
+            ez /= emitterDistance;
+            float cosReceiver = (ex * receiver.nx) + (ey * receiver.ny) + (ez * receiver.nz);
+            float cosEmitter = -((ex * emitter.nx) + (ey * emitter.ny) + (ez * emitter.nz));
+            if (cosReceiver <= 0f || cosEmitter <= 0f) {
+                continue;
+            }
+            if (!visible(g, receiver, ex, ey, ez, emitterDistance - (CPUBaker.SHADOW_BIAS * 2f), occluders)) {
+                continue;
+            }
+            float factor = (cosReceiver * cosEmitter * emitter.area) / ((((float) Math.PI) * emitterDistanceSquared) + emitter.area);
+            for (int c = 0; c < 3; c++) {
+                receiver.gathered[c] += emitter.emitted[c] * factor;
+            }
+        }
+    }
+
+    private void writeLightmaps(List<Target> targets) {
+        float radius = PATCH_SIZE * 1.5f;
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Target t : targets) {
+            CPUBaker.Surface s = t.surface;
+            VerticesStream stream = this.baker.verticesOf(s.getWidth(), s.getHeight());
+            float[] streamVertices = stream.vertices();
+            int[] streamIndices = stream.indices();
+            t.result = t.direct.clone();
+
+            for (int row = 0; row < s.getHeight(); row += CPUBaker.ROWS_PER_TASK) {
+                int yStart = row;
+                int yEnd = Math.min(row + CPUBaker.ROWS_PER_TASK, s.getHeight());
+                tasks.add(() -> {
+                    float[] texel = new float[3];
+                    float[] indirect = new float[3];
+                    CPUBaker.rasterize(s, streamVertices, streamIndices, yStart, yEnd, (x, y, face, position, normal, area) -> {
+                        //tent filter over the patches of the same face around the texel
+                        Arrays.fill(indirect, 0f);
+                        float weights = 0f;
+                        for (int ox = -1; ox <= 1; ox++) {
+                            for (int oy = -1; oy <= 1; oy++) {
+                                for (int oz = -1; oz <= 1; oz++) {
+                                    Patch p = t.patches.get(key(face, position, ox, oy, oz));
+                                    if (p == null) {
+                                        continue;
+                                    }
+                                    float distance = position.distance(p.x, p.y, p.z);
+                                    float weight = Math.max(1f - (distance / radius), 0f);
+                                    for (int c = 0; c < 3; c++) {
+                                        indirect[c] += p.indirect[c] * weight;
+                                    }
+                                    weights += weight;
+                                }
+                            }
+                        }
+                        if (weights <= 0f) {
+                            return;
+                        }
+                        int index = (y * s.getWidth()) + x;
+                        unpack(t.direct[index], texel);
+                        t.result[index] = pack(
+                                texel[0] + (indirect[0] / weights),
+                                texel[1] + (indirect[1] / weights),
+                                texel[2] + (indirect[2] / weights)
+                        );
+                    });
+                    return null;
+                });
+            }
+        }
+        invokeAll(tasks);
+    }
+
+}
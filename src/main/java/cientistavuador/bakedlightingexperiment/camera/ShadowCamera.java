@@ -97,6 +97,42 @@ public class ShadowCamera implements Camera {
             }
         }
 
+        fit(lightDir, zMult);
+    }
+
+    /**
+     * Fits the camera to the corners of a box instead of a camera frustum.
+     *
+     * @param min the min corner of the box
+     * @param max the max corner of the box
+     * @param lightDir the light direction
+     * @param zMult the z multiplier
+     */
+    public void update(Vector3dc min, Vector3dc max, Vector3fc lightDir, float zMult) {
+        int arrayIndex = 0;
+        for (int x = 0; x < 2; x++) {
+            for (int y = 0; y < 2; y++) {
+                for (int z = 0; z < 2; z++) {
+                    Vector4d corner = this.frustumCorners[arrayIndex];
+                    if (corner == null) {
+                        corner = new Vector4d();
+                        this.frustumCorners[arrayIndex] = corner;
+                    }
+                    corner.set(
+                            (x == 0 ? min.x() : max.x()),
+                            (y == 0 ? min.y() : max.y()),
+                            (z == 0 ? min.z() : max.z()),
+                            1.0
+                    );
+                    arrayIndex++;
+                }
+            }
+        }
+
+        fit(lightDir, zMult);
+    }
+
+    private void fit(Vector3fc lightDir, float zMult) {
         this.position.zero();
         for (int i = 0; i < this.frustumCorners.length; i++) {
             Vector4d corner = this.frustumCorners[i];
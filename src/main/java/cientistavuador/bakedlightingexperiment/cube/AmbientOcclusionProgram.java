@@ -0,0 +1,237 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube;
+
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
+import cientistavuador.bakedlightingexperiment.util.ProgramCompiler;
+import java.nio.FloatBuffer;
+import org.joml.Matrix3fc;
+import org.joml.Matrix4fc;
+import org.joml.Vector3fc;
+import static org.lwjgl.opengl.GL33C.*;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Bakes ambient occlusion into the ambient occlusion texture of a lightmap
+ * atlas page from a batch of orthographic depth views of the scene.
+ * <p>
+ * Every view looks at the scene from one direction of a sphere, a texel
+ * facing the direction is occluded if the first surface seen by the view is
+ * in front of the texel and closer than the occlusion radius. The visibility
+ * of every facing direction is weighted by its cosine.
+ *
+ * @author Cien
+ */
+public class AmbientOcclusionProgram {
+
+    public static final int MAX_VIEWS = 16;
+    public static final int VIEW_SIZE = 1024;
+
+    public static final String VERTEX_SHADER
+            = 
+            """
+            #version 330 core
+            
+            uniform mat4 model;
+            uniform mat3 normalModel;
+            uniform vec4 lightmapRegion;
+            
+            layout (location = 0) in vec3 vertexPosition;
+            layout (location = 1) in vec3 vertexNormal;
+            //
+            layout (location = 3) in vec2 vertexLightmap;
+            layout (location = 4) in vec2 vertexLightmapPosition;
+            
+            out vec3 position;
+            out vec3 normal;
+            
+            void main() {
+                vec4 pos = model * vec4(vertexPosition, 1.0);
+                pos.xyz /= pos.w;
+                position = pos.xyz;
+                
+                normal = normalize(normalModel * vertexNormal);
+                
+                vec2 regionPosition = lightmapRegion.xy + (((vertexLightmapPosition + 1.0) / 2.0) * lightmapRegion.zw);
+                gl_Position = vec4((regionPosition * 2.0) - 1.0, 1.0, 1.0);
+            }
+            """;
+
+    public static final String FRAGMENT_SHADER
+            = 
+            """
+            #version 330 core
+            
+            #define MAX_VIEWS %d
+            
+            uniform sampler2DArray depthViews;
+            uniform mat4 viewProjectionView[MAX_VIEWS];
+            uniform vec3 viewDirection[MAX_VIEWS];
+            uniform int views;
+            uniform float viewDepth;
+            uniform float radius;
+            uniform float bias;
+            uniform float weight;
+            
+            in vec3 position;
+            in vec3 normal;
+            
+            layout (location = 0) out vec4 outputColor;
+            
+            void main() {
+                vec3 n = normalize(normal);
+                vec3 offsetPosition = position + (n * bias);
+                
+                float visibility = 0.0;
+                for (int i = 0; i < views; i++) {
+                    float cosTheta = dot(n, viewDirection[i]);
+                    if (cosTheta <= 0.0) {
+                        continue;
+                    }
+                    
+                    vec4 coords = viewProjectionView[i] * vec4(offsetPosition, 1.0);
+                    coords.xyz = ((coords.xyz / coords.w) + 1.0) / 2.0;
+                    
+                    float occluder = texture(depthViews, vec3(coords.xy, float(i))).r;
+                    float distance = (coords.z - occluder) * viewDepth;
+                    if (distance > bias && distance < radius) {
+                        continue;
+                    }
+                    
+                    visibility += cosTheta;
+                }
+                
+                outputColor = vec4(visibility * weight, 0.0, 0.0, 1.0);
+            }
+            """.formatted(MAX_VIEWS);
+
+    public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
+    public static final int MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "model");
+    public static final int NORMAL_MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "normalModel");
+    public static final int LIGHTMAP_REGION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapRegion");
+    public static final int DEPTH_VIEWS_INDEX = glGetUniformLocation(SHADER_PROGRAM, "depthViews");
+    public static final int VIEW_PROJECTION_VIEW_INDEX = glGetUniformLocation(SHADER_PROGRAM, "viewProjectionView");
+    public static final int VIEW_DIRECTION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "viewDirection");
+    public static final int VIEWS_INDEX = glGetUniformLocation(SHADER_PROGRAM, "views");
+    public static final int VIEW_DEPTH_INDEX = glGetUniformLocation(SHADER_PROGRAM, "viewDepth");
+    public static final int RADIUS_INDEX = glGetUniformLocation(SHADER_PROGRAM, "radius");
+    public static final int BIAS_INDEX = glGetUniformLocation(SHADER_PROGRAM, "bias");
+    public static final int WEIGHT_INDEX = glGetUniformLocation(SHADER_PROGRAM, "weight");
+
+    public static final int DEPTH_VIEWS = glGenTextures();
+    public static final ContextObject DEPTH_VIEWS_FBO = ContextObject.framebuffer("ambient occlusion views", () -> {
+        glFramebufferTextureLayer(GL_DRAW_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, DEPTH_VIEWS, 0, 0);
+        glDrawBuffers(GL_NONE);
+    });
+
+    static {
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, DEPTH_VIEWS);
+        glTexImage3D(
+                GL_TEXTURE_2D_ARRAY,
+                0,
+                GL_DEPTH_COMPONENT24,
+                VIEW_SIZE,
+                VIEW_SIZE,
+                MAX_VIEWS,
+                0,
+                GL_DEPTH_COMPONENT,
+                GL_FLOAT,
+                0
+        );
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+    }
+
+    public static void init() {
+
+    }
+
+    /**
+     * Sends the views of a batch, must be called with the program in use.
+     *
+     * @param projectionViews the projection view of every view
+     * @param directions the direction from the scene to every view
+     * @param views the number of views in the batch
+     * @param viewDepth the distance between the near and far planes
+     * @param radius the ambient occlusion radius
+     * @param bias the normal and depth bias in world units
+     * @param weight the inverse of the expected sum of the cosines of all
+     * views of every batch
+     */
+    public static void sendPerBatchUniforms(
+            Matrix4fc[] projectionViews, Vector3fc[] directions, int views,
+            float viewDepth, float radius, float bias, float weight
+    ) {
+        if (views > MAX_VIEWS) {
+            throw new IllegalArgumentException("Too many views: " + views + ", max is " + MAX_VIEWS);
+        }
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            FloatBuffer matrices = stack.mallocFloat(MAX_VIEWS * 4 * 4);
+            FloatBuffer vectors = stack.mallocFloat(MAX_VIEWS * 3);
+            for (int i = 0; i < views; i++) {
+                projectionViews[i].get(i * 4 * 4, matrices);
+                directions[i].get(i * 3, vectors);
+            }
+            matrices.limit(views * 4 * 4);
+            vectors.limit(views * 3);
+            glUniformMatrix4fv(VIEW_PROJECTION_VIEW_INDEX, false, matrices);
+            glUniform3fv(VIEW_DIRECTION_INDEX, vectors);
+        }
+
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, DEPTH_VIEWS);
+        glUniform1i(DEPTH_VIEWS_INDEX, 0);
+
+        glUniform1i(VIEWS_INDEX, views);
+        glUniform1f(VIEW_DEPTH_INDEX, viewDepth);
+        glUniform1f(RADIUS_INDEX, radius);
+        glUniform1f(BIAS_INDEX, bias);
+        glUniform1f(WEIGHT_INDEX, weight);
+    }
+
+    public static void sendPerDrawUniforms(LightmapAtlas.Region region, Matrix4fc model, Matrix3fc normalModel) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            FloatBuffer matrixBuffer = stack.mallocFloat(4 * 4);
+            model.get(matrixBuffer);
+            glUniformMatrix4fv(MODEL_INDEX, false, matrixBuffer);
+
+            FloatBuffer normalBuffer = stack.mallocFloat(3 * 3);
+            normalModel.get(normalBuffer);
+            glUniformMatrix3fv(NORMAL_MODEL_INDEX, false, normalBuffer);
+        }
+        glUniform4f(LIGHTMAP_REGION_INDEX, region.getOffsetX(), region.getOffsetY(), region.getScaleX(), region.getScaleY());
+    }
+
+    private AmbientOcclusionProgram() {
+
+    }
+}
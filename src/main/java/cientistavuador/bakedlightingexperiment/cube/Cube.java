@@ -28,18 +28,26 @@ package cientistavuador.bakedlightingexperiment.cube;
 
 import cientistavuador.bakedlightingexperiment.Main;
 import static cientistavuador.bakedlightingexperiment.Main.DEFAULT_CLEAR_COLOR;
+import cientistavuador.bakedlightingexperiment.cube.light.BakeLightsProgram;
 import cientistavuador.bakedlightingexperiment.cube.light.Light;
-import cientistavuador.bakedlightingexperiment.cube.light.ShadowCubeMapFBO;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowAtlas;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowFilter;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowInstances;
 import cientistavuador.bakedlightingexperiment.cube.light.ShadowMap2DFBO;
 import cientistavuador.bakedlightingexperiment.cube.light.directional.DirectionalLightProgram;
 import cientistavuador.bakedlightingexperiment.cube.light.point.PointLightProgram;
+import cientistavuador.bakedlightingexperiment.cube.light.sky.SkyLightProgram;
+import cientistavuador.bakedlightingexperiment.cube.light.sky.SkyShadowAtlas;
 import cientistavuador.bakedlightingexperiment.cube.light.spot.SpotLightProgram;
-import java.nio.ByteBuffer;
+import cientistavuador.bakedlightingexperiment.cube.probe.ProbeProgram;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import org.joml.Matrix3f;
 import org.joml.Matrix4f;
 import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
 import static org.lwjgl.opengl.GL33C.*;
-import org.lwjgl.system.MemoryUtil;
 
 /**
  *
@@ -52,67 +60,341 @@ public class Cube {
     public static final int CUBE_TEXTURE = CubeTexture.CUBE_TEXTURE;
     public static final int SHADER_PROGRAM = CubeProgram.SHADER_PROGRAM;
     public static final int VAO = CubeVAO.VAO;
+    
+    public static final float DEFAULT_TEXELS_PER_UNIT = 32f;
+    public static final int MIN_LIGHTMAP_SIZE = 32;
+    public static final int MAX_LIGHTMAP_SIZE = LightmapAtlas.PAGE_SIZE;
+    public static final int LIGHTMAP_SIZE_STEP = 32;
+    
+    public static int lightmapSize(Matrix4fc model, float texelsPerUnit) {
+        Vector3f x = model.transformDirection(new Vector3f(1f, 0f, 0f));
+        Vector3f y = model.transformDirection(new Vector3f(0f, 1f, 0f));
+        Vector3f z = model.transformDirection(new Vector3f(0f, 0f, 1f));
+        
+        float maxFaceArea = Math.max(
+                new Vector3f(x).cross(y).length(),
+                Math.max(
+                        new Vector3f(y).cross(z).length(),
+                        new Vector3f(z).cross(x).length()
+                )
+        );
+        
+        //each face chart is 127 texels wide on the 512x512 layout of CubeVertices
+        float faceTexels = (float) Math.sqrt(maxFaceArea) * texelsPerUnit;
+        int size = (int) Math.ceil(faceTexels * (512f / 127f));
+        size = ((size + (LIGHTMAP_SIZE_STEP - 1)) / LIGHTMAP_SIZE_STEP) * LIGHTMAP_SIZE_STEP;
+        
+        return Math.max(MIN_LIGHTMAP_SIZE, Math.min(size, MAX_LIGHTMAP_SIZE));
+    }
 
     public static void init() {
         DirectionalLightProgram.init();
         PointLightProgram.init();
         SpotLightProgram.init();
-        ShadowCubeMapFBO.init();
+        BakeLightsProgram.init();
+        LightmapCompositeProgram.init();
+        LightmapAtlas.init();
+        ShadowAtlas.init();
+        ShadowFilter.init();
         ShadowMap2DFBO.init();
+        ShadowInstances.init();
+        LightmapRefiner.init();
+        SkyLightProgram.init();
+        SkyShadowAtlas.init();
+        ProbeProgram.init();
     }
 
     private final Matrix4f model = new Matrix4f();
     private final Matrix3f normalModel = new Matrix3f();
+    private final Vector3f center = new Vector3f();
+    private final float radius;
+    private final Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+    private final Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
     private final boolean groundCube;
-    private final int fbo = glGenFramebuffers();
-    private final int lightmap = glGenTextures();
-    private final int auxTexture = glGenTextures();
+    private final float texelsPerUnit;
+    private final int lightmapSize;
+    private final LightmapAtlas.Region region;
     
-    private int readLightmap = this.lightmap;
-    private int drawLightmap = this.auxTexture;
-    private int attachment = GL_COLOR_ATTACHMENT1;
+    private final Map<Light, Integer> layers = new IdentityHashMap<>();
+    private final Map<Light, Vector3f> layerColors = new IdentityHashMap<>();
 
-    public Cube(Matrix4fc model, boolean groundCube) {
+    public Cube(Matrix4fc model, boolean groundCube, float texelsPerUnit) {
         this.groundCube = groundCube;
+        this.texelsPerUnit = texelsPerUnit;
+        this.lightmapSize = lightmapSize(model, texelsPerUnit);
         this.model.set(model);
         this.normalModel.set(new Matrix4f(model).invert().transpose());
+        
+        model.transformPosition(this.center.set(0f, 0f, 0f));
+        float maxRadius = 0f;
+        Vector3f corner = new Vector3f();
+        for (int i = 0; i < 8; i++) {
+            corner.set(
+                    (i & 1) == 0 ? -0.5f : 0.5f,
+                    (i & 2) == 0 ? -0.5f : 0.5f,
+                    (i & 4) == 0 ? -0.5f : 0.5f
+            );
+            model.transformPosition(corner);
+            maxRadius = Math.max(maxRadius, corner.distance(this.center));
+            this.min.min(corner);
+            this.max.max(corner);
+        }
+        this.radius = maxRadius;
+
+        this.region = LightmapAtlas.allocate(getLightmapWidth(), getLightmapHeight());
+        LightmapAtlas.Region newRegion = this.region;
+        LightmapAtlas.whenUnlocked(() -> {
+            newRegion.clear(1.0f, 1.0f, 1.0f);
+            newRegion.clearAmbientOcclusion(1.0f);
+        });
+    }
+
+    public Cube(Matrix4fc model, boolean groundCube) {
+        this(model, groundCube, DEFAULT_TEXELS_PER_UNIT);
+    }
+
+    public boolean isGroundCube() {
+        return groundCube;
+    }
+
+    public Matrix4f getModel() {
+        return model;
+    }
+
+    public Matrix3f getNormalModel() {
+        return normalModel;
+    }
+
+    public Vector3fc getCenter() {
+        return center;
+    }
+
+    public float getRadius() {
+        return radius;
+    }
+
+    public Vector3fc getMin() {
+        return min;
+    }
 
-        int width = CubeVAO.getLightmapWidth();
-        int height = CubeVAO.getLightmapHeight();
+    public Vector3fc getMax() {
+        return max;
+    }
+
+    public float getTexelsPerUnit() {
+        return texelsPerUnit;
+    }
 
-        if (groundCube) {
-            width = CubeVAO.GROUND_CUBE_WIDTH;
-            height = CubeVAO.GROUND_CUBE_HEIGHT;
+    public int getVAO() {
+        return CubeVAO.getVAO(this.lightmapSize, this.lightmapSize);
+    }
+
+    public int getLightmap() {
+        return this.region.getPage().lightmap();
+    }
+
+    public LightmapAtlas.Region getLightmapRegion() {
+        return this.region;
+    }
+
+    public int getLightmapWidth() {
+        return this.lightmapSize;
+    }
+
+    public int getLightmapHeight() {
+        return this.lightmapSize;
+    }
+
+    public int getAmbientOcclusion() {
+        return this.region.getPage().ambientOcclusion();
+    }
+
+    public void uploadAmbientOcclusion(float[] data) {
+        int width = getLightmapWidth();
+        int height = getLightmapHeight();
+        
+        if (data.length != width * height) {
+            throw new IllegalArgumentException("Ambient occlusion data has " + data.length + " floats, expected " + (width * height));
         }
+        
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, getAmbientOcclusion());
+        glTexSubImage2D(GL_TEXTURE_2D, 0, this.region.getX(), this.region.getY(), width, height, GL_RED, GL_FLOAT, data);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    public void clearAmbientOcclusion() {
+        this.region.clearAmbientOcclusion(1.0f);
+    }
 
-        ByteBuffer mem = MemoryUtil.memCalloc((width * height) * 3);
-        MemoryUtil.memSet(mem, 255);
+    /**
+     * Renders the batch of views sent with
+     * {@link AmbientOcclusionProgram#sendPerBatchUniforms} to the ambient
+     * occlusion of the cube.
+     *
+     * @param accumulate if the batch is added to the previous batches instead
+     * of replacing them
+     */
+    public void updateAmbientOcclusion(boolean accumulate) {
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, this.region.getPage().ambientOcclusionFbo());
+        glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0});
+        glViewport(0, 0, LightmapAtlas.PAGE_SIZE, LightmapAtlas.PAGE_SIZE);
+        
+        if (accumulate) {
+            glBlendFunc(GL_ONE, GL_ONE);
+        } else {
+            glDisable(GL_BLEND);
+        }
+        glUseProgram(AmbientOcclusionProgram.SHADER_PROGRAM);
+        glBindVertexArray(getVAO());
+        
+        AmbientOcclusionProgram.sendPerDrawUniforms(this.region, this.model, this.normalModel);
+        glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
+        
+        Main.countDrawCall(Cube.NUMBER_OF_INDICES);
+        
+        glBindVertexArray(0);
+        glUseProgram(0);
+        glEnable(GL_BLEND);
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        
+        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+    }
 
+    public void uploadLightmap(float[] data) {
+        int width = getLightmapWidth();
+        int height = getLightmapHeight();
+        
+        if (data.length != width * height * 3) {
+            throw new IllegalArgumentException("Lightmap data has " + data.length + " floats, expected " + (width * height * 3));
+        }
+        
         glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, getLightmap());
+        glTexSubImage2D(GL_TEXTURE_2D, 0, this.region.getX(), this.region.getY(), width, height, GL_RGB, GL_FLOAT, data);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
 
-        //create lightmap
-        glBindTexture(GL_TEXTURE_2D, this.lightmap);
-        glTexImage2D(
-                GL_TEXTURE_2D,
-                0,
-                GL_R11F_G11F_B10F,
-                width,
-                height,
-                0,
-                GL_RGB,
-                GL_UNSIGNED_BYTE,
-                mem
-        );
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+    /**
+     * Reads the lightmap back packed as R11G11B10, the format of the lightmap
+     * atlas, in the same layout used by {@link #uploadLightmap(float[])}.
+     *
+     * @return the packed lightmap texels
+     */
+    public int[] readPackedLightmap() {
+        int[] data = new int[getLightmapWidth() * getLightmapHeight()];
+        
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, this.region.getPage().fbo());
+        glReadBuffer(GL_COLOR_ATTACHMENT0);
+        glReadPixels(this.region.getX(), this.region.getY(), getLightmapWidth(), getLightmapHeight(), GL_RGB, GL_UNSIGNED_INT_10F_11F_11F_REV, data);
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, 0);
+        
+        return data;
+    }
+    
+    public void uploadPackedLightmap(int[] data) {
+        int width = getLightmapWidth();
+        int height = getLightmapHeight();
+        
+        if (data.length != width * height) {
+            throw new IllegalArgumentException("Lightmap data has " + data.length + " texels, expected " + (width * height));
+        }
+        
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, getLightmap());
+        glTexSubImage2D(GL_TEXTURE_2D, 0, this.region.getX(), this.region.getY(), width, height, GL_RGB, GL_UNSIGNED_INT_10F_11F_11F_REV, data);
         glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    public void clearLightmap() {
+        this.region.clear(0.0f, 0.0f, 0.0f);
+    }
+
+    public void updateLightmap(Light light) {
+        if (!light.isEnabled()) {
+            return;
+        }
+
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, this.region.getPage().fbo());
+        glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0});
+        glViewport(0, 0, LightmapAtlas.PAGE_SIZE, LightmapAtlas.PAGE_SIZE);
+        
+        //the light is added on top of what is already in the lightmap
+        glBlendFunc(GL_ONE, GL_ONE);
+        light.render(this);
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        
+        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+    }
+    
+    /**
+     * Adds the lights of the batch uploaded with
+     * {@link BakeLightsProgram#uploadBatch(java.util.List)} to the lightmap in
+     * a single additive draw.
+     *
+     * @param lightMask which lights of the batch affect this cube, bit i is
+     * the light at index i
+     */
+    public void updateLightmap(int lightMask) {
+        if (lightMask == 0) {
+            return;
+        }
+        
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, this.region.getPage().fbo());
+        glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0});
+        glViewport(0, 0, LightmapAtlas.PAGE_SIZE, LightmapAtlas.PAGE_SIZE);
+        
+        renderBakedLights(
+                this.region.getOffsetX(), this.region.getOffsetY(),
+                this.region.getScaleX(), this.region.getScaleY(),
+                lightMask
+        );
+        
+        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+    }
+    
+    /**
+     * Adds the lights of the uploaded batch to an area of the bound
+     * framebuffer, the area is in normalized coordinates of the viewport.
+     *
+     * @param offsetX the x offset of the area
+     * @param offsetY the y offset of the area
+     * @param scaleX the width of the area
+     * @param scaleY the height of the area
+     * @param lightMask which lights of the batch affect this cube
+     */
+    void renderBakedLights(float offsetX, float offsetY, float scaleX, float scaleY, int lightMask) {
+        glBlendFunc(GL_ONE, GL_ONE);
+        glUseProgram(BakeLightsProgram.SHADER_PROGRAM);
+        glBindVertexArray(getVAO());
+        
+        BakeLightsProgram.sendPerBatchUniforms();
+        BakeLightsProgram.sendPerDrawUniforms(offsetX, offsetY, scaleX, scaleY, this.model, this.normalModel, lightMask);
+        glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
+        
+        Main.countDrawCall(Cube.NUMBER_OF_INDICES);
+        
+        glBindVertexArray(0);
+        glUseProgram(0);
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+    }
 
-        MemoryUtil.memFree(mem);
+    public boolean hasLightmapLayer(Light light) {
+        return this.layers.containsKey(light);
+    }
+
+    public int getNumberOfLightmapLayers() {
+        return this.layers.size();
+    }
 
-        //create auxTexture
-        glBindTexture(GL_TEXTURE_2D, this.auxTexture);
+    public static int createLightmapLayerTexture(int width, int height) {
+        int texture = glGenTextures();
+        
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, texture);
         glTexImage2D(
                 GL_TEXTURE_2D,
                 0,
@@ -124,96 +406,131 @@ public class Cube {
                 GL_UNSIGNED_BYTE,
                 0
         );
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
         glBindTexture(GL_TEXTURE_2D, 0);
+        
+        return texture;
+    }
 
-        //create fbo
-        glBindFramebuffer(GL_FRAMEBUFFER, fbo);
-
-        glFramebufferTexture(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, this.lightmap, 0);
-        glFramebufferTexture(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT1, this.auxTexture, 0);
+    public void renderLightmapLayer(Light light, int layer) {
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, this.region.getPage().fbo());
+        glFramebufferTexture(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT1, layer, 0);
+        glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT1});
+        glViewport(0, 0, getLightmapWidth(), getLightmapHeight());
         
-        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
-            throw new RuntimeException("Could not create FBO!");
+        glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        glClear(GL_COLOR_BUFFER_BIT);
+        glClearColor(DEFAULT_CLEAR_COLOR.x(), DEFAULT_CLEAR_COLOR.y(), DEFAULT_CLEAR_COLOR.z(), 1.0f);
+        
+        if (light.isEnabled()) {
+            //moves the atlas region to the origin of the layer
+            glViewport(-this.region.getX(), -this.region.getY(), LightmapAtlas.PAGE_SIZE, LightmapAtlas.PAGE_SIZE);
+            light.render(this);
         }
         
-        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        glFramebufferTexture(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT1, 0, 0);
+        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
     }
 
-    public boolean isGroundCube() {
-        return groundCube;
+    public void addLightmapLayer(int layer, Vector3fc weight) {
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, this.region.getPage().fbo());
+        glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0});
+        glViewport(this.region.getX(), this.region.getY(), this.region.getWidth(), this.region.getHeight());
+        
+        glBlendFunc(GL_ONE, GL_ONE);
+        glUseProgram(LightmapCompositeProgram.SHADER_PROGRAM);
+        glBindVertexArray(LightmapCompositeProgram.VAO.get());
+        
+        LightmapCompositeProgram.sendUniforms(layer, this.region.getX(), this.region.getY(), weight);
+        glDrawArrays(GL_TRIANGLES, 0, 3);
+        
+        Main.countDrawCall(3);
+        
+        glBindVertexArray(0);
+        glUseProgram(0);
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        
+        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
     }
 
-    public Matrix4f getModel() {
-        return model;
+    public void updateLightmapLayer(Light light) {
+        Integer layer = this.layers.get(light);
+        if (layer == null) {
+            layer = createLightmapLayerTexture(getLightmapWidth(), getLightmapHeight());
+            this.layers.put(light, layer);
+        }
+        this.layerColors.put(light, new Vector3f(light.getDiffuseColor()));
+        
+        renderLightmapLayer(light, layer);
     }
 
-    public Matrix3f getNormalModel() {
-        return normalModel;
+    /**
+     * Returns true if the layer of a light can be brought to the current color
+     * of the light by scaling it, a channel baked at zero has nothing to scale
+     * and the layer must be rendered again.
+     *
+     * @param light the light
+     * @return true if the layer can be recolored when composited
+     */
+    public boolean isLightmapLayerScalable(Light light) {
+        Vector3fc baked = this.layerColors.get(light);
+        if (baked == null) {
+            return false;
+        }
+        Vector3fc current = light.getDiffuseColor();
+        return (baked.x() != 0f || current.x() == 0f)
+                && (baked.y() != 0f || current.y() == 0f)
+                && (baked.z() != 0f || current.z() == 0f);
     }
 
-    public int getLightmap() {
-        return this.readLightmap;
+    public boolean removeLightmapLayer(Light light) {
+        Integer layer = this.layers.remove(light);
+        this.layerColors.remove(light);
+        if (layer == null) {
+            return false;
+        }
+        glDeleteTextures(layer);
+        return true;
     }
 
-    public void clearLightmap() {
-        int width = CubeVAO.getLightmapWidth();
-        int height = CubeVAO.getLightmapHeight();
-
-        if (isGroundCube()) {
-            width = CubeVAO.GROUND_CUBE_WIDTH;
-            height = CubeVAO.GROUND_CUBE_HEIGHT;
+    public void clearLightmapLayers() {
+        for (Integer layer : this.layers.values()) {
+            glDeleteTextures(layer);
         }
-
-        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, this.fbo);
-        glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0, GL_COLOR_ATTACHMENT1});
-
-        glViewport(0, 0, width, height);
-        glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-
-        glClear(GL_COLOR_BUFFER_BIT);
-
-        glClearColor(DEFAULT_CLEAR_COLOR.x(), DEFAULT_CLEAR_COLOR.y(), DEFAULT_CLEAR_COLOR.z(), 1.0f);
-        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
-        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+        this.layers.clear();
+        this.layerColors.clear();
     }
 
-    public void updateLightmap(Light light) {
-        if (!light.isEnabled()) {
-            return;
-        }
+    public void compositeLightmapLayers() {
+        clearLightmap();
         
-        int width = CubeVAO.getLightmapWidth();
-        int height = CubeVAO.getLightmapHeight();
-
-        if (isGroundCube()) {
-            width = CubeVAO.GROUND_CUBE_WIDTH;
-            height = CubeVAO.GROUND_CUBE_HEIGHT;
+        Vector3f weight = new Vector3f();
+        for (Map.Entry<Light, Integer> e : this.layers.entrySet()) {
+            Light light = e.getKey();
+            if (!light.isEnabled()) {
+                continue;
+            }
+            
+            Vector3fc current = light.getDiffuseColor();
+            Vector3fc baked = this.layerColors.get(light);
+            weight.set(
+                    baked.x() == 0f ? 0f : current.x() / baked.x(),
+                    baked.y() == 0f ? 0f : current.y() / baked.y(),
+                    baked.z() == 0f ? 0f : current.z() / baked.z()
+            );
+            
+            addLightmapLayer(e.getValue(), weight);
         }
-
-        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, this.fbo);
-        glDrawBuffers(new int[]{this.attachment});
-        glViewport(0, 0, width, height);
-        
-        light.render(this, this.readLightmap);
-
-        int a = this.readLightmap;
-        int b = this.drawLightmap;
-        this.readLightmap = b;
-        this.drawLightmap = a;
-        this.attachment = (this.attachment == GL_COLOR_ATTACHMENT0 ? GL_COLOR_ATTACHMENT1 : GL_COLOR_ATTACHMENT0);
-        
-        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
-        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
     }
 
     public void free() {
-        glDeleteFramebuffers(this.fbo);
-        glDeleteTextures(this.auxTexture);
-        glDeleteTextures(this.lightmap);
+        clearLightmapLayers();
+        LightmapAtlas.free(this.region);
     }
 
 }
@@ -45,6 +45,7 @@ public class CubeProgram {
             
             uniform mat4 projectionView;
             uniform mat4 model;
+            uniform vec4 lightmapRegion;
             
             layout (location = 0) in vec3 vertexPosition;
             //
@@ -56,7 +57,7 @@ public class CubeProgram {
             
             void main() {
                 texCoords = vertexTexture;
-                texCoordsLightmap = vertexLightmap;
+                texCoordsLightmap = lightmapRegion.xy + (vertexLightmap * lightmapRegion.zw);
                 gl_Position = projectionView * model * vec4(vertexPosition, 1.0);
             }
             """;
@@ -68,6 +69,7 @@ public class CubeProgram {
             
             uniform sampler2D cubeTexture;
             uniform sampler2D lightmapTexture;
+            uniform sampler2D ambientOcclusionTexture;
             
             layout (location = 0) out vec4 outputColor;
             
@@ -80,6 +82,7 @@ public class CubeProgram {
                 textureColor.rgb = pow(textureColor.rgb, vec3(2.2));
                 
                 vec3 lightColor = texture(lightmapTexture, texCoordsLightmap).rgb;
+                lightColor *= texture(ambientOcclusionTexture, texCoordsLightmap).r;
                 textureColor.rgb *= lightColor;
                 
                 textureColor.rgb = pow(textureColor.rgb, vec3(1.0/2.2));
@@ -91,8 +94,10 @@ public class CubeProgram {
     public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
     public static final int PROJECTION_VIEW_INDEX = glGetUniformLocation(SHADER_PROGRAM, "projectionView");
     public static final int MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "model");
+    public static final int LIGHTMAP_REGION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapRegion");
     public static final int CUBE_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "cubeTexture");
     public static final int LIGHTMAP_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapTexture");
+    public static final int AMBIENT_OCCLUSION_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "ambientOcclusionTexture");
     
     private static void sendMatrix(int location, Matrix4fc matrix) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
@@ -110,12 +115,19 @@ public class CubeProgram {
         glUniform1i(CUBE_TEXTURE_INDEX, 0);
     }
 
-    public static void sendPerDrawUniforms(int lightmapTexture, Matrix4fc model) {
-        sendMatrix(MODEL_INDEX, model);
-        
+    public static void sendLightmapTexture(int lightmapTexture, int ambientOcclusionTexture) {
         glActiveTexture(GL_TEXTURE1);
         glBindTexture(GL_TEXTURE_2D, lightmapTexture);
         glUniform1i(LIGHTMAP_TEXTURE_INDEX, 1);
+        
+        glActiveTexture(GL_TEXTURE2);
+        glBindTexture(GL_TEXTURE_2D, ambientOcclusionTexture);
+        glUniform1i(AMBIENT_OCCLUSION_TEXTURE_INDEX, 2);
+    }
+
+    public static void sendPerDrawUniforms(LightmapAtlas.Region region, Matrix4fc model) {
+        sendMatrix(MODEL_INDEX, model);
+        glUniform4f(LIGHTMAP_REGION_INDEX, region.getOffsetX(), region.getOffsetY(), region.getScaleX(), region.getScaleY());
     }
     
     private CubeProgram() {
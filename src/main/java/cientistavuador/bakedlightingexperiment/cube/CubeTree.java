@@ -0,0 +1,368 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.joml.FrustumIntersection;
+import org.joml.Intersectionf;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+/**
+ * Dynamic bounding volume hierarchy over the world space bounds of cubes.
+ * <p>
+ * Cubes are inserted next to the sibling that grows the tree surface area
+ * the least and the tree is kept balanced with rotations, so inserting and
+ * removing a cube only touches the path to the root.
+ *
+ * @author Cien
+ */
+public class CubeTree {
+
+    private static class Node {
+
+        private Node parent;
+        private Node left;
+        private Node right;
+        private Cube cube;
+        private int height = 0;
+        private final Vector3f min = new Vector3f();
+        private final Vector3f max = new Vector3f();
+
+        private boolean isLeaf() {
+            return this.left == null;
+        }
+
+        private void fit() {
+            this.min.set(this.left.min).min(this.right.min);
+            this.max.set(this.right.max).max(this.left.max);
+            this.height = 1 + Math.max(this.left.height, this.right.height);
+        }
+    }
+
+    private static float area(Vector3fc min, Vector3fc max) {
+        float x = max.x() - min.x();
+        float y = max.y() - min.y();
+        float z = max.z() - min.z();
+        return 2f * ((x * y) + (y * z) + (z * x));
+    }
+
+    private static float unionArea(Node a, Node b) {
+        float x = Math.max(a.max.x, b.max.x) - Math.min(a.min.x, b.min.x);
+        float y = Math.max(a.max.y, b.max.y) - Math.min(a.min.y, b.min.y);
+        float z = Math.max(a.max.z, b.max.z) - Math.min(a.min.z, b.min.z);
+        return 2f * ((x * y) + (y * z) + (z * x));
+    }
+
+    private final Map<Cube, Node> leaves = new IdentityHashMap<>();
+    private Node root = null;
+
+    public CubeTree() {
+
+    }
+
+    public int size() {
+        return this.leaves.size();
+    }
+
+    public boolean contains(Cube cube) {
+        return this.leaves.containsKey(cube);
+    }
+
+    public int getHeight() {
+        return (this.root == null ? 0 : this.root.height);
+    }
+
+    public void insert(Cube cube) {
+        if (this.leaves.containsKey(cube)) {
+            throw new IllegalArgumentException("Cube is already in the tree!");
+        }
+
+        Node leaf = new Node();
+        leaf.cube = cube;
+        leaf.min.set(cube.getMin());
+        leaf.max.set(cube.getMax());
+        this.leaves.put(cube, leaf);
+
+        if (this.root == null) {
+            this.root = leaf;
+            return;
+        }
+
+        //descends to the sibling with the lowest surface area cost
+        Node sibling = this.root;
+        while (!sibling.isLeaf()) {
+            float area = area(sibling.min, sibling.max);
+            float combinedArea = unionArea(sibling, leaf);
+
+            float cost = 2f * combinedArea;
+            float inheritanceCost = 2f * (combinedArea - area);
+
+            float leftCost = childCost(sibling.left, leaf, inheritanceCost);
+            float rightCost = childCost(sibling.right, leaf, inheritanceCost);
+
+            if (cost < leftCost && cost < rightCost) {
+                break;
+            }
+            sibling = (leftCost < rightCost ? sibling.left : sibling.right);
+        }
+
+        Node oldParent = sibling.parent;
+        Node newParent = new Node();
+        newParent.parent = oldParent;
+        newParent.left = sibling;
+        newParent.right = leaf;
+        sibling.parent = newParent;
+        leaf.parent = newParent;
+        newParent.fit();
+
+        if (oldParent == null) {
+            this.root = newParent;
+        } else if (oldParent.left == sibling) {
+            oldParent.left = newParent;
+        } else {
+            oldParent.right = newParent;
+        }
+
+        refit(newParent.parent);
+    }
+
+    private static float childCost(Node child, Node leaf, float inheritanceCost) {
+        float combinedArea = unionArea(child, leaf);
+        if (child.isLeaf()) {
+            return combinedArea + inheritanceCost;
+        }
+        return (combinedArea - area(child.min, child.max)) + inheritanceCost;
+    }
+
+    public boolean remove(Cube cube) {
+        Node leaf = this.leaves.remove(cube);
+        if (leaf == null) {
+            return false;
+        }
+
+        if (leaf == this.root) {
+            this.root = null;
+            return true;
+        }
+
+        Node parent = leaf.parent;
+        Node grandParent = parent.parent;
+        Node sibling = (parent.left == leaf ? parent.right : parent.left);
+
+        if (grandParent == null) {
+            this.root = sibling;
+            sibling.parent = null;
+            return true;
+        }
+
+        if (grandParent.left == parent) {
+            grandParent.left = sibling;
+        } else {
+            grandParent.right = sibling;
+        }
+        sibling.parent = grandParent;
+
+        refit(grandParent);
+        return true;
+    }
+
+    public void clear() {
+        this.leaves.clear();
+        this.root = null;
+    }
+
+    private void refit(Node node) {
+        while (node != null) {
+            node = balance(node);
+            node.fit();
+            node = node.parent;
+        }
+    }
+
+    private void replaceChild(Node parent, Node oldChild, Node newChild) {
+        newChild.parent = parent;
+        if (parent == null) {
+            this.root = newChild;
+        } else if (parent.left == oldChild) {
+            parent.left = newChild;
+        } else {
+            parent.right = newChild;
+        }
+    }
+
+    //promotes the taller grandchild when the subtree is out of balance
+    private Node balance(Node a) {
+        if (a.isLeaf() || a.height < 2) {
+            return a;
+        }
+
+        Node b = a.left;
+        Node c = a.right;
+        int balance = c.height - b.height;
+
+        if (balance > 1) {
+            Node f = c.left;
+            Node g = c.right;
+
+            c.left = a;
+            replaceChild(a.parent, a, c);
+            a.parent = c;
+
+            if (f.height > g.height) {
+                c.right = f;
+                a.right = g;
+                g.parent = a;
+            } else {
+                c.right = g;
+                a.right = f;
+                f.parent = a;
+            }
+            a.fit();
+            c.fit();
+            return c;
+        }
+
+        if (balance < -1) {
+            Node d = b.left;
+            Node e = b.right;
+
+            b.left = a;
+            replaceChild(a.parent, a, b);
+            a.parent = b;
+
+            if (d.height > e.height) {
+                b.right = d;
+                a.left = e;
+                e.parent = a;
+            } else {
+                b.right = e;
+                a.left = d;
+                d.parent = a;
+            }
+            a.fit();
+            b.fit();
+            return b;
+        }
+
+        return a;
+    }
+
+    private interface NodeTest {
+
+        public boolean test(Vector3fc min, Vector3fc max);
+    }
+
+    private List<Cube> query(NodeTest test, List<Cube> dest) {
+        if (this.root == null) {
+            return dest;
+        }
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(this.root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (!test.test(node.min, node.max)) {
+                continue;
+            }
+            if (node.isLeaf()) {
+                dest.add(node.cube);
+            } else {
+                stack.push(node.right);
+                stack.push(node.left);
+            }
+        }
+        return dest;
+    }
+
+    public List<Cube> queryFrustum(FrustumIntersection frustum, List<Cube> dest) {
+        return query((min, max) -> frustum.testAab(min, max), dest);
+    }
+
+    public List<Cube> querySphere(Vector3fc center, float radius, List<Cube> dest) {
+        float radiusSquared = radius * radius;
+        return query((min, max) -> Intersectionf.testAabSphere(
+                min.x(), min.y(), min.z(),
+                max.x(), max.y(), max.z(),
+                center.x(), center.y(), center.z(), radiusSquared
+        ), dest);
+    }
+
+    /**
+     * Finds the cubes that may be inside of a cone, the bounds of every node
+     * are tested as a bounding sphere so the test is conservative.
+     *
+     * @param apex the apex of the cone
+     * @param direction the direction of the cone
+     * @param angle the half angle of the cone in radians
+     * @param range the length of the cone
+     * @param dest the list to add the cubes to
+     * @return the dest list
+     */
+    public List<Cube> queryCone(Vector3fc apex, Vector3fc direction, float angle, float range, List<Cube> dest) {
+        float directionLength = direction.length();
+        float dx = direction.x() / directionLength;
+        float dy = direction.y() / directionLength;
+        float dz = direction.z() / directionLength;
+        return query((min, max) -> {
+            float cx = (min.x() + max.x()) * 0.5f;
+            float cy = (min.y() + max.y()) * 0.5f;
+            float cz = (min.z() + max.z()) * 0.5f;
+            float ex = (max.x() - min.x()) * 0.5f;
+            float ey = (max.y() - min.y()) * 0.5f;
+            float ez = (max.z() - min.z()) * 0.5f;
+            float radius = (float) Math.sqrt((ex * ex) + (ey * ey) + (ez * ez));
+
+            float vx = cx - apex.x();
+            float vy = cy - apex.y();
+            float vz = cz - apex.z();
+            float distance = (float) Math.sqrt((vx * vx) + (vy * vy) + (vz * vz));
+            if (distance <= radius) {
+                return true;
+            }
+            if ((distance - radius) > range) {
+                return false;
+            }
+            float cos = ((vx * dx) + (vy * dy) + (vz * dz)) / distance;
+            float theta = (float) Math.acos(Math.min(Math.max(cos, -1f), 1f));
+            float angularRadius = (float) Math.asin(radius / distance);
+            return (theta - angularRadius) <= angle;
+        }, dest);
+    }
+
+    public List<Cube> queryRay(Vector3fc origin, Vector3fc direction, float maxDistance, List<Cube> dest) {
+        Vector2f result = new Vector2f();
+        return query((min, max) -> Intersectionf.intersectRayAab(origin, direction, min, max, result)
+                && result.x <= maxDistance
+                && result.y >= 0f, dest);
+    }
+
+}
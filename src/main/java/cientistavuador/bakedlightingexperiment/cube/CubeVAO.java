@@ -26,6 +26,9 @@
  */
 package cientistavuador.bakedlightingexperiment.cube;
 
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import static org.lwjgl.opengl.GL33C.*;
 
 /**
@@ -38,37 +41,43 @@ public class CubeVAO {
     public static final int GROUND_CUBE_WIDTH = 4096;
     public static final int GROUND_CUBE_HEIGHT = 4096;
     
+    public static final int DEFAULT_LIGHTMAP_WIDTH = 512;
+    public static final int DEFAULT_LIGHTMAP_HEIGHT = 512;
+    
     public static final int VAO;
-    private static int vbo;
-    private static int lightmapWidth;
-    private static int lightmapHeight;
-
-    public static int getLightmapHeight() {
-        return lightmapHeight;
-    }
-
-    public static int getLightmapWidth() {
-        return lightmapWidth;
-    }
+    private static final Map<Long, ContextObject> vaos = new ConcurrentHashMap<>();
     
     static {
-        GROUND_CUBE_VAO = generateVao(GROUND_CUBE_WIDTH, GROUND_CUBE_HEIGHT);
-        VAO = generateVao(512, 512);
+        GROUND_CUBE_VAO = getVAO(GROUND_CUBE_WIDTH, GROUND_CUBE_HEIGHT);
+        VAO = getVAO(DEFAULT_LIGHTMAP_WIDTH, DEFAULT_LIGHTMAP_HEIGHT);
     }
     
-    private static int generateVao(int width, int height) {
-        int vao = glGenVertexArrays();
-        glBindVertexArray(vao);
-
-        VerticesStream stream = generateVertices(width, height);
+    public static int getVAO(int lightmapWidth, int lightmapHeight) {
+        long key = (((long) lightmapWidth) << 32) | (lightmapHeight & 0xFFFFFFFFL);
+        return vaos.computeIfAbsent(key, (k) -> generateVao(lightmapWidth, lightmapHeight)).get();
+    }
+    
+    private static ContextObject generateVao(int width, int height) {
+        VerticesStream stream = CubeVertices.generate(CubeTexture.TEXTURE_WIDTH, CubeTexture.TEXTURE_HEIGHT, width, height);
 
+        //the buffers are shared, only the vertex array is created per context
         int ebo = glGenBuffers();
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
-        glBufferData(GL_ELEMENT_ARRAY_BUFFER, stream.indices(), GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, ebo);
+        glBufferData(GL_ARRAY_BUFFER, stream.indices(), GL_STATIC_DRAW);
 
-        vbo = glGenBuffers();
+        int vbo = glGenBuffers();
         glBindBuffer(GL_ARRAY_BUFFER, vbo);
         glBufferData(GL_ARRAY_BUFFER, stream.vertices(), GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        return ContextObject.vertexArray(() -> {
+            setupVao(ebo, vbo);
+        });
+    }
+    
+    private static void setupVao(int ebo, int vbo) {
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
 
         glEnableVertexAttribArray(0);
         glVertexAttribPointer(0, 3, GL_FLOAT, false, Cube.VERTEX_SIZE_ELEMENTS * Float.BYTES, 0);
@@ -86,91 +95,6 @@ public class CubeVAO {
         glVertexAttribPointer(4, 2, GL_FLOAT, false, Cube.VERTEX_SIZE_ELEMENTS * Float.BYTES, (3 + 3 + 2 + 2) * Float.BYTES);
         
         glBindBuffer(GL_ARRAY_BUFFER, 0);
-
-        glBindVertexArray(0);
-        
-        return vao;
-    }
-    
-    public static void updateLightMapSize(int width, int height) {
-        VerticesStream vertices = generateVertices(width, height);
-        
-        glBindBuffer(GL_ARRAY_BUFFER, vbo);
-        glBufferData(GL_ARRAY_BUFFER, vertices.vertices(), GL_STATIC_DRAW);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
-    }
-    
-    private static VerticesStream generateVertices(int width, int height) {
-        VerticesStream stream = new VerticesStream(CubeTexture.TEXTURE_WIDTH, CubeTexture.TEXTURE_HEIGHT, width, height);
-
-        float scaleX = 1.0f;
-        float scaleY = 1.0f;
-        float scaleZ = 1.0f;
-
-        float sizeX = 0.5f * scaleX;
-        float sizeY = 0.5f * scaleY;
-        float sizeZ = 0.5f * scaleZ;
-
-        float xP = sizeX;
-        float xN = -sizeX;
-        float yP = sizeY;
-        float yN = -sizeY;
-        float zP = sizeZ;
-        float zN = -sizeZ;
-
-        //TOP
-        stream.offset();
-        stream.vertex(xN, yP, zP, 0f, 1f, 0f, 85f, 352f, 0f, 0f);
-        stream.vertex(xP, yP, zP, 0f, 1f, 0f, 212f, 352f, 1f, 0f);
-        stream.vertex(xN, yP, zN, 0f, 1f, 0f, 85f, 479f, 0f, 1f);
-        stream.vertex(xP, yP, zN, 0f, 1f, 0f, 212f, 479f, 1f, 1f);
-        stream.quad(0, 3, 2, 0, 1, 3);
-        
-        //BOTTOM
-        stream.offset();
-        stream.vertex(xN, yN, zP, 0f, -1f, 0f, 425f, 352f, 1f, 0f);
-        stream.vertex(xN, yN, zN, 0f, -1f, 0f, 425f, 479f, 1f, 1f);
-        stream.vertex(xP, yN, zP, 0f, -1f, 0f, 298f, 352f, 0f, 0f);
-        stream.vertex(xP, yN, zN, 0f, -1f, 0f, 298f, 479f, 0f, 1f);
-        stream.quad(0, 3, 2, 0, 1, 3);
-        
-        //LEFT
-        stream.offset();
-        stream.vertex(xN, yP, zN, -1f, 0f, 0f, 85f, 319f, 0f, 1f);
-        stream.vertex(xN, yN, zN, -1f, 0f, 0f, 85f, 192f, 0f, 0f);
-        stream.vertex(xN, yN, zP, -1f, 0f, 0f, 212f, 192f, 1f, 0f);
-        stream.vertex(xN, yP, zP, -1f, 0f, 0f, 212f, 319f, 1f, 1f);
-        stream.quad(0, 1, 3, 1, 2, 3);
-        
-        //RIGHT
-        stream.offset();
-        stream.vertex(xP, yP, zN, 1f, 0f, 0f, 425f, 319f, 1f, 1f);
-        stream.vertex(xP, yN, zP, 1f, 0f, 0f, 298f, 192f, 0f, 0f);
-        stream.vertex(xP, yN, zN, 1f, 0f, 0f, 425f, 192f, 1f, 0f);
-        stream.vertex(xP, yP, zP, 1f, 0f, 0f, 298f, 319f, 0f, 1f);
-        stream.quad(0, 3, 2, 2, 3, 1);
-        
-        //FRONT
-        stream.offset();
-        stream.vertex(xN, yP, zN, 0f, 0f, -1f, 212f, 159f, 1f, 1f);
-        stream.vertex(xP, yN, zN, 0f, 0f, -1f, 85f, 32f, 0f, 0f);
-        stream.vertex(xN, yN, zN, 0f, 0f, -1f, 212f, 32f, 1f, 0f);
-        stream.vertex(xP, yP, zN, 0f, 0f, -1f, 85f, 159f, 0f, 1f);
-        stream.quad(0, 3, 2, 3, 1, 2);
-        
-        //BACK
-        stream.offset();
-        stream.vertex(xN, yP, zP, 0f, 0f, 1f, 298f, 159f, 0f, 1f);
-        stream.vertex(xN, yN, zP, 0f, 0f, 1f, 298f, 32f, 0f, 0f);
-        stream.vertex(xP, yN, zP, 0f, 0f, 1f, 425f, 32f, 1f, 0f);
-        stream.vertex(xP, yP, zP, 0f, 0f, 1f, 425f, 159f, 1f, 1f);
-        stream.quad(0, 1, 3, 3, 1, 2);
-        
-        lightmapWidth = width;
-        lightmapHeight = height;
-        
-        
-        return stream;
     }
     
     private CubeVAO() {
@@ -0,0 +1,368 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube;
+
+import cientistavuador.bakedlightingexperiment.Main;
+import static cientistavuador.bakedlightingexperiment.Main.DEFAULT_CLEAR_COLOR;
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * Packs the lightmap charts of every cube into a few large shared pages
+ * using a shelf packer, every page also has a single channel ambient
+ * occlusion texture with the same layout.
+ * <p>
+ * While a bake runs on another context the atlas is locked, freeing regions
+ * and the first clear of new regions are queued until it is unlocked, so a
+ * region is never reused or cleared under a bake that is still writing it.
+ *
+ * @author Cien
+ */
+public class LightmapAtlas {
+
+    public static final int PAGE_SIZE = 4096;
+
+    public static class Region {
+
+        private final Page page;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private boolean freed = false;
+
+        private Region(Page page, int x, int y, int width, int height) {
+            this.page = page;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        public Page getPage() {
+            return page;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public float getOffsetX() {
+            return this.x / ((float) PAGE_SIZE);
+        }
+
+        public float getOffsetY() {
+            return this.y / ((float) PAGE_SIZE);
+        }
+
+        public float getScaleX() {
+            return this.width / ((float) PAGE_SIZE);
+        }
+
+        public float getScaleY() {
+            return this.height / ((float) PAGE_SIZE);
+        }
+
+        public boolean isFreed() {
+            return freed;
+        }
+
+        public void clear(float r, float g, float b) {
+            clear(this.page.fbo(), r, g, b);
+        }
+
+        public void clearAmbientOcclusion(float value) {
+            clear(this.page.ambientOcclusionFbo(), value, value, value);
+        }
+
+        private void clear(int fbo, float r, float g, float b) {
+            if (this.freed) {
+                throw new IllegalStateException("Region was freed!");
+            }
+
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, fbo);
+            glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0});
+            glViewport(0, 0, PAGE_SIZE, PAGE_SIZE);
+
+            glEnable(GL_SCISSOR_TEST);
+            glScissor(this.x, this.y, this.width, this.height);
+            glClearColor(r, g, b, 1.0f);
+            glClear(GL_COLOR_BUFFER_BIT);
+            glClearColor(DEFAULT_CLEAR_COLOR.x(), DEFAULT_CLEAR_COLOR.y(), DEFAULT_CLEAR_COLOR.z(), 1.0f);
+            glDisable(GL_SCISSOR_TEST);
+
+            glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+        }
+    }
+
+    private static class Shelf {
+
+        private final int y;
+        private final int height;
+        private int x = 0;
+
+        public Shelf(int y, int height) {
+            this.y = y;
+            this.height = height;
+        }
+    }
+
+    public static class Page {
+
+        private final int lightmap = glGenTextures();
+        private final ContextObject fbo = ContextObject.framebuffer("lightmap atlas", () -> {
+            glFramebufferTexture(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, this.lightmap, 0);
+        });
+        private final int ambientOcclusion = glGenTextures();
+        private final ContextObject ambientOcclusionFbo = ContextObject.framebuffer("ambient occlusion atlas", () -> {
+            glFramebufferTexture(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, this.ambientOcclusion, 0);
+        });
+
+        private final List<Shelf> shelves = new ArrayList<>();
+        private final List<Region> freeRegions = new ArrayList<>();
+        private int shelvesHeight = 0;
+        private int allocated = 0;
+
+        private Page() {
+            glActiveTexture(GL_TEXTURE0);
+            glBindTexture(GL_TEXTURE_2D, this.lightmap);
+            glTexImage2D(
+                    GL_TEXTURE_2D,
+                    0,
+                    GL_R11F_G11F_B10F,
+                    PAGE_SIZE,
+                    PAGE_SIZE,
+                    0,
+                    GL_RGB,
+                    GL_UNSIGNED_BYTE,
+                    0
+            );
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+            glBindTexture(GL_TEXTURE_2D, this.ambientOcclusion);
+            glTexImage2D(
+                    GL_TEXTURE_2D,
+                    0,
+                    GL_R8,
+                    PAGE_SIZE,
+                    PAGE_SIZE,
+                    0,
+                    GL_RED,
+                    GL_UNSIGNED_BYTE,
+                    0
+            );
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+            glBindTexture(GL_TEXTURE_2D, 0);
+
+            this.fbo.get();
+            this.ambientOcclusionFbo.get();
+        }
+
+        public int fbo() {
+            return this.fbo.get();
+        }
+
+        public int lightmap() {
+            return lightmap;
+        }
+
+        public int ambientOcclusionFbo() {
+            return this.ambientOcclusionFbo.get();
+        }
+
+        public int ambientOcclusion() {
+            return ambientOcclusion;
+        }
+
+        public int getNumberOfRegions() {
+            return this.allocated;
+        }
+
+        private Region allocate(int width, int height) {
+            for (Iterator<Region> it = this.freeRegions.iterator(); it.hasNext();) {
+                Region r = it.next();
+                if (r.width == width && r.height == height) {
+                    it.remove();
+                    this.allocated++;
+                    return new Region(this, r.x, r.y, width, height);
+                }
+            }
+
+            Shelf best = null;
+            for (Shelf s : this.shelves) {
+                if (s.height < height || (s.x + width) > PAGE_SIZE) {
+                    continue;
+                }
+                if (best == null || s.height < best.height) {
+                    best = s;
+                }
+            }
+
+            if (best == null) {
+                if ((this.shelvesHeight + height) > PAGE_SIZE || width > PAGE_SIZE) {
+                    return null;
+                }
+                best = new Shelf(this.shelvesHeight, height);
+                this.shelves.add(best);
+                this.shelvesHeight += height;
+            }
+
+            Region region = new Region(this, best.x, best.y, width, height);
+            best.x += width;
+            this.allocated++;
+            return region;
+        }
+
+        private void free(Region region) {
+            this.allocated--;
+            if (this.allocated == 0) {
+                this.shelves.clear();
+                this.freeRegions.clear();
+                this.shelvesHeight = 0;
+                return;
+            }
+            this.freeRegions.add(region);
+        }
+
+        private void delete() {
+            this.fbo.delete();
+            this.ambientOcclusionFbo.delete();
+            glDeleteTextures(this.lightmap);
+            glDeleteTextures(this.ambientOcclusion);
+        }
+    }
+
+    private static final List<Page> pages = new ArrayList<>();
+    private static final List<Runnable> queued = new ArrayList<>();
+    private static boolean locked = false;
+
+    public static boolean isLocked() {
+        return locked;
+    }
+
+    /**
+     * Locks or unlocks the atlas, unlocking runs the queued changes in order,
+     * it must be called on the render thread.
+     *
+     * @param locked true to lock
+     */
+    public static void setLocked(boolean locked) {
+        LightmapAtlas.locked = locked;
+        if (locked) {
+            return;
+        }
+        List<Runnable> changes = new ArrayList<>(queued);
+        queued.clear();
+        for (Runnable r : changes) {
+            r.run();
+        }
+    }
+
+    /**
+     * Runs a change now or queues it until the atlas is unlocked.
+     *
+     * @param change the change
+     */
+    public static void whenUnlocked(Runnable change) {
+        if (locked) {
+            queued.add(change);
+            return;
+        }
+        change.run();
+    }
+
+    public static Region allocate(int width, int height) {
+        if (width <= 0 || height <= 0 || width > PAGE_SIZE || height > PAGE_SIZE) {
+            throw new IllegalArgumentException("Invalid lightmap size " + width + "x" + height + ", max is " + PAGE_SIZE + "x" + PAGE_SIZE);
+        }
+
+        for (Page p : pages) {
+            Region r = p.allocate(width, height);
+            if (r != null) {
+                return r;
+            }
+        }
+
+        Page page = new Page();
+        pages.add(page);
+        return page.allocate(width, height);
+    }
+
+    public static void free(Region region) {
+        if (region.freed) {
+            return;
+        }
+        if (locked) {
+            queued.add(() -> free(region));
+            return;
+        }
+        region.freed = true;
+
+        Page page = region.page;
+        page.free(region);
+
+        if (page.allocated == 0 && pages.size() > 1) {
+            pages.remove(page);
+            page.delete();
+        }
+    }
+
+    public static int getNumberOfPages() {
+        return pages.size();
+    }
+
+    public static void init() {
+
+    }
+
+    private LightmapAtlas() {
+
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube;
+
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
+import cientistavuador.bakedlightingexperiment.util.ProgramCompiler;
+import org.joml.Vector3fc;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ *
+ * @author Cien
+ */
+public class LightmapCompositeProgram {
+
+    public static final String VERTEX_SHADER
+            = 
+            """
+            #version 330 core
+            
+            void main() {
+                vec2 pos = vec2(float((gl_VertexID & 1) << 2), float((gl_VertexID & 2) << 1)) - 1.0;
+                gl_Position = vec4(pos, 0.0, 1.0);
+            }
+            """;
+
+    public static final String FRAGMENT_SHADER
+            = 
+            """
+            #version 330 core
+            
+            uniform sampler2D layerTexture;
+            uniform vec3 layerWeight;
+            uniform ivec2 layerOffset;
+            
+            layout (location = 0) out vec4 outputColor;
+            
+            void main() {
+                outputColor = vec4(texelFetch(layerTexture, ivec2(gl_FragCoord.xy) - layerOffset, 0).rgb * layerWeight, 1.0);
+            }
+            """;
+
+    public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
+    public static final int LAYER_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "layerTexture");
+    public static final int LAYER_WEIGHT_INDEX = glGetUniformLocation(SHADER_PROGRAM, "layerWeight");
+    public static final int LAYER_OFFSET_INDEX = glGetUniformLocation(SHADER_PROGRAM, "layerOffset");
+    public static final ContextObject VAO = ContextObject.vertexArray(() -> {
+        
+    });
+
+    public static void init() {
+        
+    }
+
+    public static void sendUniforms(int layerTexture, int offsetX, int offsetY, Vector3fc weight) {
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, layerTexture);
+        glUniform1i(LAYER_TEXTURE_INDEX, 0);
+        
+        glUniform3f(LAYER_WEIGHT_INDEX, weight.x(), weight.y(), weight.z());
+        glUniform2i(LAYER_OFFSET_INDEX, offsetX, offsetY);
+    }
+    
+    private LightmapCompositeProgram() {
+
+    }
+
+}
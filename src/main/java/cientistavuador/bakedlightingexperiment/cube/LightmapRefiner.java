@@ -0,0 +1,174 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube;
+
+import cientistavuador.bakedlightingexperiment.Main;
+import static cientistavuador.bakedlightingexperiment.Main.DEFAULT_CLEAR_COLOR;
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * Bakes a cube lightmap at a fraction of its resolution and upsamples it into
+ * the atlas region, used for coarse to fine previews.
+ * <p>
+ * The coarse levels are baked into a small scratch target and stretched over
+ * the region with a linear blit, the last level is baked straight into the
+ * region, every level replaces the previous one.
+ *
+ * @author Cien
+ */
+public class LightmapRefiner {
+
+    public static final int[] LEVELS = {16, 4, 1};
+    public static final int SCRATCH_SIZE = Cube.MAX_LIGHTMAP_SIZE / 4;
+
+    private static final int scratchTexture = glGenTextures();
+    private static final ContextObject scratchFbo = ContextObject.framebuffer("lightmap refiner", () -> {
+        glFramebufferTexture(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, scratchTexture, 0);
+    });
+
+    static {
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, scratchTexture);
+        glTexImage2D(
+                GL_TEXTURE_2D,
+                0,
+                GL_R11F_G11F_B10F,
+                SCRATCH_SIZE,
+                SCRATCH_SIZE,
+                0,
+                GL_RGB,
+                GL_UNSIGNED_BYTE,
+                0
+        );
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    private static int scaledSize(int size, int divisor) {
+        return Math.max((size + divisor - 1) / divisor, 1);
+    }
+
+    private static void validate(int divisor) {
+        if (divisor <= 0 || (divisor != 1 && Cube.MAX_LIGHTMAP_SIZE / divisor > SCRATCH_SIZE)) {
+            throw new IllegalArgumentException("Invalid divisor: " + divisor);
+        }
+    }
+
+    /**
+     * Binds and clears the target of a level.
+     *
+     * @param cube the cube
+     * @param divisor the resolution divisor of the level
+     */
+    public static void begin(Cube cube, int divisor) {
+        validate(divisor);
+        LightmapAtlas.Region region = cube.getLightmapRegion();
+        if (divisor == 1) {
+            region.clear(0f, 0f, 0f);
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, region.getPage().fbo());
+            glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0});
+            glViewport(0, 0, LightmapAtlas.PAGE_SIZE, LightmapAtlas.PAGE_SIZE);
+            return;
+        }
+
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, scratchFbo.get());
+        glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0});
+        glViewport(0, 0, SCRATCH_SIZE, SCRATCH_SIZE);
+
+        glEnable(GL_SCISSOR_TEST);
+        glScissor(0, 0, scaledSize(region.getWidth(), divisor), scaledSize(region.getHeight(), divisor));
+        glClearColor(0f, 0f, 0f, 1f);
+        glClear(GL_COLOR_BUFFER_BIT);
+        glClearColor(DEFAULT_CLEAR_COLOR.x(), DEFAULT_CLEAR_COLOR.y(), DEFAULT_CLEAR_COLOR.z(), 1.0f);
+        glDisable(GL_SCISSOR_TEST);
+    }
+
+    /**
+     * Adds the lights of the uploaded batch to the level.
+     *
+     * @param cube the cube
+     * @param divisor the resolution divisor of the level
+     * @param lightMask which lights of the batch affect the cube
+     */
+    public static void draw(Cube cube, int divisor, int lightMask) {
+        if (lightMask == 0) {
+            return;
+        }
+        LightmapAtlas.Region region = cube.getLightmapRegion();
+        if (divisor == 1) {
+            cube.renderBakedLights(
+                    region.getOffsetX(), region.getOffsetY(),
+                    region.getScaleX(), region.getScaleY(),
+                    lightMask
+            );
+            return;
+        }
+        cube.renderBakedLights(
+                0f, 0f,
+                scaledSize(region.getWidth(), divisor) / ((float) SCRATCH_SIZE),
+                scaledSize(region.getHeight(), divisor) / ((float) SCRATCH_SIZE),
+                lightMask
+        );
+    }
+
+    /**
+     * Upsamples the level into the lightmap and restores the framebuffer.
+     *
+     * @param cube the cube
+     * @param divisor the resolution divisor of the level
+     */
+    public static void end(Cube cube, int divisor) {
+        if (divisor != 1) {
+            LightmapAtlas.Region region = cube.getLightmapRegion();
+            glBindFramebuffer(GL_READ_FRAMEBUFFER, scratchFbo.get());
+            glReadBuffer(GL_COLOR_ATTACHMENT0);
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, region.getPage().fbo());
+            glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0});
+            glBlitFramebuffer(
+                    0, 0, scaledSize(region.getWidth(), divisor), scaledSize(region.getHeight(), divisor),
+                    region.getX(), region.getY(), region.getX() + region.getWidth(), region.getY() + region.getHeight(),
+                    GL_COLOR_BUFFER_BIT, GL_LINEAR
+            );
+            glBindFramebuffer(GL_READ_FRAMEBUFFER, 0);
+        }
+        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+    }
+
+    public static void init() {
+
+    }
+
+    private LightmapRefiner() {
+
+    }
+
+}
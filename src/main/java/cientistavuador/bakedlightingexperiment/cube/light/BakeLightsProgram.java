@@ -0,0 +1,460 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.light;
+
+import cientistavuador.bakedlightingexperiment.cube.LightmapAtlas;
+import cientistavuador.bakedlightingexperiment.cube.light.directional.DirectionalLight;
+import cientistavuador.bakedlightingexperiment.cube.light.point.PointLight;
+import cientistavuador.bakedlightingexperiment.cube.light.point.PointLightShadowProgram;
+import cientistavuador.bakedlightingexperiment.cube.light.spot.SpotLight;
+import cientistavuador.bakedlightingexperiment.ubo.BakeLightsUBO;
+import cientistavuador.bakedlightingexperiment.util.ProgramCompiler;
+import java.nio.FloatBuffer;
+import java.util.List;
+import org.joml.Matrix3fc;
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import static org.lwjgl.opengl.GL33C.*;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Bakes a batch of directional, point and spot lights into a lightmap in a
+ * single draw, the lights are read from {@link BakeLightsUBO} and the result
+ * must be added to the lightmap with additive blending.
+ *
+ * @author Cien
+ */
+public class BakeLightsProgram {
+    public static final String VERTEX_SHADER
+            = 
+            """
+            #version 330 core
+            
+            uniform mat4 model;
+            uniform mat3 normalModel;
+            uniform vec4 lightmapRegion;
+            
+            layout (location = 0) in vec3 vertexPosition;
+            layout (location = 1) in vec3 vertexNormal;
+            //
+            layout (location = 3) in vec2 vertexLightmap;
+            layout (location = 4) in vec2 vertexLightmapPosition;
+            
+            out vec3 position;
+            out vec3 normal;
+            
+            void main() {
+                vec4 pos = model * vec4(vertexPosition, 1.0);
+                pos.xyz /= pos.w;
+                position = pos.xyz;
+                
+                normal = normalize(normalModel * vertexNormal);
+                
+                vec2 regionPosition = lightmapRegion.xy + (((vertexLightmapPosition + 1.0) / 2.0) * lightmapRegion.zw);
+                gl_Position = vec4((regionPosition * 2.0) - 1.0, 1.0, 1.0);
+            }
+            """;
+    
+    public static final String FRAGMENT_SHADER
+            = 
+            """
+            #version 330 core
+            
+            #define MAX_LIGHTS %d
+            #define SHADOW_SLOTS %d
+            
+            #define TYPE_DIRECTIONAL %d
+            #define TYPE_POINT %d
+            #define TYPE_SPOT %d
+            
+            #define SHADOW_MODE_ESM %d
+            #define ATLAS_ESM_EXPONENT %s
+            #define SUN_ESM_EXPONENT %s
+            #define SHADOW_MODE_ADAPTIVE %d
+            
+            struct BakeLight {
+                vec4 positionType;
+                vec4 directionCutoff;
+                vec4 diffuseOuterCutoff;
+                vec4 ambient;
+                vec4 shadowPlanes;
+                vec4 shadowTile[SHADOW_SLOTS];
+                mat4 shadowProjectionView[SHADOW_SLOTS];
+            };
+            
+            layout (std140) uniform BakeLights {
+                ivec4 bakeLightsCount;
+                BakeLight bakeLights[MAX_LIGHTS];
+            };
+            
+            uniform sampler2DShadow shadowAtlas;
+            uniform sampler2DShadow sunShadowMap;
+            uniform sampler2D shadowAtlasESM;
+            uniform sampler2D sunShadowMapESM;
+            uniform sampler2D shadowAtlasDepth;
+            uniform sampler2D sunShadowMapDepth;
+            uniform int shadowMode;
+            uniform int lightMask;
+            
+            in vec3 position;
+            in vec3 normal;
+            
+            layout (location = 0) out vec4 outputColor;
+            
+            %s
+            float sunShadow(BakeLight light) {
+                mat4 projectionView = light.shadowProjectionView[0];
+                vec2 shadowMapTexelSize = 1.0 / vec2(textureSize(sunShadowMap, 0));
+                int pcf = 3;
+                
+                vec4 mapCoords = projectionView * vec4(position, 1.0);
+                mapCoords /= mapCoords.w;
+                mapCoords.xyz = (mapCoords.xyz + 1.0) / 2.0;
+                
+                if (shadowMode == SHADOW_MODE_ESM) {
+                    if (any(lessThan(mapCoords.xy, vec2(0.0))) || any(greaterThan(mapCoords.xy, vec2(1.0)))) {
+                        return 1.0;
+                    }
+                    float occluder = texture(sunShadowMapESM, mapCoords.xy).r;
+                    return clamp(exp(occluder - (SUN_ESM_EXPONENT * mapCoords.z)), 0.0, 1.0);
+                }
+                
+                if (shadowMode == SHADOW_MODE_ADAPTIVE) {
+                    return adaptiveShadow(
+                            sunShadowMapDepth, sunShadowMap,
+                            mapCoords.xy, shadowMapTexelSize, vec2(-1.0), vec2(2.0),
+                            mapCoords.z - 0.0002, light.shadowPlanes.x, light.shadowPlanes.y,
+                            light.ambient.w, false, light.shadowPlanes.w * shadowMapTexelSize.x, pcf * 2
+                    );
+                }
+                
+                float shadowValue = 0.0;
+                for (int x = -pcf; x <= pcf; x++) {
+                    for (int y = -pcf; y <= pcf; y++) {
+                        shadowValue += texture(sunShadowMap, vec3(mapCoords.xy + (vec2(float(x), float(y)) * shadowMapTexelSize), mapCoords.z - 0.0002));
+                    }
+                }
+                return shadowValue / pow((float(pcf) * 2.0) + 1.0, 2.0);
+            }
+            
+            float atlasShadow(BakeLight light, int slot, float zLinear, float distance, float faceDistance, int pcf, float bias) {
+                mat4 projectionView = light.shadowProjectionView[slot];
+                vec4 tile = light.shadowTile[slot];
+                if (tile.z <= 0.0) {
+                    return 1.0;
+                }
+                vec2 shadowMapTexelSize = 1.0 / vec2(textureSize(shadowAtlas, 0));
+                
+                vec4 mapCoords = projectionView * vec4(position, 1.0);
+                mapCoords /= mapCoords.w;
+                mapCoords.xy = (mapCoords.xy + 1.0) / 2.0;
+                
+                vec2 tileCoords = tile.xy + (mapCoords.xy * tile.z);
+                vec2 tileMin = tile.xy + (shadowMapTexelSize * 0.5);
+                vec2 tileMax = tile.xy + vec2(tile.z) - (shadowMapTexelSize * 0.5);
+                
+                if (shadowMode == SHADOW_MODE_ESM) {
+                    vec2 esmTexelSize = 1.0 / vec2(textureSize(shadowAtlasESM, 0));
+                    vec2 esmCoords = clamp(tileCoords, tile.xy + (esmTexelSize * 0.5), tile.xy + vec2(tile.z) - (esmTexelSize * 0.5));
+                    float occluder = texture(shadowAtlasESM, esmCoords).r;
+                    return clamp(exp(occluder - (ATLAS_ESM_EXPONENT * (distance / light.shadowPlanes.z))), 0.0, 1.0);
+                }
+                
+                if (shadowMode == SHADOW_MODE_ADAPTIVE) {
+                    float worldTexelSize = (2.0 * faceDistance * light.shadowPlanes.w) / (tile.z / shadowMapTexelSize.x);
+                    return adaptiveShadow(
+                            shadowAtlasDepth, shadowAtlas,
+                            tileCoords, shadowMapTexelSize, tileMin, tileMax,
+                            zLinear - bias, light.shadowPlanes.x, light.shadowPlanes.y,
+                            light.ambient.w, true, worldTexelSize, pcf
+                    );
+                }
+                
+                float shadowValue = 0.0;
+                for (int x = -pcf; x <= pcf; x++) {
+                    for (int y = -pcf; y <= pcf; y++) {
+                        vec2 sampleCoords = clamp(tileCoords + (vec2(float(x), float(y)) * shadowMapTexelSize), tileMin, tileMax);
+                        shadowValue += texture(shadowAtlas, vec3(sampleCoords, zLinear - bias));
+                    }
+                }
+                return shadowValue / pow((float(pcf) * 2.0) + 1.0, 2.0);
+            }
+            
+            int pointFace(vec3 shadowDirection) {
+                vec3 absDirection = abs(shadowDirection);
+                if (absDirection.x >= absDirection.y && absDirection.x >= absDirection.z) {
+                    return (shadowDirection.x > 0.0 ? 0 : 1);
+                } else if (absDirection.y >= absDirection.z) {
+                    return (shadowDirection.y > 0.0 ? 2 : 3);
+                }
+                return (shadowDirection.z > 0.0 ? 4 : 5);
+            }
+            
+            vec3 bakeLight(int index) {
+                BakeLight light = bakeLights[index];
+                int type = int(light.positionType.w);
+                vec3 diffuse = light.diffuseOuterCutoff.rgb;
+                vec3 ambient = light.ambient.rgb;
+                
+                if (type == TYPE_DIRECTIONAL) {
+                    vec3 lightDirection = light.directionCutoff.xyz;
+                    float shadowValue = sunShadow(light);
+                    return (diffuse * max(dot(normal, -lightDirection), 0.0) * shadowValue) + ambient;
+                }
+                
+                vec3 lightPosition = light.positionType.xyz;
+                vec3 lightDir = normalize(lightPosition - position);
+                float distance = length(lightPosition - position);
+                float attenuation = 1.0 / (distance * distance);
+                float window = clamp(1.0 - pow(distance / light.shadowPlanes.z, 4.0), 0.0, 1.0);
+                attenuation *= window * window;
+                
+                float nearPlane = light.shadowPlanes.x;
+                float farPlane = light.shadowPlanes.y;
+                float zLinear = (distance - nearPlane) / (farPlane - nearPlane);
+                
+                if (type == TYPE_POINT) {
+                    vec3 shadowDirection = position - lightPosition;
+                    vec3 absDirection = abs(shadowDirection);
+                    float faceDistance = max(absDirection.x, max(absDirection.y, absDirection.z));
+                    int face = pointFace(shadowDirection);
+                    int pcf = (shadowMode == SHADOW_MODE_ADAPTIVE ? 4 : 2);
+                    float shadowValue = atlasShadow(light, face, zLinear, distance, faceDistance, pcf, 0.00006);
+                    return (diffuse * max(dot(normal, lightDir), 0.0) * attenuation * shadowValue) + (ambient * attenuation);
+                }
+                
+                float theta = dot(lightDir, normalize(-light.directionCutoff.xyz));
+                float epsilon = light.directionCutoff.w - light.diffuseOuterCutoff.w;
+                float intensity = clamp((theta - light.diffuseOuterCutoff.w) / epsilon, 0.0, 1.0);
+                
+                float shadowValue = atlasShadow(light, 0, zLinear, distance, distance, 8, 0.00003);
+                return (diffuse * max(dot(normal, lightDir), 0.0) * attenuation * intensity * shadowValue) + (ambient * attenuation);
+            }
+            
+            void main() {
+                vec3 resultColor = vec3(0.0);
+                
+                for (int i = 0; i < bakeLightsCount.x; i++) {
+                    if ((lightMask & (1 << i)) != 0) {
+                        resultColor += bakeLight(i);
+                    }
+                }
+                
+                outputColor = vec4(resultColor, 1.0);
+            }
+            """.formatted(
+                    BakeLightsUBO.MAX_LIGHTS,
+                    BakeLightsUBO.SHADOW_SLOTS,
+                    BakeLightsUBO.TYPE_DIRECTIONAL,
+                    BakeLightsUBO.TYPE_POINT,
+                    BakeLightsUBO.TYPE_SPOT,
+                    ShadowFilter.MODE_ESM,
+                    ShadowFilter.ATLAS_EXPONENT,
+                    ShadowFilter.SUN_EXPONENT,
+                    ShadowFilter.MODE_ADAPTIVE,
+                    ShadowFilter.ADAPTIVE_SHADOW_GLSL
+            );
+    public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
+    public static final int MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "model");
+    public static final int NORMAL_MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "normalModel");
+    public static final int LIGHTMAP_REGION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapRegion");
+    public static final int SHADOW_ATLAS_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowAtlas");
+    public static final int SUN_SHADOW_MAP_INDEX = glGetUniformLocation(SHADER_PROGRAM, "sunShadowMap");
+    public static final int SHADOW_ATLAS_ESM_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowAtlasESM");
+    public static final int SUN_SHADOW_MAP_ESM_INDEX = glGetUniformLocation(SHADER_PROGRAM, "sunShadowMapESM");
+    public static final int SHADOW_ATLAS_DEPTH_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowAtlasDepth");
+    public static final int SUN_SHADOW_MAP_DEPTH_INDEX = glGetUniformLocation(SHADER_PROGRAM, "sunShadowMapDepth");
+    public static final int SHADOW_MODE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMode");
+    public static final int LIGHT_MASK_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightMask");
+    public static final int BAKE_LIGHTS_UBO_INDEX = glGetUniformBlockIndex(SHADER_PROGRAM, "BakeLights");
+    
+    private static void sendMatrix(int location, Matrix4fc matrix) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            FloatBuffer matrixBuffer = stack.mallocFloat(4 * 4);
+            matrix.get(matrixBuffer);
+            glUniformMatrix4fv(location, false, matrixBuffer);
+        }
+    }
+    
+    private static void sendMatrix3f(int location, Matrix3fc matrix) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            FloatBuffer matrixBuffer = stack.mallocFloat(3 * 3);
+            matrix.get(matrixBuffer);
+            glUniformMatrix3fv(location, false, matrixBuffer);
+        }
+    }
+    
+    public static void init() {
+        
+    }
+    
+    private static void pushShadowTile(BakeLightsUBO ubo, int index, int slot, Matrix4fc projectionView, ShadowAtlas.Tile tile) {
+        if (tile == null) {
+            return;
+        }
+        ubo.setShadow(index, slot, projectionView, tile.getOffsetX(), tile.getOffsetY(), tile.getScale());
+    }
+    
+    /**
+     * Uploads a batch of lights, the shadow maps of the lights must be
+     * rendered before the batch is drawn and at most one directional light
+     * can be in the batch, as they share the same shadow map.
+     *
+     * @param batch the lights to upload
+     */
+    public static void uploadBatch(List<Light> batch) {
+        uploadBatch(batch, null, null, null);
+    }
+    
+    /**
+     * Uploads a batch of lights with their colors and ranges replaced, used
+     * to bake a cluster of point or spot lights as a single representative
+     * light.
+     *
+     * @param batch the lights to upload
+     * @param diffuseColors the diffuse color of every light or null
+     * @param ambientColors the ambient color of every light or null
+     * @param ranges the range of every point or spot light or null
+     */
+    public static void uploadBatch(List<Light> batch, Vector3fc[] diffuseColors, Vector3fc[] ambientColors, float[] ranges) {
+        if (batch.size() > BakeLightsUBO.MAX_LIGHTS) {
+            throw new IllegalArgumentException("Batch too large: " + batch.size() + " > " + BakeLightsUBO.MAX_LIGHTS);
+        }
+        
+        BakeLightsUBO ubo = BakeLightsUBO.DEFAULT;
+        ubo.clear();
+        
+        Vector3f zero = new Vector3f();
+        Matrix4f faceProjectionView = new Matrix4f();
+        boolean sun = false;
+        for (int i = 0; i < batch.size(); i++) {
+            Light light = batch.get(i);
+            Vector3fc diffuse = (diffuseColors != null ? diffuseColors[i] : light.getDiffuseColor());
+            Vector3fc ambient = (ambientColors != null ? ambientColors[i] : light.getAmbientColor());
+            float range = (ranges != null ? ranges[i] : light.getRange());
+            if (light instanceof DirectionalLight d) {
+                if (sun) {
+                    throw new IllegalArgumentException("Only one directional light per batch is supported.");
+                }
+                sun = true;
+                int index = ubo.push(
+                        BakeLightsUBO.TYPE_DIRECTIONAL,
+                        zero, d.getDirection(),
+                        diffuse, ambient,
+                        0f, 0f,
+                        d.getCamera().getNearPlane(), d.getCamera().getFarPlane(), Float.POSITIVE_INFINITY
+                );
+                ubo.setPenumbra(index, ShadowFilter.SUN_ANGULAR_RADIUS, d.getCamera().getDimensions().x());
+                ubo.setShadow(index, 0, d.getCamera().getProjectionViewFloat(), 0f, 0f, 1f);
+            } else if (light instanceof PointLight p) {
+                int index = ubo.push(
+                        BakeLightsUBO.TYPE_POINT,
+                        p.getPosition(), zero,
+                        diffuse, ambient,
+                        0f, 0f,
+                        PointLight.NEAR_PLANE, PointLight.FAR_PLANE, range
+                );
+                ubo.setPenumbra(index, ShadowFilter.LIGHT_SOURCE_RADIUS, 1f);
+                ShadowAtlas.Tile[] tiles = ShadowAtlas.tilesOf(p);
+                for (int face = 0; face < tiles.length; face++) {
+                    PointLightShadowProgram.faceProjectionView(
+                            face,
+                            PointLight.NEAR_PLANE,
+                            PointLight.FAR_PLANE,
+                            p.getPosition().x(),
+                            p.getPosition().y(),
+                            p.getPosition().z(),
+                            faceProjectionView
+                    );
+                    pushShadowTile(ubo, index, face, faceProjectionView, tiles[face]);
+                }
+            } else if (light instanceof SpotLight s) {
+                int index = ubo.push(
+                        BakeLightsUBO.TYPE_SPOT,
+                        s.getPosition(), s.getDirection(),
+                        diffuse, ambient,
+                        (float) Math.cos(Math.toRadians(s.getCutOff())),
+                        (float) Math.cos(Math.toRadians(s.getOuterCutOff())),
+                        SpotLight.NEAR_PLANE, SpotLight.FAR_PLANE, range
+                );
+                ubo.setPenumbra(index, ShadowFilter.LIGHT_SOURCE_RADIUS, (float) Math.tan(Math.toRadians(s.getOuterCutOff())));
+                pushShadowTile(ubo, index, 0, s.getProjectionView(), ShadowAtlas.tilesOf(s)[0]);
+            } else {
+                throw new IllegalArgumentException("Unsupported light type: " + light.getClass().getName());
+            }
+        }
+        
+        ubo.updateUBO();
+    }
+    
+    public static void sendPerBatchUniforms() {
+        glUniformBlockBinding(SHADER_PROGRAM, BAKE_LIGHTS_UBO_INDEX, BakeLightsUBO.DEFAULT.getBindingPoint());
+        
+        glActiveTexture(GL_TEXTURE1);
+        glBindTexture(GL_TEXTURE_2D, ShadowAtlas.shadowMap());
+        glUniform1i(SHADOW_ATLAS_INDEX, 1);
+        
+        glActiveTexture(GL_TEXTURE2);
+        glBindTexture(GL_TEXTURE_2D, ShadowMap2DFBO.shadowMap());
+        glUniform1i(SUN_SHADOW_MAP_INDEX, 2);
+        
+        glActiveTexture(GL_TEXTURE3);
+        glBindTexture(GL_TEXTURE_2D, ShadowAtlas.esmMap());
+        glUniform1i(SHADOW_ATLAS_ESM_INDEX, 3);
+        
+        glActiveTexture(GL_TEXTURE4);
+        glBindTexture(GL_TEXTURE_2D, ShadowMap2DFBO.esmMap());
+        glUniform1i(SUN_SHADOW_MAP_ESM_INDEX, 4);
+        
+        ShadowFilter.bindRawDepth(ShadowFilter.RAW_ATLAS_UNIT, ShadowAtlas.shadowMap());
+        glUniform1i(SHADOW_ATLAS_DEPTH_INDEX, ShadowFilter.RAW_ATLAS_UNIT);
+        
+        ShadowFilter.bindRawDepth(ShadowFilter.RAW_SUN_UNIT, ShadowMap2DFBO.shadowMap());
+        glUniform1i(SUN_SHADOW_MAP_DEPTH_INDEX, ShadowFilter.RAW_SUN_UNIT);
+        
+        glUniform1i(SHADOW_MODE_INDEX, ShadowFilter.getMode());
+        
+        glActiveTexture(GL_TEXTURE0);
+    }
+    
+    public static void sendPerDrawUniforms(LightmapAtlas.Region region, Matrix4fc model, Matrix3fc normalModel, int lightMask) {
+        sendPerDrawUniforms(region.getOffsetX(), region.getOffsetY(), region.getScaleX(), region.getScaleY(), model, normalModel, lightMask);
+    }
+    
+    public static void sendPerDrawUniforms(float offsetX, float offsetY, float scaleX, float scaleY, Matrix4fc model, Matrix3fc normalModel, int lightMask) {
+        sendMatrix(MODEL_INDEX, model);
+        sendMatrix3f(NORMAL_MODEL_INDEX, normalModel);
+        glUniform4f(LIGHTMAP_REGION_INDEX, offsetX, offsetY, scaleX, scaleY);
+        glUniform1i(LIGHT_MASK_INDEX, lightMask);
+    }
+    
+    private BakeLightsProgram() {
+
+    }
+}
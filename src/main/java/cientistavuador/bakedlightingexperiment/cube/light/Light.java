@@ -43,7 +43,9 @@ public interface Light {
     public Vector3f getDiffuseColor();
     public boolean isEnabled();
     public void setEnabled(boolean enabled);
-    public void render(Cube cube, int lightmap);
+    public void render(Cube cube);
     public void renderShadowMap(List<Cube> cubes);
+    public int getShadowAtlasTiles();
+    public float getRange();
     public IconType getIconType();
 }
@@ -0,0 +1,109 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.light;
+
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import java.util.ArrayList;
+import java.util.List;
+import org.joml.Vector3fc;
+
+/**
+ * Influence radius of local lights.
+ * <p>
+ * Past the range a light adds less than {@link #CUTOFF} to a lightmap, the
+ * attenuation is windowed so it reaches exactly zero at the range and cubes
+ * outside of it can be skipped without seams.
+ *
+ * @author Cien
+ */
+public class LightRange {
+
+    public static final float CUTOFF = 1f / 256f;
+
+    public static float of(Vector3fc diffuse, Vector3fc ambient) {
+        float brightness = Math.max(
+                diffuse.x() + ambient.x(),
+                Math.max(
+                        diffuse.y() + ambient.y(),
+                        diffuse.z() + ambient.z()
+                )
+        );
+        if (brightness <= 0f) {
+            return 0f;
+        }
+        return (float) Math.sqrt(brightness / CUTOFF);
+    }
+
+    public static float window(float distance, float range) {
+        if (Float.isInfinite(range)) {
+            return 1f;
+        }
+        if (range <= 0f) {
+            return 0f;
+        }
+        float ratio = distance / range;
+        float ratio4 = ratio * ratio * ratio * ratio;
+        float window = Math.min(Math.max(1f - ratio4, 0f), 1f);
+        return window * window;
+    }
+
+    public static boolean inRange(Vector3fc position, float range, Vector3fc center, float radius) {
+        if (Float.isInfinite(range)) {
+            return true;
+        }
+        float dx = center.x() - position.x();
+        float dy = center.y() - position.y();
+        float dz = center.z() - position.z();
+        float maxDistance = range + radius;
+        return ((dx * dx) + (dy * dy) + (dz * dz)) < (maxDistance * maxDistance);
+    }
+
+    public static boolean inRange(Light light, Vector3fc center, float radius) {
+        return inRange(light.getPosition(), light.getRange(), center, radius);
+    }
+
+    public static boolean inRange(Light light, Cube cube) {
+        return inRange(light, cube.getCenter(), cube.getRadius());
+    }
+
+    public static List<Cube> cull(Light light, List<Cube> cubes) {
+        if (Float.isInfinite(light.getRange())) {
+            return cubes;
+        }
+        List<Cube> inRange = new ArrayList<>();
+        for (Cube c : cubes) {
+            if (inRange(light, c)) {
+                inRange.add(c);
+            }
+        }
+        return inRange;
+    }
+
+    private LightRange() {
+
+    }
+}
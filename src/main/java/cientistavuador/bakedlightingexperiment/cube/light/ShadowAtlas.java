@@ -0,0 +1,300 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.light;
+
+import cientistavuador.bakedlightingexperiment.Main;
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * Depth atlas shared by the spot and point lights, every light gets one tile
+ * per shadow view (one for spot lights, one per cube face for point lights)
+ * sized by its importance, so the shadow maps of every light can be rendered
+ * before the lightmaps are updated.
+ * <p>
+ * Tiles are power of two squares given by a buddy allocator, when the lights
+ * do not fit the tiles are shrunk below {@link #MIN_TILE_SIZE}, down to
+ * {@link #SMALLEST_TILE_SIZE}, so every light keeps its shadows.
+ *
+ * @author Cien
+ */
+public class ShadowAtlas {
+
+    public static final int SIZE = 8192;
+    public static final int MAX_TILE_SIZE = 2048;
+    public static final int MIN_TILE_SIZE = 256;
+    public static final int SMALLEST_TILE_SIZE = 64;
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    public static class Tile {
+
+        private final int x;
+        private final int y;
+        private final int size;
+
+        private Tile(int x, int y, int size) {
+            this.x = x;
+            this.y = y;
+            this.size = size;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public float getOffsetX() {
+            return this.x / ((float) SIZE);
+        }
+
+        public float getOffsetY() {
+            return this.y / ((float) SIZE);
+        }
+
+        public float getScale() {
+            return this.size / ((float) SIZE);
+        }
+    }
+
+    private static final int shadowMap = glGenTextures();
+    private static final ContextObject fbo = ContextObject.framebuffer("shadow atlas", () -> {
+        glFramebufferTexture(GL_DRAW_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, ShadowAtlas.shadowMap, 0);
+        glDrawBuffers(GL_NONE);
+    });
+    private static final int esmMap = ShadowFilter.createMap(SIZE / 2);
+    private static final ContextObject esmFbo = ShadowFilter.mapFramebuffer(esmMap);
+
+    private static final Map<Integer, ArrayDeque<Tile>> freeTiles = new HashMap<>();
+    private static final Map<Light, Tile[]> lightTiles = new IdentityHashMap<>();
+
+    static {
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, ShadowAtlas.shadowMap);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT32, SIZE, SIZE, 0, GL_DEPTH_COMPONENT, GL_UNSIGNED_INT, 0);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_COMPARE_MODE, GL_COMPARE_REF_TO_TEXTURE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_COMPARE_FUNC, GL_LEQUAL);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        ShadowAtlas.fbo.get();
+
+        reset();
+    }
+
+    private static void reset() {
+        freeTiles.clear();
+        lightTiles.clear();
+
+        ArrayDeque<Tile> roots = new ArrayDeque<>();
+        for (int y = 0; y < SIZE; y += MAX_TILE_SIZE) {
+            for (int x = 0; x < SIZE; x += MAX_TILE_SIZE) {
+                roots.add(new Tile(x, y, MAX_TILE_SIZE));
+            }
+        }
+        freeTiles.put(MAX_TILE_SIZE, roots);
+    }
+
+    private static Tile allocate(int size) {
+        ArrayDeque<Tile> free = freeTiles.computeIfAbsent(size, (k) -> new ArrayDeque<>());
+        if (!free.isEmpty()) {
+            return free.poll();
+        }
+        if (size >= MAX_TILE_SIZE) {
+            return null;
+        }
+
+        Tile parent = allocate(size * 2);
+        if (parent == null) {
+            return null;
+        }
+        free.add(new Tile(parent.x + size, parent.y, size));
+        free.add(new Tile(parent.x, parent.y + size, size));
+        free.add(new Tile(parent.x + size, parent.y + size, size));
+        return new Tile(parent.x, parent.y, size);
+    }
+
+    private static Tile[] allocate(Light light, int size) {
+        Tile[] tiles = new Tile[light.getShadowAtlasTiles()];
+        for (int i = 0; i < tiles.length; i++) {
+            int tileSize = size;
+            Tile tile = null;
+            while (tile == null && tileSize >= SMALLEST_TILE_SIZE) {
+                tile = allocate(tileSize);
+                tileSize /= 2;
+            }
+            tiles[i] = tile;
+        }
+        lightTiles.put(light, tiles);
+        return tiles;
+    }
+
+    /**
+     * Discards every tile and gives new ones to the lights, the most important
+     * light gets {@link #MAX_TILE_SIZE} tiles and the others get tiles scaled
+     * by their importance relative to it.
+     * <p>
+     * If the tiles do not fit the atlas, the largest tile of the least
+     * important light is halved until they do, the tiles are then allocated
+     * from largest to smallest, which a buddy allocator always fits.
+     *
+     * @param lights the lights
+     * @param importance the importance of each light
+     */
+    public static void pack(List<Light> lights, float[] importance) {
+        reset();
+
+        List<Integer> order = new ArrayList<>();
+        float maxImportance = 0f;
+        for (int i = 0; i < lights.size(); i++) {
+            if (lights.get(i).getShadowAtlasTiles() <= 0) {
+                continue;
+            }
+            order.add(i);
+            maxImportance = Math.max(maxImportance, importance[i]);
+        }
+        order.sort((a, b) -> Float.compare(importance[b], importance[a]));
+
+        int[] sizes = new int[order.size()];
+        long area = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            int light = order.get(i);
+            float relative = (maxImportance <= 0f ? 1f : importance[light] / maxImportance);
+            int size = MIN_TILE_SIZE;
+            while (size < MAX_TILE_SIZE && (size * 2) <= (MAX_TILE_SIZE * relative)) {
+                size *= 2;
+            }
+            sizes[i] = size;
+            area += ((long) size) * size * lights.get(light).getShadowAtlasTiles();
+        }
+
+        //sizes never grow along the order, so the last light with the largest size is the least important one
+        long capacity = ((long) SIZE) * SIZE;
+        while (area > capacity && sizes.length > 0 && sizes[0] > SMALLEST_TILE_SIZE) {
+            int largest = 0;
+            while (largest + 1 < sizes.length && sizes[largest + 1] == sizes[0]) {
+                largest++;
+            }
+            int size = sizes[largest];
+            area -= (((long) size) * size * 3 / 4) * lights.get(order.get(largest)).getShadowAtlasTiles();
+            sizes[largest] = size / 2;
+        }
+
+        for (int i = 0; i < sizes.length; i++) {
+            allocate(lights.get(order.get(i)), sizes[i]);
+        }
+    }
+
+    /**
+     * Returns the tiles of a light, allocating them from the free space of the
+     * atlas if the light was not packed. A tile is null if the atlas is full.
+     *
+     * @param light the light
+     * @return the tiles of the light
+     */
+    public static Tile[] tilesOf(Light light) {
+        Tile[] tiles = lightTiles.get(light);
+        if (tiles == null) {
+            tiles = allocate(light, DEFAULT_TILE_SIZE);
+        }
+        return tiles;
+    }
+
+    public static void beginTile(Tile tile) {
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, ShadowAtlas.fbo.get());
+        glViewport(tile.x, tile.y, tile.size, tile.size);
+
+        glEnable(GL_SCISSOR_TEST);
+        glScissor(tile.x, tile.y, tile.size, tile.size);
+        glClear(GL_DEPTH_BUFFER_BIT);
+    }
+
+    public static void endTile() {
+        glDisable(GL_SCISSOR_TEST);
+        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Prefilters a tile into the exponential shadow map of the atlas if the
+     * shadows are prefiltered, the linear depth of the tile is stored as the
+     * distance to the light divided by the range of the light.
+     *
+     * @param tile the tile
+     * @param nearPlane the near plane of the tile
+     * @param farPlane the far plane of the tile
+     * @param range the range of the light
+     */
+    public static void filterTile(Tile tile, float nearPlane, float farPlane, float range) {
+        if (!ShadowFilter.isPrefiltered()) {
+            return;
+        }
+        float c = ShadowFilter.ATLAS_EXPONENT / Math.max(range, 1E-4f);
+        ShadowFilter.filter(
+                shadowMap,
+                tile.x, tile.y, tile.size,
+                c * (farPlane - nearPlane), c * nearPlane,
+                esmFbo.get(), SIZE / 2
+        );
+    }
+
+    public static int shadowMap() {
+        return shadowMap;
+    }
+
+    public static int fbo() {
+        return fbo.get();
+    }
+
+    public static int esmMap() {
+        return esmMap;
+    }
+
+    public static void init() {
+
+    }
+
+    private ShadowAtlas() {
+
+    }
+
+}
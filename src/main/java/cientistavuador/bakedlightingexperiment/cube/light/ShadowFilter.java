@@ -0,0 +1,392 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.light;
+
+import cientistavuador.bakedlightingexperiment.Main;
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
+import cientistavuador.bakedlightingexperiment.util.ProgramCompiler;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * Prefilters shadow maps into exponential shadow maps (ESM).
+ * <p>
+ * The depth is converted to c * depth at half resolution and blurred with a
+ * separable gaussian, the blur is done in log space so large exponents do
+ * not overflow, a texel then needs a single bilinear lookup instead of a
+ * large PCF kernel.
+ * <p>
+ * The adaptive mode keeps the shadow maps as they are and instead does a
+ * sparse blocker search first, texels where the search finds no blockers or
+ * only blockers are lit or shadowed without a kernel, the others estimate the
+ * penumbra width from the blocker distance and the size of the light and use
+ * a PCF kernel of that size.
+ *
+ * @author Cien
+ */
+public class ShadowFilter {
+
+    public static final int MODE_PCF = 0;
+    public static final int MODE_ESM = 1;
+    public static final int MODE_ADAPTIVE = 2;
+
+    public static final float ATLAS_EXPONENT = 80f;
+    public static final float SUN_EXPONENT = 800f;
+
+    //radius of point and spot lights in world units
+    public static final float LIGHT_SOURCE_RADIUS = 0.1f;
+    //tangent of the angular radius of the sun
+    public static final float SUN_ANGULAR_RADIUS = 0.00465f;
+
+    public static final int RAW_ATLAS_UNIT = 5;
+    public static final int RAW_SUN_UNIT = 6;
+
+    public static final int BLUR_RADIUS = 4;
+    public static final float BLUR_SIGMA = 2f;
+
+    private static String blurWeights() {
+        float[] weights = new float[BLUR_RADIUS + 1];
+        float sum = 0f;
+        for (int i = 0; i <= BLUR_RADIUS; i++) {
+            weights[i] = (float) Math.exp(-(i * i) / (2f * BLUR_SIGMA * BLUR_SIGMA));
+            sum += (i == 0 ? weights[i] : weights[i] * 2f);
+        }
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i <= BLUR_RADIUS; i++) {
+            if (i != 0) {
+                b.append(", ");
+            }
+            b.append(weights[i] / sum);
+        }
+        return b.toString();
+    }
+
+    /**
+     * GLSL function of the adaptive mode, included by the bake programs.
+     * <p>
+     * The blocker search is a 5x5 grid spanning the largest kernel, depth is
+     * the biased receiver depth, mapped linearly to the distance from the
+     * light between nearPlane and farPlane, lightSize is the radius of the
+     * light for perspective maps and the tangent of its angular radius for
+     * orthographic maps and worldTexelSize is the size of a texel at the
+     * receiver.
+     */
+    public static final String ADAPTIVE_SHADOW_GLSL
+            = 
+            """
+            float adaptiveShadow(
+                sampler2D depthMap, sampler2DShadow shadowMap,
+                vec2 coords, vec2 texelSize, vec2 clampMin, vec2 clampMax,
+                float depth, float nearPlane, float farPlane,
+                float lightSize, bool perspective, float worldTexelSize, int maxRadius
+            ) {
+                float searchStep = max(float(maxRadius) * 0.5, 1.0);
+                float blockerSum = 0.0;
+                float blockers = 0.0;
+                for (int x = -2; x <= 2; x++) {
+                    for (int y = -2; y <= 2; y++) {
+                        vec2 sampleCoords = clamp(coords + (vec2(float(x), float(y)) * searchStep * texelSize), clampMin, clampMax);
+                        float sampleDepth = texture(depthMap, sampleCoords).r;
+                        if (sampleDepth < depth) {
+                            blockerSum += sampleDepth;
+                            blockers += 1.0;
+                        }
+                    }
+                }
+                if (blockers == 0.0) {
+                    return 1.0;
+                }
+                if (blockers == 25.0) {
+                    return 0.0;
+                }
+                
+                float receiverDistance = nearPlane + (depth * (farPlane - nearPlane));
+                float blockerDistance = nearPlane + ((blockerSum / blockers) * (farPlane - nearPlane));
+                float penumbra = 2.0 * lightSize * max(receiverDistance - blockerDistance, 0.0);
+                if (perspective) {
+                    penumbra /= max(blockerDistance, 0.0001);
+                }
+                int radius = clamp(int(ceil((penumbra * 0.5) / worldTexelSize)), 1, maxRadius);
+                
+                float shadowValue = 0.0;
+                for (int x = -radius; x <= radius; x++) {
+                    for (int y = -radius; y <= radius; y++) {
+                        vec2 sampleCoords = clamp(coords + (vec2(float(x), float(y)) * texelSize), clampMin, clampMax);
+                        shadowValue += texture(shadowMap, vec3(sampleCoords, depth));
+                    }
+                }
+                return shadowValue / pow((float(radius) * 2.0) + 1.0, 2.0);
+            }
+            """;
+
+    public static final String VERTEX_SHADER
+            = 
+            """
+            #version 330 core
+            
+            void main() {
+                vec2 pos = vec2(float((gl_VertexID & 1) << 2), float((gl_VertexID & 2) << 1)) - 1.0;
+                gl_Position = vec4(pos, 0.0, 1.0);
+            }
+            """;
+
+    public static final String FRAGMENT_SHADER
+            = 
+            """
+            #version 330 core
+            
+            #define BLUR_RADIUS %d
+            const float weights[BLUR_RADIUS + 1] = float[](%s);
+            
+            uniform sampler2D depthTexture;
+            uniform sampler2D sourceTexture;
+            uniform bool fromDepth;
+            uniform vec2 depthTransform;
+            uniform ivec4 sourceRect;
+            uniform ivec2 destOrigin;
+            uniform ivec2 direction;
+            uniform int sourceStep;
+            
+            layout (location = 0) out vec4 outputColor;
+            
+            float fetchValue(ivec2 coords) {
+                coords = clamp(coords, sourceRect.xy, sourceRect.xy + sourceRect.zw - 1);
+                if (fromDepth) {
+                    return (texelFetch(depthTexture, coords, 0).r * depthTransform.x) + depthTransform.y;
+                }
+                return texelFetch(sourceTexture, coords, 0).r;
+            }
+            
+            void main() {
+                ivec2 base = sourceRect.xy + ((ivec2(gl_FragCoord.xy) - destOrigin) * sourceStep);
+                
+                float reference = -3.4e38;
+                for (int i = -BLUR_RADIUS; i <= BLUR_RADIUS; i++) {
+                    for (int x = 0; x < sourceStep; x++) {
+                        for (int y = 0; y < sourceStep; y++) {
+                            reference = max(reference, fetchValue(base + (direction * i * sourceStep) + ivec2(x, y)));
+                        }
+                    }
+                }
+                
+                float sampleWeight = 1.0 / float(sourceStep * sourceStep);
+                float sum = 0.0;
+                for (int i = -BLUR_RADIUS; i <= BLUR_RADIUS; i++) {
+                    float weight = weights[abs(i)] * sampleWeight;
+                    for (int x = 0; x < sourceStep; x++) {
+                        for (int y = 0; y < sourceStep; y++) {
+                            sum += weight * exp(fetchValue(base + (direction * i * sourceStep) + ivec2(x, y)) - reference);
+                        }
+                    }
+                }
+                
+                outputColor = vec4(reference + log(sum), 0.0, 0.0, 1.0);
+            }
+            """.formatted(BLUR_RADIUS, blurWeights());
+
+    public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
+    public static final int DEPTH_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "depthTexture");
+    public static final int SOURCE_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "sourceTexture");
+    public static final int FROM_DEPTH_INDEX = glGetUniformLocation(SHADER_PROGRAM, "fromDepth");
+    public static final int DEPTH_TRANSFORM_INDEX = glGetUniformLocation(SHADER_PROGRAM, "depthTransform");
+    public static final int SOURCE_RECT_INDEX = glGetUniformLocation(SHADER_PROGRAM, "sourceRect");
+    public static final int DEST_ORIGIN_INDEX = glGetUniformLocation(SHADER_PROGRAM, "destOrigin");
+    public static final int DIRECTION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "direction");
+    public static final int SOURCE_STEP_INDEX = glGetUniformLocation(SHADER_PROGRAM, "sourceStep");
+    private static final ContextObject vao = ContextObject.vertexArray(() -> {
+        
+    });
+
+    //reads the raw depth of shadow maps that have compare mode enabled
+    private static final int depthSampler = glGenSamplers();
+    private static final int tempTexture = glGenTextures();
+    private static final ContextObject tempFbo = ContextObject.framebuffer("ESM blur", () -> {
+        glFramebufferTexture(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, tempTexture, 0);
+    });
+    private static int tempSize = 0;
+
+    private static int mode = MODE_PCF;
+
+    static {
+        glSamplerParameteri(depthSampler, GL_TEXTURE_COMPARE_MODE, GL_NONE);
+        glSamplerParameteri(depthSampler, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glSamplerParameteri(depthSampler, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glSamplerParameteri(depthSampler, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER);
+        glSamplerParameteri(depthSampler, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
+        glSamplerParameterfv(depthSampler, GL_TEXTURE_BORDER_COLOR, new float[]{1f, 1f, 1f, 1f});
+    }
+
+    public static int getMode() {
+        return mode;
+    }
+
+    public static void setMode(int mode) {
+        if (mode != MODE_PCF && mode != MODE_ESM && mode != MODE_ADAPTIVE) {
+            throw new IllegalArgumentException("Invalid shadow mode: " + mode);
+        }
+        ShadowFilter.mode = mode;
+    }
+
+    public static String getModeName() {
+        return switch (mode) {
+            case MODE_ESM -> "ESM";
+            case MODE_ADAPTIVE -> "Adaptive";
+            default -> "PCF";
+        };
+    }
+
+    public static boolean isPrefiltered() {
+        return mode == MODE_ESM;
+    }
+
+    /**
+     * Binds a depth texture with compare mode disabled, so the adaptive mode
+     * can read the depth of the blockers.
+     *
+     * @param unit the texture unit
+     * @param depthTexture the depth texture
+     */
+    public static void bindRawDepth(int unit, int depthTexture) {
+        glActiveTexture(GL_TEXTURE0 + unit);
+        glBindTexture(GL_TEXTURE_2D, depthTexture);
+        glBindSampler(unit, depthSampler);
+    }
+
+    /**
+     * Creates a R32F texture for an exponential shadow map.
+     *
+     * @param size the size of the texture
+     * @return the texture
+     */
+    public static int createMap(int size) {
+        int texture = glGenTextures();
+        resizeMap(texture, size);
+        return texture;
+    }
+
+    public static ContextObject mapFramebuffer(int texture) {
+        return ContextObject.framebuffer("ESM", () -> {
+            glFramebufferTexture(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, texture, 0);
+        });
+    }
+
+    public static void resizeMap(int texture, int size) {
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_R32F, size, size, 0, GL_RED, GL_FLOAT, 0);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    private static void ensureTemp(int size) {
+        if (tempSize >= size) {
+            return;
+        }
+        tempSize = size;
+        resizeMap(tempTexture, size);
+    }
+
+    /**
+     * Converts a square area of a depth texture to an exponential shadow map
+     * at half resolution, the exponent is depth * scale + offset.
+     *
+     * @param depthTexture the depth texture
+     * @param x the x of the area in texels
+     * @param y the y of the area in texels
+     * @param size the size of the area in texels
+     * @param scale the depth scale
+     * @param offset the depth offset
+     * @param destFbo the framebuffer of the exponential shadow map
+     * @param destSize the size of the exponential shadow map
+     */
+    public static void filter(int depthTexture, int x, int y, int size, float scale, float offset, int destFbo, int destSize) {
+        ensureTemp(destSize);
+
+        int destX = x / 2;
+        int destY = y / 2;
+        int destArea = Math.max(size / 2, 1);
+
+        glUseProgram(SHADER_PROGRAM);
+        glBindVertexArray(vao.get());
+
+        //horizontal pass, depth to temp
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, tempFbo.get());
+        glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0});
+        glViewport(destX, destY, destArea, destArea);
+
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, depthTexture);
+        glBindSampler(0, depthSampler);
+        glUniform1i(DEPTH_TEXTURE_INDEX, 0);
+        glUniform1i(FROM_DEPTH_INDEX, GL_TRUE);
+        glUniform2f(DEPTH_TRANSFORM_INDEX, scale, offset);
+        glUniform4i(SOURCE_RECT_INDEX, x, y, size, size);
+        glUniform2i(DEST_ORIGIN_INDEX, destX, destY);
+        glUniform2i(DIRECTION_INDEX, 1, 0);
+        glUniform1i(SOURCE_STEP_INDEX, 2);
+        glDrawArrays(GL_TRIANGLES, 0, 3);
+        glBindSampler(0, 0);
+
+        Main.countDrawCall(3);
+
+        //vertical pass, temp to the exponential shadow map
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, destFbo);
+        glDrawBuffers(new int[]{GL_COLOR_ATTACHMENT0});
+
+        glActiveTexture(GL_TEXTURE1);
+        glBindTexture(GL_TEXTURE_2D, tempTexture);
+        glUniform1i(SOURCE_TEXTURE_INDEX, 1);
+        glUniform1i(FROM_DEPTH_INDEX, GL_FALSE);
+        glUniform4i(SOURCE_RECT_INDEX, destX, destY, destArea, destArea);
+        glUniform2i(DIRECTION_INDEX, 0, 1);
+        glUniform1i(SOURCE_STEP_INDEX, 1);
+        glDrawArrays(GL_TRIANGLES, 0, 3);
+
+        Main.countDrawCall(3);
+
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        glBindVertexArray(0);
+        glUseProgram(0);
+
+        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+    }
+
+    public static void init() {
+
+    }
+
+    private ShadowFilter() {
+
+    }
+
+}
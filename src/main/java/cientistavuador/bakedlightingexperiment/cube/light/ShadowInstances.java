@@ -0,0 +1,192 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.light;
+
+import cientistavuador.bakedlightingexperiment.Main;
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.CubeTexture;
+import cientistavuador.bakedlightingexperiment.cube.CubeVAO;
+import cientistavuador.bakedlightingexperiment.cube.CubeVertices;
+import cientistavuador.bakedlightingexperiment.cube.VerticesStream;
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
+import java.nio.FloatBuffer;
+import java.util.List;
+import static org.lwjgl.opengl.GL33C.*;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Cube geometry with the model matrix of every cube as a per instance
+ * attribute, shadow passes only need positions so every cube is drawn with a
+ * single instanced draw call regardless of its lightmap size.
+ * <p>
+ * The model matrix is at the locations 1 to 4.
+ *
+ * @author Cien
+ */
+public class ShadowInstances {
+
+    public static final int MODEL_LOCATION = 1;
+
+    private static final int ebo = glGenBuffers();
+    private static final int vbo = glGenBuffers();
+    private static final int instanceBuffer = glGenBuffers();
+    private static final ContextObject vao = ContextObject.vertexArray(() -> {
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+        
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        glEnableVertexAttribArray(0);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, Cube.VERTEX_SIZE_ELEMENTS * Float.BYTES, 0);
+
+        glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+        for (int i = 0; i < 4; i++) {
+            glEnableVertexAttribArray(MODEL_LOCATION + i);
+            glVertexAttribPointer(MODEL_LOCATION + i, 4, GL_FLOAT, false, 4 * 4 * Float.BYTES, (i * 4) * Float.BYTES);
+            glVertexAttribDivisor(MODEL_LOCATION + i, 1);
+        }
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    });
+    private static final ContextObject viewsVao = ContextObject.vertexArray(() -> {
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+        
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        glEnableVertexAttribArray(0);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, Cube.VERTEX_SIZE_ELEMENTS * Float.BYTES, 0);
+
+        glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+        for (int i = 0; i < 4; i++) {
+            glEnableVertexAttribArray(MODEL_LOCATION + i);
+            glVertexAttribPointer(MODEL_LOCATION + i, 4, GL_FLOAT, false, 4 * 4 * Float.BYTES, (i * 4) * Float.BYTES);
+        }
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    });
+    private static Cube[] instances = new Cube[0];
+    private static int instanceCapacity = 0;
+
+    static {
+        VerticesStream stream = CubeVertices.generate(
+                CubeTexture.TEXTURE_WIDTH, CubeTexture.TEXTURE_HEIGHT,
+                CubeVAO.DEFAULT_LIGHTMAP_WIDTH, CubeVAO.DEFAULT_LIGHTMAP_HEIGHT
+        );
+
+        glBindBuffer(GL_ARRAY_BUFFER, ebo);
+        glBufferData(GL_ARRAY_BUFFER, stream.indices(), GL_STATIC_DRAW);
+
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        glBufferData(GL_ARRAY_BUFFER, stream.vertices(), GL_STATIC_DRAW);
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        vao.get();
+    }
+
+    private static boolean isUpToDate(List<Cube> cubes) {
+        if (cubes.size() != instances.length) {
+            return false;
+        }
+        for (int i = 0; i < instances.length; i++) {
+            if (instances[i] != cubes.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void update(List<Cube> cubes) {
+        if (isUpToDate(cubes)) {
+            return;
+        }
+
+        instances = cubes.toArray(Cube[]::new);
+
+        FloatBuffer data = MemoryUtil.memAllocFloat(Math.max(instances.length, 1) * 4 * 4);
+        try {
+            for (int i = 0; i < instances.length; i++) {
+                instances[i].getModel().get(i * 4 * 4, data);
+            }
+
+            glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+            if (instances.length > instanceCapacity) {
+                instanceCapacity = Math.max(instances.length, instanceCapacity * 2);
+                glBufferData(GL_ARRAY_BUFFER, ((long) instanceCapacity) * 4 * 4 * Float.BYTES, GL_DYNAMIC_DRAW);
+            }
+            data.limit(instances.length * 4 * 4);
+            glBufferSubData(GL_ARRAY_BUFFER, 0, data);
+            glBindBuffer(GL_ARRAY_BUFFER, 0);
+        } finally {
+            MemoryUtil.memFree(data);
+        }
+    }
+
+    public static void draw(List<Cube> cubes) {
+        update(cubes);
+
+        if (instances.length == 0) {
+            return;
+        }
+
+        glBindVertexArray(vao.get());
+        glDrawElementsInstanced(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0, instances.length);
+        glBindVertexArray(0);
+
+        Main.countDrawCall(Cube.NUMBER_OF_INDICES * instances.length);
+    }
+
+    /**
+     * Draws every cube once per view in a single instanced draw, the view of
+     * an instance is gl_InstanceID modulo the number of views.
+     *
+     * @param cubes the cubes
+     * @param views the number of views
+     */
+    public static void drawViews(List<Cube> cubes, int views) {
+        update(cubes);
+
+        if (instances.length == 0 || views <= 0) {
+            return;
+        }
+
+        glBindVertexArray(viewsVao.get());
+        for (int i = 0; i < 4; i++) {
+            glVertexAttribDivisor(MODEL_LOCATION + i, views);
+        }
+        glDrawElementsInstanced(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0, instances.length * views);
+        glBindVertexArray(0);
+
+        Main.countDrawCall(Cube.NUMBER_OF_INDICES * instances.length * views);
+    }
+
+    public static void init() {
+
+    }
+
+    private ShadowInstances() {
+
+    }
+
+}
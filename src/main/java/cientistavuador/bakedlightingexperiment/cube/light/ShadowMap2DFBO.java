@@ -26,6 +26,7 @@
  */
 package cientistavuador.bakedlightingexperiment.cube.light;
 
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
 import static org.lwjgl.opengl.GL33C.*;
 
 /**
@@ -40,7 +41,12 @@ public class ShadowMap2DFBO {
     private static int width = DEFAULT_WIDTH;
     private static int height = DEFAULT_HEIGHT;
     private static final int shadowMap = glGenTextures();
-    private static final int fbo = glGenFramebuffers();
+    private static final ContextObject fbo = ContextObject.framebuffer("shadow", () -> {
+        glFramebufferTexture(GL_DRAW_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, ShadowMap2DFBO.shadowMap, 0);
+        glDrawBuffers(GL_NONE);
+    });
+    private static final int esmMap = ShadowFilter.createMap(DEFAULT_WIDTH / 2);
+    private static final ContextObject esmFbo = ShadowFilter.mapFramebuffer(esmMap);
     
     static {
         glActiveTexture(GL_TEXTURE0);
@@ -55,13 +61,7 @@ public class ShadowMap2DFBO {
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_COMPARE_FUNC, GL_LEQUAL);
         glBindTexture(GL_TEXTURE_2D, 0);
         
-        glBindFramebuffer(GL_FRAMEBUFFER, ShadowMap2DFBO.fbo);
-        glFramebufferTexture(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, ShadowMap2DFBO.shadowMap, 0);
-        glDrawBuffers(GL_NONE);
-        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
-            throw new RuntimeException("Could not create shadow FBO!");
-        }
-        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        ShadowMap2DFBO.fbo.get();
     }
     
     public static void updateShadowMapSize(int width, int height) {
@@ -76,6 +76,25 @@ public class ShadowMap2DFBO {
         glBindTexture(GL_TEXTURE_2D, ShadowMap2DFBO.shadowMap);
         glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT32, width, height, 0, GL_DEPTH_COMPONENT, GL_UNSIGNED_INT, 0);
         glBindTexture(GL_TEXTURE_2D, 0);
+        
+        ShadowFilter.resizeMap(ShadowMap2DFBO.esmMap, Math.max(width, height) / 2);
+    }
+    
+    /**
+     * Prefilters the shadow map into its exponential shadow map if the
+     * shadows are prefiltered.
+     */
+    public static void filter() {
+        if (!ShadowFilter.isPrefiltered()) {
+            return;
+        }
+        int size = Math.max(width, height);
+        ShadowFilter.filter(
+                shadowMap,
+                0, 0, size,
+                ShadowFilter.SUN_EXPONENT, 0f,
+                esmFbo.get(), size / 2
+        );
     }
     
     public static int width() {
@@ -91,7 +110,11 @@ public class ShadowMap2DFBO {
     }
     
     public static int fbo() {
-        return fbo;
+        return fbo.get();
+    }
+    
+    public static int esmMap() {
+        return esmMap;
     }
     
     public static void init() {
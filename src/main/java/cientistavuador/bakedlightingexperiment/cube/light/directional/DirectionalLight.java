@@ -28,13 +28,22 @@ package cientistavuador.bakedlightingexperiment.cube.light.directional;
 
 import cientistavuador.bakedlightingexperiment.Main;
 import cientistavuador.bakedlightingexperiment.camera.OrthoCamera;
+import cientistavuador.bakedlightingexperiment.camera.ShadowCamera;
 import cientistavuador.bakedlightingexperiment.cube.Cube;
-import cientistavuador.bakedlightingexperiment.cube.CubeVAO;
 import cientistavuador.bakedlightingexperiment.cube.light.icon.IconType;
 import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowInstances;
 import cientistavuador.bakedlightingexperiment.cube.light.ShadowMap2DFBO;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import org.joml.Vector2f;
 import org.joml.Vector3d;
+import org.joml.Vector3dc;
 import org.joml.Vector3f;
 import org.joml.Vector3fc;
 import static org.lwjgl.opengl.GL33C.*;
@@ -45,9 +54,69 @@ import static org.lwjgl.opengl.GL33C.*;
  */
 public class DirectionalLight implements Light {
     
+    public static final float SHADOW_TEXELS_PER_UNIT = ShadowMap2DFBO.DEFAULT_WIDTH / 100f;
+    public static final int SHADOW_TILE_MARGIN = 16;
+    
+    /**
+     * A part of the baked cubes covered by one shadow map, every receiver
+     * belongs to a single tile and is fully inside of it.
+     */
+    public static class ShadowTile {
+        
+        private final Vector3d position;
+        private final float width;
+        private final float height;
+        private final float farPlane;
+        private final int mapWidth;
+        private final int mapHeight;
+        private final List<Cube> receivers;
+
+        private ShadowTile(Vector3d position, float width, float height, float farPlane, int mapWidth, int mapHeight, List<Cube> receivers) {
+            this.position = position;
+            this.width = width;
+            this.height = height;
+            this.farPlane = farPlane;
+            this.mapWidth = mapWidth;
+            this.mapHeight = mapHeight;
+            this.receivers = receivers;
+        }
+
+        public Vector3dc getPosition() {
+            return position;
+        }
+
+        public float getWidth() {
+            return width;
+        }
+
+        public float getHeight() {
+            return height;
+        }
+
+        public float getFarPlane() {
+            return farPlane;
+        }
+
+        public int getMapWidth() {
+            return mapWidth;
+        }
+
+        public int getMapHeight() {
+            return mapHeight;
+        }
+
+        public List<Cube> getReceivers() {
+            return receivers;
+        }
+        
+    }
+    
     private static final Vector3f position = new Vector3f(0f);
     
     private final OrthoCamera camera = new OrthoCamera();
+    private final ShadowCamera fitCamera = new ShadowCamera();
+    private int shadowMapWidth = ShadowMap2DFBO.DEFAULT_WIDTH;
+    private int shadowMapHeight = ShadowMap2DFBO.DEFAULT_HEIGHT;
     private final Vector3f direction = new Vector3f(-0.5f, -1f, 0.5f).normalize();
     private final Vector3f iconColor = new Vector3f(255f / 255f, 253f / 255f, 242f / 255f);
     private final Vector3f diffuseColor = new Vector3f(iconColor).mul(1.0f);
@@ -92,6 +161,157 @@ public class DirectionalLight implements Light {
     public Vector3f getDirection() {
         return direction;
     }
+    
+    /**
+     * Splits the receivers into tiles with at least
+     * {@link #SHADOW_TEXELS_PER_UNIT} shadow map texels per world unit, only a
+     * receiver larger than a whole shadow map gets less.
+     * <p>
+     * The light space bounds of the receivers are fitted with a
+     * {@link ShadowCamera}, every receiver goes to the tile of its center and
+     * each tile is then grown to the bounding spheres of its receivers, a
+     * tile grown past a whole shadow map is split in half at the median of
+     * its receivers until it fits, the depth range of every tile covers all
+     * the casters.
+     *
+     * @param receivers the cubes being baked
+     * @param casters the cubes that may cast shadows on them
+     * @return the tiles, empty if there are no receivers
+     */
+    public List<ShadowTile> fitShadowTiles(List<Cube> receivers, List<Cube> casters) {
+        if (receivers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        
+        Vector3d min = new Vector3d(Double.POSITIVE_INFINITY);
+        Vector3d max = new Vector3d(Double.NEGATIVE_INFINITY);
+        for (Cube c : receivers) {
+            min.min(new Vector3d(c.getMin()));
+            max.max(new Vector3d(c.getMax()));
+        }
+        this.fitCamera.update(min, max, this.direction, 1f);
+        
+        Vector3dc center = this.fitCamera.getPosition();
+        Vector3fc right = this.fitCamera.getRight();
+        Vector3fc up = this.fitCamera.getUp();
+        Vector3fc front = this.fitCamera.getFront();
+        float width = this.fitCamera.getDimensions().x();
+        float height = this.fitCamera.getDimensions().y();
+        
+        float maxTileSize = ShadowMap2DFBO.DEFAULT_WIDTH / SHADOW_TEXELS_PER_UNIT;
+        int tilesX = Math.max((int) Math.ceil(width / maxTileSize), 1);
+        int tilesY = Math.max((int) Math.ceil(height / maxTileSize), 1);
+        
+        float nearest = Float.POSITIVE_INFINITY;
+        float farthest = Float.NEGATIVE_INFINITY;
+        for (List<Cube> list : List.of(receivers, casters)) {
+            for (Cube c : list) {
+                float along = front.dot(c.getCenter().x(), c.getCenter().y(), c.getCenter().z());
+                nearest = Math.min(nearest, along - c.getRadius());
+                farthest = Math.max(farthest, along + c.getRadius());
+            }
+        }
+        
+        int tiles = tilesX * tilesY;
+        List<List<Cube>> tileReceivers = new ArrayList<>();
+        for (int i = 0; i < tiles; i++) {
+            tileReceivers.add(new ArrayList<>());
+        }
+        Map<Cube, Vector2f> projected = new IdentityHashMap<>();
+        for (Cube c : receivers) {
+            float cx = (float) (c.getCenter().x() - center.x());
+            float cy = (float) (c.getCenter().y() - center.y());
+            float cz = (float) (c.getCenter().z() - center.z());
+            float u = right.dot(cx, cy, cz);
+            float v = up.dot(cx, cy, cz);
+            projected.put(c, new Vector2f(u, v));
+            
+            int tx = Math.min(Math.max((int) Math.floor(((u / width) + 0.5f) * tilesX), 0), tilesX - 1);
+            int ty = Math.min(Math.max((int) Math.floor(((v / height) + 0.5f) * tilesY), 0), tilesY - 1);
+            tileReceivers.get(tx + (ty * tilesX)).add(c);
+        }
+        
+        ArrayDeque<List<Cube>> pending = new ArrayDeque<>();
+        for (List<Cube> list : tileReceivers) {
+            if (!list.isEmpty()) {
+                pending.add(list);
+            }
+        }
+        
+        float margin = SHADOW_TILE_MARGIN / SHADOW_TEXELS_PER_UNIT;
+        float maxMapWidth = ShadowMap2DFBO.DEFAULT_WIDTH / SHADOW_TEXELS_PER_UNIT;
+        float maxMapHeight = ShadowMap2DFBO.DEFAULT_HEIGHT / SHADOW_TEXELS_PER_UNIT;
+        List<ShadowTile> result = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            List<Cube> tileCubes = pending.poll();
+            
+            float minU = Float.POSITIVE_INFINITY;
+            float minV = Float.POSITIVE_INFINITY;
+            float maxU = Float.NEGATIVE_INFINITY;
+            float maxV = Float.NEGATIVE_INFINITY;
+            for (Cube c : tileCubes) {
+                Vector2f uv = projected.get(c);
+                minU = Math.min(minU, uv.x() - c.getRadius());
+                minV = Math.min(minV, uv.y() - c.getRadius());
+                maxU = Math.max(maxU, uv.x() + c.getRadius());
+                maxV = Math.max(maxV, uv.y() + c.getRadius());
+            }
+            minU -= margin;
+            minV -= margin;
+            maxU += margin;
+            maxV += margin;
+            
+            float overU = (maxU - minU) / maxMapWidth;
+            float overV = (maxV - minV) / maxMapHeight;
+            if ((overU > 1f || overV > 1f) && tileCubes.size() > 1) {
+                boolean alongU = overU >= overV;
+                List<Cube> sorted = new ArrayList<>(tileCubes);
+                sorted.sort(Comparator.comparingDouble((c) -> alongU ? projected.get(c).x() : projected.get(c).y()));
+                int half = sorted.size() / 2;
+                pending.add(new ArrayList<>(sorted.subList(0, half)));
+                pending.add(new ArrayList<>(sorted.subList(half, sorted.size())));
+                continue;
+            }
+            
+            int mapWidth = Math.min((int) Math.ceil((maxU - minU) * SHADOW_TEXELS_PER_UNIT), ShadowMap2DFBO.DEFAULT_WIDTH);
+            int mapHeight = Math.min((int) Math.ceil((maxV - minV) * SHADOW_TEXELS_PER_UNIT), ShadowMap2DFBO.DEFAULT_HEIGHT);
+            float tileWidth = Math.max(maxU - minU, mapWidth / SHADOW_TEXELS_PER_UNIT);
+            float tileHeight = Math.max(maxV - minV, mapHeight / SHADOW_TEXELS_PER_UNIT);
+            
+            float midU = (minU + maxU) * 0.5f;
+            float midV = (minV + maxV) * 0.5f;
+            Vector3d tilePosition = new Vector3d(center)
+                    .fma(midU, new Vector3d(right))
+                    .fma(midV, new Vector3d(up));
+            double along = tilePosition.dot(front.x(), front.y(), front.z());
+            tilePosition.fma((nearest - along) - 1.0, new Vector3d(front));
+            
+            result.add(new ShadowTile(
+                    tilePosition,
+                    tileWidth, tileHeight,
+                    (farthest - nearest) + 2f,
+                    mapWidth, mapHeight,
+                    tileCubes
+            ));
+        }
+        return result;
+    }
+    
+    /**
+     * Moves the shadow camera to a tile, the next shadow map rendered covers
+     * the tile.
+     *
+     * @param tile the tile
+     */
+    public void setShadowTile(ShadowTile tile) {
+        this.camera.setFront(this.direction);
+        this.camera.setPosition(tile.getPosition());
+        this.camera.setDimensions(tile.getWidth(), tile.getHeight());
+        this.camera.setNearPlane(0f);
+        this.camera.setFarPlane(tile.getFarPlane());
+        this.shadowMapWidth = tile.getMapWidth();
+        this.shadowMapHeight = tile.getMapHeight();
+    }
 
     @Override
     public Vector3f getAmbientColor() {
@@ -104,15 +324,14 @@ public class DirectionalLight implements Light {
     }
     
     @Override
-    public void render(Cube cube, int lightmap) {
+    public void render(Cube cube) {
         glUseProgram(DirectionalLightProgram.SHADER_PROGRAM);
-        glBindVertexArray(Cube.VAO);
+        glBindVertexArray(cube.getVAO());
         
-        DirectionalLightProgram.sendUniforms(lightmap, cube.getModel(), cube.getNormalModel(), this);
+        DirectionalLightProgram.sendUniforms(cube.getLightmapRegion(), cube.getModel(), cube.getNormalModel(), this);
         glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
         
-        Main.NUMBER_OF_DRAWCALLS++;
-        Main.NUMBER_OF_VERTICES += Cube.NUMBER_OF_INDICES;
+        Main.countDrawCall(Cube.NUMBER_OF_INDICES);
         
         glBindVertexArray(0);
         glUseProgram(0);
@@ -120,7 +339,7 @@ public class DirectionalLight implements Light {
     
     @Override
     public void renderShadowMap(List<Cube> cubes) {
-        ShadowMap2DFBO.updateShadowMapSize(ShadowMap2DFBO.DEFAULT_WIDTH, ShadowMap2DFBO.DEFAULT_HEIGHT);
+        ShadowMap2DFBO.updateShadowMapSize(this.shadowMapWidth, this.shadowMapHeight);
         
         this.camera.setFront(this.direction);
         
@@ -132,22 +351,14 @@ public class DirectionalLight implements Light {
         
         DirectionalLightShadowProgram.sendPerFrameUniforms(this.camera.getProjectionViewFloat());
         
-        for (Cube c:cubes) {
-            if (c.isGroundCube()) {
-                glBindVertexArray(CubeVAO.GROUND_CUBE_VAO);
-            } else {
-                glBindVertexArray(CubeVAO.VAO);
-            }
-            DirectionalLightShadowProgram.sendPerDrawUniforms(c.getModel());
-            
-            glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
-            glBindVertexArray(0);
-        }
+        ShadowInstances.draw(cubes);
         
         glUseProgram(0);
         glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
         
         glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+        
+        ShadowMap2DFBO.filter();
     }
 
     @Override
@@ -160,6 +371,16 @@ public class DirectionalLight implements Light {
         this.enabled = enabled;
     }
 
+    @Override
+    public int getShadowAtlasTiles() {
+        return 0;
+    }
+
+    @Override
+    public float getRange() {
+        return Float.POSITIVE_INFINITY;
+    }
+
     @Override
     public IconType getIconType() {
         return IconType.NONE;
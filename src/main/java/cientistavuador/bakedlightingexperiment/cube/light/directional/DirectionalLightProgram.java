@@ -26,6 +26,8 @@
  */
 package cientistavuador.bakedlightingexperiment.cube.light.directional;
 
+import cientistavuador.bakedlightingexperiment.cube.LightmapAtlas;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowFilter;
 import cientistavuador.bakedlightingexperiment.cube.light.ShadowMap2DFBO;
 import cientistavuador.bakedlightingexperiment.util.ProgramCompiler;
 import java.nio.FloatBuffer;
@@ -46,6 +48,7 @@ public class DirectionalLightProgram {
             
             uniform mat4 model;
             uniform mat3 normalModel;
+            uniform vec4 lightmapRegion;
             
             layout (location = 0) in vec3 vertexPosition;
             layout (location = 1) in vec3 vertexNormal;
@@ -54,7 +57,6 @@ public class DirectionalLightProgram {
             layout (location = 4) in vec2 vertexLightmapPosition;
             
             out vec3 position;
-            out vec2 texCoords;
             out vec3 normal;
             
             void main() {
@@ -62,10 +64,10 @@ public class DirectionalLightProgram {
                 pos.xyz /= pos.w;
                 position = pos.xyz;
                 
-                texCoords = (vertexLightmapPosition + 1.0) / 2.0;
                 normal = normalize(normalModel * vertexNormal);
                 
-                gl_Position = vec4(vertexLightmapPosition, 1.0, 1.0);
+                vec2 regionPosition = lightmapRegion.xy + (((vertexLightmapPosition + 1.0) / 2.0) * lightmapRegion.zw);
+                gl_Position = vec4((regionPosition * 2.0) - 1.0, 1.0, 1.0);
             }
             """;
 
@@ -74,8 +76,16 @@ public class DirectionalLightProgram {
             """
             #version 330 core
             
-            uniform sampler2D lightmapTexture;
+            #define SHADOW_MODE_ESM %d
+            #define SUN_ESM_EXPONENT %s
+            #define SHADOW_MODE_ADAPTIVE %d
+            #define SUN_ANGULAR_RADIUS %s
+            
             uniform sampler2DShadow shadowMap;
+            uniform sampler2D shadowMapESM;
+            uniform sampler2D shadowMapDepth;
+            uniform vec3 shadowMapExtent;
+            uniform int shadowMode;
             uniform mat4 shadowMapProjectionView;
             
             uniform vec3 lightDirection;
@@ -83,11 +93,11 @@ public class DirectionalLightProgram {
             uniform vec3 lightDiffuse;
             
             in vec3 position;
-            in vec2 texCoords;
             in vec3 normal;
             
             layout (location = 0) out vec4 outputColor;
             
+            %s
             void main() {
                 vec2 shadowMapTexelSize = 1.0 / vec2(textureSize(shadowMap, 0));
                 int pcf = 3;
@@ -97,33 +107,58 @@ public class DirectionalLightProgram {
                 mapCoords.xyz = (mapCoords.xyz + 1.0) / 2.0;
                 
                 float shadowValue = 0.0;
-                for (int x = -pcf; x <= pcf; x++) {
-                    for (int y = -pcf; y <= pcf; y++) {
-                        shadowValue += texture(shadowMap, vec3(mapCoords.xy + (vec2(float(x), float(y)) * shadowMapTexelSize), mapCoords.z - 0.0002));
+                if (shadowMode == SHADOW_MODE_ESM) {
+                    if (any(lessThan(mapCoords.xy, vec2(0.0))) || any(greaterThan(mapCoords.xy, vec2(1.0)))) {
+                        shadowValue = 1.0;
+                    } else {
+                        float occluder = texture(shadowMapESM, mapCoords.xy).r;
+                        shadowValue = clamp(exp(occluder - (SUN_ESM_EXPONENT * mapCoords.z)), 0.0, 1.0);
+                    }
+                } else if (shadowMode == SHADOW_MODE_ADAPTIVE) {
+                    shadowValue = adaptiveShadow(
+                            shadowMapDepth, shadowMap,
+                            mapCoords.xy, shadowMapTexelSize, vec2(-1.0), vec2(2.0),
+                            mapCoords.z - 0.0002, shadowMapExtent.x, shadowMapExtent.y,
+                            SUN_ANGULAR_RADIUS, false, shadowMapExtent.z * shadowMapTexelSize.x, pcf * 2
+                    );
+                } else {
+                    for (int x = -pcf; x <= pcf; x++) {
+                        for (int y = -pcf; y <= pcf; y++) {
+                            shadowValue += texture(shadowMap, vec3(mapCoords.xy + (vec2(float(x), float(y)) * shadowMapTexelSize), mapCoords.z - 0.0002));
+                        }
                     }
+                    shadowValue /= pow((float(pcf) * 2.0) + 1.0, 2.0);
                 }
-                shadowValue /= pow((float(pcf) * 2.0) + 1.0, 2.0);
                 
                 vec3 resultColor = vec3(0.0);
                 
                 resultColor += lightDiffuse * max(dot(normal, -lightDirection), 0.0) * shadowValue;
                 resultColor += lightAmbient;
                 
-                ivec2 lightmapPixel = ivec2(floor(texCoords * vec2(textureSize(lightmapTexture, 0))));
-                outputColor = vec4(resultColor + texelFetch(lightmapTexture, lightmapPixel, 0).rgb, 1.0);
+                outputColor = vec4(resultColor, 1.0);
             }
-            """;
+            """.formatted(
+                    ShadowFilter.MODE_ESM,
+                    ShadowFilter.SUN_EXPONENT,
+                    ShadowFilter.MODE_ADAPTIVE,
+                    ShadowFilter.SUN_ANGULAR_RADIUS,
+                    ShadowFilter.ADAPTIVE_SHADOW_GLSL
+            );
 
     public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
     public static final int MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "model");
     public static final int NORMAL_MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "normalModel");
-    public static final int LIGHTMAP_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapTexture");
+    public static final int LIGHTMAP_REGION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapRegion");
     
     public static final int LIGHT_DIRECTION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightDirection");
     public static final int LIGHT_AMBIENT_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightAmbient");
     public static final int LIGHT_DIFFUSE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightDiffuse");
     
     public static final int SHADOW_MAP_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMap");
+    public static final int SHADOW_MAP_ESM_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMapESM");
+    public static final int SHADOW_MAP_DEPTH_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMapDepth");
+    public static final int SHADOW_MAP_EXTENT_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMapExtent");
+    public static final int SHADOW_MODE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMode");
     public static final int SHADOW_MAP_PROJECTION_VIEW_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMapProjectionView");
     
     private static void sendMatrix(int location, Matrix4fc matrix) {
@@ -146,13 +181,10 @@ public class DirectionalLightProgram {
         DirectionalLightShadowProgram.init();
     }
 
-    public static void sendUniforms(int lightmapTexture, Matrix4fc model, Matrix3fc normalModel, DirectionalLight light) {
+    public static void sendUniforms(LightmapAtlas.Region region, Matrix4fc model, Matrix3fc normalModel, DirectionalLight light) {
         sendMatrix(MODEL_INDEX, model);
         sendMatrix3f(NORMAL_MODEL_INDEX, normalModel);
-        
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, lightmapTexture);
-        glUniform1i(LIGHTMAP_TEXTURE_INDEX, 0);
+        glUniform4f(LIGHTMAP_REGION_INDEX, region.getOffsetX(), region.getOffsetY(), region.getScaleX(), region.getScaleY());
         
         glUniform3f(LIGHT_DIRECTION_INDEX, light.getDirection().x(), light.getDirection().y(), light.getDirection().z());
         glUniform3f(LIGHT_AMBIENT_INDEX, light.getAmbientColor().x(), light.getAmbientColor().y(), light.getAmbientColor().z());
@@ -161,6 +193,20 @@ public class DirectionalLightProgram {
         glActiveTexture(GL_TEXTURE1);
         glBindTexture(GL_TEXTURE_2D, ShadowMap2DFBO.shadowMap());
         glUniform1i(SHADOW_MAP_INDEX, 1);
+        
+        glActiveTexture(GL_TEXTURE2);
+        glBindTexture(GL_TEXTURE_2D, ShadowMap2DFBO.esmMap());
+        glUniform1i(SHADOW_MAP_ESM_INDEX, 2);
+        glUniform1i(SHADOW_MODE_INDEX, ShadowFilter.getMode());
+        
+        ShadowFilter.bindRawDepth(ShadowFilter.RAW_SUN_UNIT, ShadowMap2DFBO.shadowMap());
+        glUniform1i(SHADOW_MAP_DEPTH_INDEX, ShadowFilter.RAW_SUN_UNIT);
+        glUniform3f(SHADOW_MAP_EXTENT_INDEX,
+                light.getCamera().getNearPlane(),
+                light.getCamera().getFarPlane(),
+                light.getCamera().getDimensions().x()
+        );
+        
         sendMatrix(SHADOW_MAP_PROJECTION_VIEW_INDEX, light.getCamera().getProjectionViewFloat());
     }
     
@@ -41,12 +41,12 @@ public class DirectionalLightShadowProgram {
             #version 330 core
             
             uniform mat4 projectionView;
-            uniform mat4 model;
             
             layout (location = 0) in vec3 vertexPosition;
+            layout (location = 1) in mat4 instanceModel;
             
             void main() {
-                gl_Position = projectionView * model * vec4(vertexPosition, 1.0);
+                gl_Position = projectionView * instanceModel * vec4(vertexPosition, 1.0);
             }
             """;
     
@@ -60,7 +60,7 @@ public class DirectionalLightShadowProgram {
             """;
     
     public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
-    public static final BetterUniformSetter UNIFORMS = new BetterUniformSetter(SHADER_PROGRAM, "projectionView", "model");
+    public static final BetterUniformSetter UNIFORMS = new BetterUniformSetter(SHADER_PROGRAM, "projectionView");
     
     public static void init() {
         
@@ -70,10 +70,6 @@ public class DirectionalLightShadowProgram {
         BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("projectionView"), projectionView);
     }
     
-    public static void sendPerDrawUniforms(Matrix4fc model) {
-        BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("model"), model);
-    }
-    
     private DirectionalLightShadowProgram() {
         
     }
@@ -59,8 +59,7 @@ public class IconRender {
         IconProgram.sendPerDrawUniforms(model, light.getIconType().texture(), light.getIconColor());
         glDrawElements(GL_TRIANGLES, IconVAO.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
         
-        Main.NUMBER_OF_DRAWCALLS++;
-        Main.NUMBER_OF_VERTICES += IconVAO.NUMBER_OF_INDICES;
+        Main.countDrawCall(IconVAO.NUMBER_OF_INDICES);
     }
     
     public static void finish() {
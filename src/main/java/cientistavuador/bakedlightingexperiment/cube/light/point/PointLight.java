@@ -28,11 +28,15 @@ package cientistavuador.bakedlightingexperiment.cube.light.point;
 
 import cientistavuador.bakedlightingexperiment.Main;
 import cientistavuador.bakedlightingexperiment.cube.Cube;
-import cientistavuador.bakedlightingexperiment.cube.CubeVAO;
 import cientistavuador.bakedlightingexperiment.cube.light.icon.IconType;
 import cientistavuador.bakedlightingexperiment.cube.light.Light;
-import cientistavuador.bakedlightingexperiment.cube.light.ShadowCubeMapFBO;
+import cientistavuador.bakedlightingexperiment.cube.light.LightRange;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowInstances;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowAtlas;
+import java.util.ArrayList;
 import java.util.List;
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector3fc;
 import static org.lwjgl.opengl.GL33C.*;
@@ -59,6 +63,12 @@ public class PointLight implements Light {
         this.iconColor = new Vector3f(color);
     }
 
+    public void setColor(Vector3fc color, float brightness) {
+        this.diffuseColor.set(color).mul(brightness);
+        this.ambientColor.set(color).mul(brightness / 32f);
+        this.iconColor.set(color);
+    }
+
     @Override
     public Vector3f getIconColor() {
         return this.iconColor;
@@ -80,15 +90,14 @@ public class PointLight implements Light {
     }
 
     @Override
-    public void render(Cube cube, int lightmap) {
+    public void render(Cube cube) {
         glUseProgram(PointLightProgram.SHADER_PROGRAM);
-        glBindVertexArray(Cube.VAO);
+        glBindVertexArray(cube.getVAO());
 
-        PointLightProgram.sendUniforms(lightmap, cube.getModel(), cube.getNormalModel(), this);
+        PointLightProgram.sendUniforms(cube.getLightmapRegion(), cube.getModel(), cube.getNormalModel(), this);
         glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
 
-        Main.NUMBER_OF_DRAWCALLS++;
-        Main.NUMBER_OF_VERTICES += Cube.NUMBER_OF_INDICES;
+        Main.countDrawCall(Cube.NUMBER_OF_INDICES);
 
         glBindVertexArray(0);
         glUseProgram(0);
@@ -96,10 +105,8 @@ public class PointLight implements Light {
 
     @Override
     public void renderShadowMap(List<Cube> cubes) {
-        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, ShadowCubeMapFBO.fbo());
-        glViewport(0, 0, ShadowCubeMapFBO.size(), ShadowCubeMapFBO.size());
-
-        glClear(GL_DEPTH_BUFFER_BIT);
+        ShadowAtlas.Tile[] tiles = ShadowAtlas.tilesOf(this);
+        
         glUseProgram(PointLightShadowProgram.SHADER_PROGRAM);
 
         PointLightShadowProgram.sendPerFrameUniforms(
@@ -110,22 +117,60 @@ public class PointLight implements Light {
                 this.position.z()
         );
 
-        for (Cube c : cubes) {
-            if (c.isGroundCube()) {
-                glBindVertexArray(CubeVAO.GROUND_CUBE_VAO);
-            } else {
-                glBindVertexArray(CubeVAO.VAO);
+        //each cube in range is only drawn to the faces its bounding sphere overlaps
+        List<Cube> inRange = LightRange.cull(this, cubes);
+        Matrix4f projectionView = new Matrix4f();
+        FrustumIntersection frustum = new FrustumIntersection();
+        List<Cube> faceCubes = new ArrayList<>();
+        for (int face = 0; face < 6; face++) {
+            ShadowAtlas.Tile tile = tiles[face];
+            if (tile == null) {
+                continue;
+            }
+            
+            PointLightShadowProgram.faceProjectionView(
+                    face,
+                    NEAR_PLANE,
+                    FAR_PLANE,
+                    this.position.x(),
+                    this.position.y(),
+                    this.position.z(),
+                    projectionView
+            );
+            frustum.set(projectionView, false);
+
+            faceCubes.clear();
+            for (Cube c : inRange) {
+                if (frustum.testSphere(c.getCenter(), c.getRadius())) {
+                    faceCubes.add(c);
+                }
             }
-            PointLightShadowProgram.sendPerDrawUniforms(c.getModel());
 
-            glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
-            glBindVertexArray(0);
+            ShadowAtlas.beginTile(tile);
+            if (!faceCubes.isEmpty()) {
+                PointLightShadowProgram.sendPerFaceUniforms(projectionView);
+                ShadowInstances.draw(faceCubes);
+            }
+            ShadowAtlas.endTile();
         }
 
         glUseProgram(0);
-        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+        
+        for (ShadowAtlas.Tile tile : tiles) {
+            if (tile != null) {
+                ShadowAtlas.filterTile(tile, NEAR_PLANE, FAR_PLANE, getRange());
+            }
+        }
+    }
+
+    @Override
+    public int getShadowAtlasTiles() {
+        return 6;
+    }
 
-        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+    @Override
+    public float getRange() {
+        return LightRange.of(this.diffuseColor, this.ambientColor);
     }
 
     @Override
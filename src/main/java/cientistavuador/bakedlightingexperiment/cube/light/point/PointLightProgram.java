@@ -26,10 +26,13 @@
  */
 package cientistavuador.bakedlightingexperiment.cube.light.point;
 
-import cientistavuador.bakedlightingexperiment.cube.light.ShadowCubeMapFBO;
+import cientistavuador.bakedlightingexperiment.cube.LightmapAtlas;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowAtlas;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowFilter;
 import cientistavuador.bakedlightingexperiment.util.ProgramCompiler;
 import java.nio.FloatBuffer;
 import org.joml.Matrix3fc;
+import org.joml.Matrix4f;
 import org.joml.Matrix4fc;
 import static org.lwjgl.opengl.GL33C.*;
 import org.lwjgl.system.MemoryStack;
@@ -46,6 +49,7 @@ public class PointLightProgram {
             
             uniform mat4 model;
             uniform mat3 normalModel;
+            uniform vec4 lightmapRegion;
             
             layout (location = 0) in vec3 vertexPosition;
             layout (location = 1) in vec3 vertexNormal;
@@ -54,7 +58,6 @@ public class PointLightProgram {
             layout (location = 4) in vec2 vertexLightmapPosition;
             
             out vec3 position;
-            out vec2 texCoords;
             out vec3 normal;
             
             void main() {
@@ -62,10 +65,10 @@ public class PointLightProgram {
                 pos.xyz /= pos.w;
                 position = pos.xyz;
                 
-                texCoords = (vertexLightmapPosition + 1.0) / 2.0;
                 normal = normalize(normalModel * vertexNormal);
                 
-                gl_Position = vec4(vertexLightmapPosition, 1.0, 1.0);
+                vec2 regionPosition = lightmapRegion.xy + (((vertexLightmapPosition + 1.0) / 2.0) * lightmapRegion.zw);
+                gl_Position = vec4((regionPosition * 2.0) - 1.0, 1.0, 1.0);
             }
             """;
 
@@ -74,66 +77,132 @@ public class PointLightProgram {
             """
             #version 330 core
             
-            uniform sampler2D lightmapTexture;
+            #define SHADOW_MODE_ESM %d
+            #define ATLAS_ESM_EXPONENT %s
+            #define SHADOW_MODE_ADAPTIVE %d
+            #define LIGHT_SOURCE_RADIUS %s
             
             uniform vec3 lightPosition;
             uniform vec3 lightAmbient;
             uniform vec3 lightDiffuse;
+            uniform float lightRange;
             
-            uniform samplerCubeShadow shadowCubeMap;
+            uniform sampler2DShadow shadowMap;
+            uniform sampler2D shadowMapESM;
+            uniform sampler2D shadowMapDepth;
+            uniform int shadowMode;
+            uniform mat4 shadowFaceProjectionView[6];
+            uniform vec4 shadowFaceTile[6];
             uniform float nearPlane;
             uniform float farPlane;
             
             in vec3 position;
-            in vec2 texCoords;
             in vec3 normal;
             
             layout (location = 0) out vec4 outputColor;
             
+            %s
             void main() {
                 vec3 resultColor = vec3(0.0);
                 
                 vec3 lightDir = normalize(lightPosition - position);
                 float distance = length(lightPosition - position);
                 float attenuation = 1.0 / (distance*distance);
-                
-                float offset = 0.0025;
-                int pcf = 2;
+                float window = clamp(1.0 - pow(distance / lightRange, 4.0), 0.0, 1.0);
+                attenuation *= window * window;
                 
                 float zLinear = (length(lightPosition - position) - nearPlane) / (farPlane - nearPlane);
-                vec3 shadowDirection = normalize(position - lightPosition);
                 
-                float shadowValue = 0.0;
-                for (int x = -pcf; x <= pcf; x++) {
-                    for (int y = -pcf; y <= pcf; y++) {
-                        for (int z = -pcf; z <= pcf; z++) {
-                            shadowValue += texture(shadowCubeMap, vec4(normalize(shadowDirection + (vec3(float(x), float(y), float(z)) * offset)), zLinear - 0.00006));
+                vec3 shadowDirection = position - lightPosition;
+                vec3 absDirection = abs(shadowDirection);
+                int face;
+                if (absDirection.x >= absDirection.y && absDirection.x >= absDirection.z) {
+                    face = (shadowDirection.x > 0.0 ? 0 : 1);
+                } else if (absDirection.y >= absDirection.z) {
+                    face = (shadowDirection.y > 0.0 ? 2 : 3);
+                } else {
+                    face = (shadowDirection.z > 0.0 ? 4 : 5);
+                }
+                vec4 tile = shadowFaceTile[face];
+                
+                float shadowValue = 1.0;
+                if (tile.z > 0.0) {
+                    vec2 shadowMapTexelSize = 1.0 / vec2(textureSize(shadowMap, 0));
+                    int pcf = 2;
+                    
+                    vec4 mapCoords = shadowFaceProjectionView[face] * vec4(position, 1.0);
+                    mapCoords /= mapCoords.w;
+                    mapCoords.xy = (mapCoords.xy + 1.0) / 2.0;
+                    
+                    vec2 tileCoords = tile.xy + (mapCoords.xy * tile.z);
+                    vec2 tileMin = tile.xy + (shadowMapTexelSize * 0.5);
+                    vec2 tileMax = tile.xy + vec2(tile.z) - (shadowMapTexelSize * 0.5);
+                    
+                    if (shadowMode == SHADOW_MODE_ESM) {
+                        vec2 esmTexelSize = 1.0 / vec2(textureSize(shadowMapESM, 0));
+                        vec2 esmCoords = clamp(tileCoords, tile.xy + (esmTexelSize * 0.5), tile.xy + vec2(tile.z) - (esmTexelSize * 0.5));
+                        float receiver = ATLAS_ESM_EXPONENT * (distance / lightRange);
+                        shadowValue = clamp(exp(texture(shadowMapESM, esmCoords).r - receiver), 0.0, 1.0);
+                    } else if (shadowMode == SHADOW_MODE_ADAPTIVE) {
+                        float faceDistance = max(absDirection.x, max(absDirection.y, absDirection.z));
+                        float worldTexelSize = (2.0 * faceDistance) / (tile.z / shadowMapTexelSize.x);
+                        shadowValue = adaptiveShadow(
+                                shadowMapDepth, shadowMap,
+                                tileCoords, shadowMapTexelSize, tileMin, tileMax,
+                                zLinear - 0.00006, nearPlane, farPlane,
+                                LIGHT_SOURCE_RADIUS, true, worldTexelSize, pcf * 2
+                        );
+                    } else {
+                        shadowValue = 0.0;
+                        for (int x = -pcf; x <= pcf; x++) {
+                            for (int y = -pcf; y <= pcf; y++) {
+                                vec2 sampleCoords = clamp(tileCoords + (vec2(float(x), float(y)) * shadowMapTexelSize), tileMin, tileMax);
+                                shadowValue += texture(shadowMap, vec3(sampleCoords, zLinear - 0.00006));
+                            }
                         }
+                        shadowValue /= pow((float(pcf) * 2.0) + 1.0, 2.0);
                     }
                 }
-                shadowValue /= pow((float(pcf) * 2.0) + 1.0, 3.0);
                 
                 resultColor += lightDiffuse * max(dot(normal, lightDir), 0.0) * attenuation * shadowValue;
                 resultColor += lightAmbient * attenuation;
                 
-                ivec2 lightmapPixel = ivec2(floor(texCoords * vec2(textureSize(lightmapTexture, 0))));
-                outputColor = vec4(resultColor + texelFetch(lightmapTexture, lightmapPixel, 0).rgb, 1.0);
+                outputColor = vec4(resultColor, 1.0);
             }
-            """;
+            """.formatted(
+                    ShadowFilter.MODE_ESM,
+                    ShadowFilter.ATLAS_EXPONENT,
+                    ShadowFilter.MODE_ADAPTIVE,
+                    ShadowFilter.LIGHT_SOURCE_RADIUS,
+                    ShadowFilter.ADAPTIVE_SHADOW_GLSL
+            );
 
     public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
     public static final int MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "model");
     public static final int NORMAL_MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "normalModel");
-    public static final int LIGHTMAP_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapTexture");
+    public static final int LIGHTMAP_REGION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapRegion");
     
     public static final int LIGHT_POSITION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightPosition");
     public static final int LIGHT_AMBIENT_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightAmbient");
     public static final int LIGHT_DIFFUSE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightDiffuse");
+    public static final int LIGHT_RANGE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightRange");
     
-    public static final int SHADOWMAP_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowCubeMap");
+    public static final int SHADOWMAP_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMap");
+    public static final int SHADOWMAP_ESM_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMapESM");
+    public static final int SHADOWMAP_DEPTH_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMapDepth");
+    public static final int SHADOW_MODE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMode");
+    public static final int[] SHADOWMAP_FACE_PROJECTIONVIEW_INDICES = new int[6];
+    public static final int[] SHADOWMAP_FACE_TILE_INDICES = new int[6];
     public static final int NEAR_PLANE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "nearPlane");
     public static final int FAR_PLANE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "farPlane");
     
+    static {
+        for (int i = 0; i < 6; i++) {
+            SHADOWMAP_FACE_PROJECTIONVIEW_INDICES[i] = glGetUniformLocation(SHADER_PROGRAM, "shadowFaceProjectionView[" + i + "]");
+            SHADOWMAP_FACE_TILE_INDICES[i] = glGetUniformLocation(SHADER_PROGRAM, "shadowFaceTile[" + i + "]");
+        }
+    }
+    
     private static void sendMatrix(int location, Matrix4fc matrix) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
             FloatBuffer matrixBuffer = stack.mallocFloat(4 * 4);
@@ -154,22 +223,50 @@ public class PointLightProgram {
         PointLightShadowProgram.init();
     }
 
-    public static void sendUniforms(int lightmapTexture, Matrix4fc model, Matrix3fc normalModel, PointLight light) {
+    public static void sendUniforms(LightmapAtlas.Region region, Matrix4fc model, Matrix3fc normalModel, PointLight light) {
         sendMatrix(MODEL_INDEX, model);
         sendMatrix3f(NORMAL_MODEL_INDEX, normalModel);
-        
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, lightmapTexture);
-        glUniform1i(LIGHTMAP_TEXTURE_INDEX, 0);
+        glUniform4f(LIGHTMAP_REGION_INDEX, region.getOffsetX(), region.getOffsetY(), region.getScaleX(), region.getScaleY());
         
         glUniform3f(LIGHT_POSITION_INDEX, light.getPosition().x(), light.getPosition().y(), light.getPosition().z());
         glUniform3f(LIGHT_AMBIENT_INDEX, light.getAmbientColor().x(), light.getAmbientColor().y(), light.getAmbientColor().z());
         glUniform3f(LIGHT_DIFFUSE_INDEX, light.getDiffuseColor().x(), light.getDiffuseColor().y(), light.getDiffuseColor().z());
+        glUniform1f(LIGHT_RANGE_INDEX, light.getRange());
         
         glActiveTexture(GL_TEXTURE1);
-        glBindTexture(GL_TEXTURE_CUBE_MAP, ShadowCubeMapFBO.shadowCubeMap());
+        glBindTexture(GL_TEXTURE_2D, ShadowAtlas.shadowMap());
         glUniform1i(SHADOWMAP_INDEX, 1);
         
+        glActiveTexture(GL_TEXTURE2);
+        glBindTexture(GL_TEXTURE_2D, ShadowAtlas.esmMap());
+        glUniform1i(SHADOWMAP_ESM_INDEX, 2);
+        glUniform1i(SHADOW_MODE_INDEX, ShadowFilter.getMode());
+        
+        ShadowFilter.bindRawDepth(ShadowFilter.RAW_ATLAS_UNIT, ShadowAtlas.shadowMap());
+        glUniform1i(SHADOWMAP_DEPTH_INDEX, ShadowFilter.RAW_ATLAS_UNIT);
+        
+        ShadowAtlas.Tile[] tiles = ShadowAtlas.tilesOf(light);
+        Matrix4f faceProjectionView = new Matrix4f();
+        for (int face = 0; face < 6; face++) {
+            PointLightShadowProgram.faceProjectionView(
+                    face,
+                    PointLight.NEAR_PLANE,
+                    PointLight.FAR_PLANE,
+                    light.getPosition().x(),
+                    light.getPosition().y(),
+                    light.getPosition().z(),
+                    faceProjectionView
+            );
+            sendMatrix(SHADOWMAP_FACE_PROJECTIONVIEW_INDICES[face], faceProjectionView);
+            
+            ShadowAtlas.Tile tile = tiles[face];
+            if (tile == null) {
+                glUniform4f(SHADOWMAP_FACE_TILE_INDICES[face], 0f, 0f, 0f, 0f);
+            } else {
+                glUniform4f(SHADOWMAP_FACE_TILE_INDICES[face], tile.getOffsetX(), tile.getOffsetY(), tile.getScale(), tile.getScale());
+            }
+        }
+        
         glUniform1f(NEAR_PLANE_INDEX, PointLight.NEAR_PLANE);
         glUniform1f(FAR_PLANE_INDEX, PointLight.FAR_PLANE);
     }
@@ -44,39 +44,17 @@ public class PointLightShadowProgram {
             """
             #version 330 core
             
-            uniform mat4 model;
+            uniform mat4 projectionView;
             
             layout (location = 0) in vec3 vertexPosition;
-            
-            void main() {
-                gl_Position = model * vec4(vertexPosition, 1.0);
-            }
-            """;
-
-    public static final String GEOMETRY_SHADER
-            = 
-            """
-            #version 330 core
-            
-            layout (triangles) in;
-            layout (triangle_strip, max_vertices=18) out;
-            
-            uniform mat4 projectionView[6];
+            layout (location = 1) in mat4 instanceModel;
             
             out vec3 position;
             
             void main() {
-                for (int i = 0; i < 6; i++) {
-                    gl_Layer = i;
-                    for (int j = 0; j < 3; j++) {
-                        vec4 pos = gl_in[j].gl_Position;
-                        pos /= pos.w;
-                        position = pos.xyz;
-                        gl_Position = projectionView[i] * pos;
-                        EmitVertex();
-                    }
-                    EndPrimitive();
-                }
+                vec4 worldPosition = instanceModel * vec4(vertexPosition, 1.0);
+                position = worldPosition.xyz / worldPosition.w;
+                gl_Position = projectionView * worldPosition;
             }
             """;
 
@@ -96,101 +74,48 @@ public class PointLightShadowProgram {
             }
             """;
 
-    public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, GEOMETRY_SHADER, FRAGMENT_SHADER);
-    public static final BetterUniformSetter UNIFORMS = new BetterUniformSetter(SHADER_PROGRAM, "model", "nearPlane", "farPlane", "camPos", "projectionView[0]", "projectionView[1]", "projectionView[2]", "projectionView[3]", "projectionView[4]", "projectionView[5]");
+    public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
+    public static final BetterUniformSetter UNIFORMS = new BetterUniformSetter(SHADER_PROGRAM, "projectionView", "nearPlane", "farPlane", "camPos");
+
+    //front and up of every cube map face, in the GL_TEXTURE_CUBE_MAP_POSITIVE_X + i order
+    private static final float[][] FACES = {
+        {1f, 0f, 0f, 0f, -1f, 0f},
+        {-1f, 0f, 0f, 0f, -1f, 0f},
+        {0f, 1f, 0f, 0f, 0f, 1f},
+        {0f, -1f, 0f, 0f, 0f, -1f},
+        {0f, 0f, 1f, 0f, -1f, 0f},
+        {0f, 0f, -1f, 0f, -1f, 0f}
+    };
+
+    public static Matrix4f faceProjectionView(int face, float nearPlane, float farPlane, float camX, float camY, float camZ, Matrix4f dest) {
+        float[] f = FACES[face];
+        return dest
+                .setPerspective(
+                        (float) Math.toRadians(90f),
+                        1f / 1f,
+                        nearPlane,
+                        farPlane
+                )
+                .lookAt(
+                        camX, camY, camZ,
+                        camX + f[0], camY + f[1], camZ + f[2],
+                        f[3], f[4], f[5]
+                );
+    }
 
     public static void sendPerFrameUniforms(float nearPlane, float farPlane, float camX, float camY, float camZ) {
         glUniform1f(UNIFORMS.locationOf("nearPlane"), nearPlane);
         glUniform1f(UNIFORMS.locationOf("farPlane"), farPlane);
         glUniform3f(UNIFORMS.locationOf("camPos"), camX, camY, camZ);
+    }
 
-        Matrix4f projection = new Matrix4f().perspective(
-                (float) Math.toRadians(90f),
-                1f / 1f,
-                nearPlane,
-                farPlane
-        );
-
-        BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("projectionView[0]"),
-                projection.mul(
-                        new Matrix4f()
-                                .lookAt(
-                                        camX, camY, camZ,
-                                        camX + 1f, camY + 0f, camZ + 0f,
-                                        0f, -1f, 0f
-                                ),
-                        new Matrix4f()
-                )
-        );
-
-        BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("projectionView[1]"),
-                projection.mul(
-                        new Matrix4f()
-                                .lookAt(
-                                        camX, camY, camZ,
-                                        camX + -1f, camY + 0f, camZ + 0f,
-                                        0f, -1f, 0f
-                                ),
-                        new Matrix4f()
-                )
-        );
-
-        BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("projectionView[2]"),
-                projection.mul(
-                        new Matrix4f()
-                                .lookAt(
-                                        camX, camY, camZ,
-                                        camX + 0f, camY + 1f, camZ + 0f,
-                                        0f, 0f, 1f
-                                ),
-                        new Matrix4f()
-                )
-        );
-
-        BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("projectionView[3]"),
-                projection.mul(
-                        new Matrix4f()
-                                .lookAt(
-                                        camX, camY, camZ,
-                                        camX + 0f, camY + -1f, camZ + 0f,
-                                        0f, 0f, -1f
-                                ),
-                        new Matrix4f()
-                )
-        );
-
-        BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("projectionView[4]"),
-                projection.mul(
-                        new Matrix4f()
-                                .lookAt(
-                                        camX, camY, camZ,
-                                        camX + 0f, camY + 0f, camZ + 1f,
-                                        0f, -1f, 0f
-                                ),
-                        new Matrix4f()
-                )
-        );
-
-        BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("projectionView[5]"),
-                projection.mul(
-                        new Matrix4f()
-                                .lookAt(
-                                        camX, camY, camZ,
-                                        camX + 0f, camY + 0f, camZ + -1f,
-                                        0f, -1f, 0f
-                                ),
-                        new Matrix4f()
-                )
-        );
+    public static void sendPerFaceUniforms(Matrix4fc projectionView) {
+        BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("projectionView"), projectionView);
     }
 
     public static void init() {
         
     }
-    
-    public static void sendPerDrawUniforms(Matrix4fc model) {
-        BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("model"), model);
-    }
 
     private PointLightShadowProgram() {
 
@@ -0,0 +1,223 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.light.sky;
+
+import cientistavuador.bakedlightingexperiment.Main;
+import cientistavuador.bakedlightingexperiment.cube.Cube;
+import cientistavuador.bakedlightingexperiment.cube.light.Light;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowInstances;
+import cientistavuador.bakedlightingexperiment.cube.light.icon.IconType;
+import cientistavuador.bakedlightingexperiment.ubo.SkyLightUBO;
+import java.util.List;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * Light coming from the whole sky, integrated over a set of directions spread
+ * over the upper hemisphere.
+ * <p>
+ * Every direction is an orthographic shadow view of the scene, all of them
+ * are rendered to the {@link SkyShadowAtlas} with a single draw and every
+ * cube is then baked with a single draw.
+ *
+ * @author Cien
+ */
+public class SkyLight implements Light {
+
+    public static final int DEFAULT_DIRECTIONS = 64;
+    public static final float DEFAULT_INTENSITY = 2f;
+
+    private static final Vector3f position = new Vector3f(0f);
+
+    /**
+     * Spreads the directions over the upper hemisphere with a fibonacci
+     * spiral.
+     *
+     * @param count the number of directions
+     * @return the directions towards the sky
+     */
+    public static Vector3f[] hemisphere(int count) {
+        Vector3f[] directions = new Vector3f[count];
+        double goldenAngle = Math.PI * (3.0 - Math.sqrt(5.0));
+        for (int i = 0; i < count; i++) {
+            double y = 1.0 - ((i + 0.5) / count);
+            double r = Math.sqrt(1.0 - (y * y));
+            double theta = goldenAngle * i;
+            directions[i] = new Vector3f(
+                    (float) (Math.cos(theta) * r),
+                    (float) y,
+                    (float) (Math.sin(theta) * r)
+            );
+        }
+        return directions;
+    }
+
+    private final Vector3f iconColor = new Vector3f(Main.DEFAULT_CLEAR_COLOR);
+    private final Vector3f diffuseColor = new Vector3f(
+            (float) Math.pow(iconColor.x(), 2.2),
+            (float) Math.pow(iconColor.y(), 2.2),
+            (float) Math.pow(iconColor.z(), 2.2)
+    ).mul(DEFAULT_INTENSITY);
+    private final Vector3f ambientColor = new Vector3f(0f);
+    private Vector3f[] directions = hemisphere(DEFAULT_DIRECTIONS);
+    private boolean enabled = true;
+
+    public SkyLight() {
+
+    }
+
+    public int getDirections() {
+        return this.directions.length;
+    }
+
+    /**
+     * Sets how many directions of the sky are integrated, the light must be
+     * baked again.
+     *
+     * @param count the number of directions
+     */
+    public void setDirections(int count) {
+        if (count <= 0 || count > SkyLightUBO.MAX_DIRECTIONS) {
+            throw new IllegalArgumentException("Invalid number of directions: " + count + ", max is " + SkyLightUBO.MAX_DIRECTIONS);
+        }
+        this.directions = hemisphere(count);
+    }
+
+    public Vector3fc getDirection(int index) {
+        return this.directions[index];
+    }
+
+    @Override
+    public Vector3fc getPosition() {
+        return SkyLight.position;
+    }
+
+    @Override
+    public Vector3f getIconColor() {
+        return this.iconColor;
+    }
+
+    @Override
+    public Vector3f getAmbientColor() {
+        return this.ambientColor;
+    }
+
+    @Override
+    public Vector3f getDiffuseColor() {
+        return this.diffuseColor;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void render(Cube cube) {
+        glUseProgram(SkyLightProgram.SHADER_PROGRAM);
+        glBindVertexArray(cube.getVAO());
+
+        SkyLightProgram.sendUniforms(cube.getLightmapRegion(), cube.getModel(), cube.getNormalModel(), this);
+        glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
+
+        Main.countDrawCall(Cube.NUMBER_OF_INDICES);
+
+        glBindVertexArray(0);
+        glUseProgram(0);
+    }
+
+    /**
+     * Fits the views to the bounds of the cubes and renders all of them, the
+     * cubes must contain every cube baked afterwards.
+     *
+     * @param cubes the cubes
+     */
+    @Override
+    public void renderShadowMap(List<Cube> cubes) {
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
+        for (Cube c : cubes) {
+            min.min(c.getMin());
+            max.max(c.getMax());
+        }
+        Vector3f center = new Vector3f();
+        float radius = 1f;
+        if (!cubes.isEmpty()) {
+            center.set(min).add(max).mul(0.5f);
+            radius = Math.max(min.distance(max) * 0.5f, 1E-3f);
+        }
+
+        int count = this.directions.length;
+        SkyLightUBO.DEFAULT.update(
+                this.directions,
+                SkyShadowAtlas.tilesPerRow(count), SkyShadowAtlas.tileSize(count), SkyShadowAtlas.SIZE,
+                center, radius
+        );
+
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, SkyShadowAtlas.fbo());
+        glViewport(0, 0, SkyShadowAtlas.SIZE, SkyShadowAtlas.SIZE);
+
+        glClear(GL_DEPTH_BUFFER_BIT);
+        for (int i = 0; i < 4; i++) {
+            glEnable(GL_CLIP_DISTANCE0 + i);
+        }
+        glUseProgram(SkyLightShadowProgram.SHADER_PROGRAM);
+
+        SkyLightShadowProgram.sendUniforms();
+        ShadowInstances.drawViews(cubes, count);
+
+        glUseProgram(0);
+        for (int i = 0; i < 4; i++) {
+            glDisable(GL_CLIP_DISTANCE0 + i);
+        }
+        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
+
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+    }
+
+    @Override
+    public int getShadowAtlasTiles() {
+        return 0;
+    }
+
+    @Override
+    public float getRange() {
+        return Float.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public IconType getIconType() {
+        return IconType.NONE;
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.light.sky;
+
+import cientistavuador.bakedlightingexperiment.cube.LightmapAtlas;
+import cientistavuador.bakedlightingexperiment.ubo.SkyLightUBO;
+import cientistavuador.bakedlightingexperiment.util.ProgramCompiler;
+import java.nio.FloatBuffer;
+import org.joml.Matrix3fc;
+import org.joml.Matrix4fc;
+import static org.lwjgl.opengl.GL33C.*;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Bakes a sky light into a lightmap in a single draw, every direction of the
+ * sky is tested against its tile of the {@link SkyShadowAtlas}.
+ *
+ * @author Cien
+ */
+public class SkyLightProgram {
+
+    public static final float VIEW_MARGIN = 1f;
+    public static final float BIAS_TEXELS = 1.5f;
+
+    /**
+     * The sky light block and the orthographic view of a direction, shared
+     * with the shadow pass so both project the same way.
+     */
+    public static final String SKY_LIGHT_BLOCK
+            = 
+            """
+            #define MAX_DIRECTIONS %d
+            #define VIEW_MARGIN %s
+            
+            layout (std140) uniform SkyLight {
+                ivec4 skyHeader;
+                vec4 skyBounds;
+                vec4 skyDirections[MAX_DIRECTIONS];
+            };
+            
+            vec3 skyView(vec3 direction, vec3 worldPosition) {
+                vec3 up = (abs(direction.y) > 0.99 ? vec3(1.0, 0.0, 0.0) : vec3(0.0, 1.0, 0.0));
+                vec3 right = normalize(cross(up, direction));
+                vec3 viewUp = cross(direction, right);
+                
+                vec3 p = worldPosition - skyBounds.xyz;
+                float distance = skyBounds.w + VIEW_MARGIN;
+                return vec3(
+                    dot(p, right) / skyBounds.w,
+                    dot(p, viewUp) / skyBounds.w,
+                    (((distance - dot(p, direction)) / distance) - 1.0)
+                );
+            }
+            """.formatted(SkyLightUBO.MAX_DIRECTIONS, Float.toString(VIEW_MARGIN));
+
+    public static final String VERTEX_SHADER
+            = 
+            """
+            #version 330 core
+            
+            uniform mat4 model;
+            uniform mat3 normalModel;
+            uniform vec4 lightmapRegion;
+            
+            layout (location = 0) in vec3 vertexPosition;
+            layout (location = 1) in vec3 vertexNormal;
+            //
+            layout (location = 3) in vec2 vertexLightmap;
+            layout (location = 4) in vec2 vertexLightmapPosition;
+            
+            out vec3 position;
+            out vec3 normal;
+            
+            void main() {
+                vec4 pos = model * vec4(vertexPosition, 1.0);
+                pos.xyz /= pos.w;
+                position = pos.xyz;
+                
+                normal = normalize(normalModel * vertexNormal);
+                
+                vec2 regionPosition = lightmapRegion.xy + (((vertexLightmapPosition + 1.0) / 2.0) * lightmapRegion.zw);
+                gl_Position = vec4((regionPosition * 2.0) - 1.0, 1.0, 1.0);
+            }
+            """;
+
+    public static final String FRAGMENT_SHADER
+            = 
+            """
+            #version 330 core
+            
+            #define BIAS_TEXELS %s
+            
+            %s
+            
+            uniform sampler2DShadow skyShadowAtlas;
+            uniform vec3 skyDiffuse;
+            uniform vec3 skyAmbient;
+            
+            in vec3 position;
+            in vec3 normal;
+            
+            layout (location = 0) out vec4 outputColor;
+            
+            void main() {
+                int count = skyHeader.x;
+                int tilesPerRow = skyHeader.y;
+                float tileScale = float(skyHeader.z) / float(skyHeader.w);
+                float halfTexel = 0.5 / float(skyHeader.z);
+                
+                float texelSize = (skyBounds.w * 2.0) / float(skyHeader.z);
+                float bias = texelSize * BIAS_TEXELS;
+                float depthBias = bias / ((skyBounds.w + VIEW_MARGIN) * 2.0);
+                
+                vec3 n = normalize(normal);
+                vec3 offsetPosition = position + (n * bias);
+                
+                float visibility = 0.0;
+                for (int i = 0; i < count; i++) {
+                    vec3 direction = skyDirections[i].xyz;
+                    float cosTheta = dot(n, direction);
+                    if (cosTheta <= 0.0) {
+                        continue;
+                    }
+                    
+                    vec3 coords = (skyView(direction, offsetPosition) + 1.0) / 2.0;
+                    coords.xy = clamp(coords.xy, vec2(halfTexel), vec2(1.0 - halfTexel));
+                    vec2 tile = vec2(float(i %% tilesPerRow), float(i / tilesPerRow));
+                    
+                    float lit = texture(skyShadowAtlas, vec3((tile + coords.xy) * tileScale, coords.z - depthBias));
+                    visibility += cosTheta * lit;
+                }
+                
+                //an unoccluded surface facing up gathers about half of the directions
+                visibility *= 2.0 / float(count);
+                
+                outputColor = vec4((skyDiffuse * visibility) + skyAmbient, 1.0);
+            }
+            """.formatted(Float.toString(BIAS_TEXELS), SKY_LIGHT_BLOCK);
+
+    public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
+    public static final int MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "model");
+    public static final int NORMAL_MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "normalModel");
+    public static final int LIGHTMAP_REGION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapRegion");
+    public static final int SKY_SHADOW_ATLAS_INDEX = glGetUniformLocation(SHADER_PROGRAM, "skyShadowAtlas");
+    public static final int SKY_DIFFUSE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "skyDiffuse");
+    public static final int SKY_AMBIENT_INDEX = glGetUniformLocation(SHADER_PROGRAM, "skyAmbient");
+    public static final int SKY_LIGHT_UBO_INDEX = glGetUniformBlockIndex(SHADER_PROGRAM, "SkyLight");
+
+    public static void init() {
+        SkyLightShadowProgram.init();
+    }
+
+    public static void sendUniforms(LightmapAtlas.Region region, Matrix4fc model, Matrix3fc normalModel, SkyLight light) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            FloatBuffer matrixBuffer = stack.mallocFloat(4 * 4);
+            model.get(matrixBuffer);
+            glUniformMatrix4fv(MODEL_INDEX, false, matrixBuffer);
+
+            FloatBuffer normalBuffer = stack.mallocFloat(3 * 3);
+            normalModel.get(normalBuffer);
+            glUniformMatrix3fv(NORMAL_MODEL_INDEX, false, normalBuffer);
+        }
+        glUniform4f(LIGHTMAP_REGION_INDEX, region.getOffsetX(), region.getOffsetY(), region.getScaleX(), region.getScaleY());
+
+        glUniform3f(SKY_DIFFUSE_INDEX, light.getDiffuseColor().x(), light.getDiffuseColor().y(), light.getDiffuseColor().z());
+        glUniform3f(SKY_AMBIENT_INDEX, light.getAmbientColor().x(), light.getAmbientColor().y(), light.getAmbientColor().z());
+
+        glUniformBlockBinding(SHADER_PROGRAM, SKY_LIGHT_UBO_INDEX, SkyLightUBO.DEFAULT.getBindingPoint());
+
+        glActiveTexture(GL_TEXTURE1);
+        glBindTexture(GL_TEXTURE_2D, SkyShadowAtlas.shadowMap());
+        glUniform1i(SKY_SHADOW_ATLAS_INDEX, 1);
+    }
+
+    private SkyLightProgram() {
+
+    }
+}
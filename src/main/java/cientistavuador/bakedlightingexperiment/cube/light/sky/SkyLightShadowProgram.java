@@ -0,0 +1,97 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.light.sky;
+
+import cientistavuador.bakedlightingexperiment.ubo.SkyLightUBO;
+import cientistavuador.bakedlightingexperiment.util.ProgramCompiler;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * Renders the depth of every sky direction into its tile of the
+ * {@link SkyShadowAtlas} in a single instanced draw, the instances are the
+ * cubes times the directions and the clip distances keep every view inside
+ * of its tile.
+ *
+ * @author Cien
+ */
+public class SkyLightShadowProgram {
+
+    public static final String VERTEX_SHADER
+            = 
+            """
+            #version 330 core
+            
+            %s
+            
+            layout (location = 0) in vec3 vertexPosition;
+            layout (location = 1) in mat4 instanceModel;
+            
+            out float gl_ClipDistance[4];
+            
+            void main() {
+                int view = gl_InstanceID %% skyHeader.x;
+                int tilesPerRow = skyHeader.y;
+                float tileScale = float(skyHeader.z) / float(skyHeader.w);
+                
+                vec3 ndc = skyView(skyDirections[view].xyz, (instanceModel * vec4(vertexPosition, 1.0)).xyz);
+                
+                gl_ClipDistance[0] = 1.0 + ndc.x;
+                gl_ClipDistance[1] = 1.0 - ndc.x;
+                gl_ClipDistance[2] = 1.0 + ndc.y;
+                gl_ClipDistance[3] = 1.0 - ndc.y;
+                
+                vec2 tile = vec2(float(view %% tilesPerRow), float(view / tilesPerRow));
+                vec2 atlasPosition = (tile + ((ndc.xy + 1.0) / 2.0)) * tileScale;
+                gl_Position = vec4((atlasPosition * 2.0) - 1.0, ndc.z, 1.0);
+            }
+            """.formatted(SkyLightProgram.SKY_LIGHT_BLOCK);
+
+    public static final String FRAGMENT_SHADER
+            = 
+            """
+            #version 330 core
+            
+            void main() {
+            
+            }
+            """;
+
+    public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
+    public static final int SKY_LIGHT_UBO_INDEX = glGetUniformBlockIndex(SHADER_PROGRAM, "SkyLight");
+
+    public static void init() {
+
+    }
+
+    public static void sendUniforms() {
+        glUniformBlockBinding(SHADER_PROGRAM, SKY_LIGHT_UBO_INDEX, SkyLightUBO.DEFAULT.getBindingPoint());
+    }
+
+    private SkyLightShadowProgram() {
+
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.light.sky;
+
+import cientistavuador.bakedlightingexperiment.util.ContextObject;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * Depth atlas shared by every sky direction, the views are laid out in a
+ * grid of square tiles.
+ *
+ * @author Cien
+ */
+public class SkyShadowAtlas {
+
+    public static final int SIZE = 4096;
+
+    private static final int shadowMap = glGenTextures();
+    private static final ContextObject fbo = ContextObject.framebuffer("sky shadow atlas", () -> {
+        glFramebufferTexture(GL_DRAW_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, SkyShadowAtlas.shadowMap, 0);
+        glDrawBuffers(GL_NONE);
+    });
+
+    static {
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, SkyShadowAtlas.shadowMap);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT24, SIZE, SIZE, 0, GL_DEPTH_COMPONENT, GL_UNSIGNED_INT, 0);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_COMPARE_MODE, GL_COMPARE_REF_TO_TEXTURE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_COMPARE_FUNC, GL_LEQUAL);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        SkyShadowAtlas.fbo.get();
+    }
+
+    /**
+     * Returns the number of tiles per row needed to fit the directions.
+     *
+     * @param directions the number of directions
+     * @return the tiles per row
+     */
+    public static int tilesPerRow(int directions) {
+        return Math.max((int) Math.ceil(Math.sqrt(directions)), 1);
+    }
+
+    public static int tileSize(int directions) {
+        return SIZE / tilesPerRow(directions);
+    }
+
+    public static int shadowMap() {
+        return shadowMap;
+    }
+
+    public static int fbo() {
+        return fbo.get();
+    }
+
+    public static void init() {
+
+    }
+
+    private SkyShadowAtlas() {
+
+    }
+
+}
@@ -29,10 +29,11 @@ package cientistavuador.bakedlightingexperiment.cube.light.spot;
 import cientistavuador.bakedlightingexperiment.Main;
 import static cientistavuador.bakedlightingexperiment.camera.Camera.DEFAULT_WORLD_UP;
 import cientistavuador.bakedlightingexperiment.cube.Cube;
-import cientistavuador.bakedlightingexperiment.cube.CubeVAO;
 import cientistavuador.bakedlightingexperiment.cube.light.icon.IconType;
 import cientistavuador.bakedlightingexperiment.cube.light.Light;
-import cientistavuador.bakedlightingexperiment.cube.light.ShadowMap2DFBO;
+import cientistavuador.bakedlightingexperiment.cube.light.LightRange;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowInstances;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowAtlas;
 import java.util.List;
 import org.joml.Matrix4f;
 import org.joml.Matrix4fc;
@@ -74,7 +75,7 @@ public class SpotLight implements Light {
     private void calculateProjectionView() {
         Matrix4f projection = new Matrix4f()
                 .perspective((float) Math.toRadians(this.outerCutOff * 2f),
-                        (float) ShadowMap2DFBO.width() / ShadowMap2DFBO.height(),
+                        1f / 1f,
                         0.01f,
                         1000f
                 );
@@ -96,6 +97,12 @@ public class SpotLight implements Light {
         this.projectionView.set(projection).mul(view);
     }
 
+    public void setColor(Vector3fc color, float brightness) {
+        this.diffuseColor.set(color).mul(brightness);
+        this.ambientColor.set(color).mul(brightness / 32f);
+        this.iconColor.set(color);
+    }
+
     @Override
     public Vector3f getIconColor() {
         return this.iconColor;
@@ -141,15 +148,14 @@ public class SpotLight implements Light {
     }
 
     @Override
-    public void render(Cube cube, int lightmap) {
+    public void render(Cube cube) {
         glUseProgram(SpotLightProgram.SHADER_PROGRAM);
-        glBindVertexArray(Cube.VAO);
+        glBindVertexArray(cube.getVAO());
 
-        SpotLightProgram.sendUniforms(lightmap, cube.getModel(), cube.getNormalModel(), this);
+        SpotLightProgram.sendUniforms(cube.getLightmapRegion(), cube.getModel(), cube.getNormalModel(), this);
         glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
 
-        Main.NUMBER_OF_DRAWCALLS++;
-        Main.NUMBER_OF_VERTICES += Cube.NUMBER_OF_INDICES;
+        Main.countDrawCall(Cube.NUMBER_OF_INDICES);
 
         glBindVertexArray(0);
         glUseProgram(0);
@@ -157,17 +163,14 @@ public class SpotLight implements Light {
 
     @Override
     public void renderShadowMap(List<Cube> cubes) {
-        ShadowMap2DFBO.updateShadowMapSize(
-                ShadowMap2DFBO.DEFAULT_WIDTH / 4,
-                ShadowMap2DFBO.DEFAULT_HEIGHT / 4
-        );
+        ShadowAtlas.Tile tile = ShadowAtlas.tilesOf(this)[0];
+        if (tile == null) {
+            return;
+        }
         
         calculateProjectionView();
         
-        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, ShadowMap2DFBO.fbo());
-        glViewport(0, 0, ShadowMap2DFBO.width(), ShadowMap2DFBO.height());
-        
-        glClear(GL_DEPTH_BUFFER_BIT);
+        ShadowAtlas.beginTile(tile);
         glUseProgram(SpotLightShadowProgram.SHADER_PROGRAM);
         
         SpotLightShadowProgram.sendPerFrameUniforms(
@@ -179,22 +182,21 @@ public class SpotLight implements Light {
                 this.position.z()
         );
         
-        for (Cube c:cubes) {
-            if (c.isGroundCube()) {
-                glBindVertexArray(CubeVAO.GROUND_CUBE_VAO);
-            } else {
-                glBindVertexArray(CubeVAO.VAO);
-            }
-            SpotLightShadowProgram.sendPerDrawUniforms(c.getModel());
-            
-            glDrawElements(GL_TRIANGLES, Cube.NUMBER_OF_INDICES, GL_UNSIGNED_INT, 0);
-            glBindVertexArray(0);
-        }
+        ShadowInstances.draw(LightRange.cull(this, cubes));
         
         glUseProgram(0);
-        glViewport(0, 0, Main.WIDTH, Main.HEIGHT);
-        
-        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+        ShadowAtlas.endTile();
+        ShadowAtlas.filterTile(tile, NEAR_PLANE, FAR_PLANE, getRange());
+    }
+
+    @Override
+    public int getShadowAtlasTiles() {
+        return 1;
+    }
+
+    @Override
+    public float getRange() {
+        return LightRange.of(this.diffuseColor, this.ambientColor);
     }
 
     @Override
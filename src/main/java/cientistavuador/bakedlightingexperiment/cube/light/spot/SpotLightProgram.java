@@ -26,7 +26,9 @@
  */
 package cientistavuador.bakedlightingexperiment.cube.light.spot;
 
-import cientistavuador.bakedlightingexperiment.cube.light.ShadowMap2DFBO;
+import cientistavuador.bakedlightingexperiment.cube.LightmapAtlas;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowAtlas;
+import cientistavuador.bakedlightingexperiment.cube.light.ShadowFilter;
 import cientistavuador.bakedlightingexperiment.util.ProgramCompiler;
 import java.nio.FloatBuffer;
 import org.joml.Matrix3fc;
@@ -46,6 +48,7 @@ public class SpotLightProgram {
             
             uniform mat4 model;
             uniform mat3 normalModel;
+            uniform vec4 lightmapRegion;
             
             layout (location = 0) in vec3 vertexPosition;
             layout (location = 1) in vec3 vertexNormal;
@@ -54,7 +57,6 @@ public class SpotLightProgram {
             layout (location = 4) in vec2 vertexLightmapPosition;
             
             out vec3 position;
-            out vec2 texCoords;
             out vec3 normal;
             
             void main() {
@@ -62,10 +64,10 @@ public class SpotLightProgram {
                 pos.xyz /= pos.w;
                 position = pos.xyz;
                 
-                texCoords = (vertexLightmapPosition + 1.0) / 2.0;
                 normal = normalize(normalModel * vertexNormal);
                 
-                gl_Position = vec4(vertexLightmapPosition, 1.0, 1.0);
+                vec2 regionPosition = lightmapRegion.xy + (((vertexLightmapPosition + 1.0) / 2.0) * lightmapRegion.zw);
+                gl_Position = vec4((regionPosition * 2.0) - 1.0, 1.0, 1.0);
             }
             """;
 
@@ -74,26 +76,34 @@ public class SpotLightProgram {
             """
             #version 330 core
             
-            uniform sampler2D lightmapTexture;
+            #define SHADOW_MODE_ESM %d
+            #define ATLAS_ESM_EXPONENT %s
+            #define SHADOW_MODE_ADAPTIVE %d
+            #define LIGHT_SOURCE_RADIUS %s
             
             uniform vec3 lightPosition;
             uniform vec3 lightDirection;
             uniform vec3 lightAmbient;
             uniform vec3 lightDiffuse;
+            uniform float lightRange;
             uniform float lightCutoff;
             uniform float lightOuterCutoff;
             
             uniform sampler2DShadow shadowMap;
+            uniform sampler2D shadowMapESM;
+            uniform sampler2D shadowMapDepth;
+            uniform int shadowMode;
             uniform mat4 shadowMapProjectionView;
+            uniform vec4 shadowTile;
             uniform float nearPlane;
             uniform float farPlane;
             
             in vec3 position;
-            in vec2 texCoords;
             in vec3 normal;
             
             layout (location = 0) out vec4 outputColor;
             
+            %s
             void main() {
                 vec3 resultColor = vec3(0.0);
                 
@@ -102,6 +112,8 @@ public class SpotLightProgram {
                 
                 float distance = length(lightPosition - position);
                 float attenuation = 1.0 / (distance * distance);
+                float window = clamp(1.0 - pow(distance / lightRange, 4.0), 0.0, 1.0);
+                attenuation *= window * window;
                 
                 float theta = dot(lightDir, normalize(-lightDirection)); 
                 float epsilon = lightCutoff - lightOuterCutoff;
@@ -109,43 +121,77 @@ public class SpotLightProgram {
                 
                 float zLinear = (length(lightPosition - position) - nearPlane) / (farPlane - nearPlane);
                 
-                vec2 shadowMapTexelSize = 1.0 / vec2(textureSize(shadowMap, 0));
-                int pcf = 8;
-                
-                vec4 mapCoords = shadowMapProjectionView * vec4(position, 1.0);
-                mapCoords /= mapCoords.w;
-                mapCoords.xyz = (mapCoords.xyz + 1.0) / 2.0;
-                
-                float shadowValue = 0.0;
-                for (int x = -pcf; x <= pcf; x++) {
-                    for (int y = -pcf; y <= pcf; y++) {
-                        shadowValue += texture(shadowMap, vec3(mapCoords.xy + (vec2(float(x), float(y)) * shadowMapTexelSize), zLinear - 0.00003));
+                float shadowValue = 1.0;
+                if (shadowTile.z > 0.0) {
+                    vec2 shadowMapTexelSize = 1.0 / vec2(textureSize(shadowMap, 0));
+                    int pcf = 8;
+                    
+                    vec4 mapCoords = shadowMapProjectionView * vec4(position, 1.0);
+                    mapCoords /= mapCoords.w;
+                    mapCoords.xyz = (mapCoords.xyz + 1.0) / 2.0;
+                    
+                    vec2 tileCoords = shadowTile.xy + (mapCoords.xy * shadowTile.z);
+                    vec2 tileMin = shadowTile.xy + (shadowMapTexelSize * 0.5);
+                    vec2 tileMax = shadowTile.xy + vec2(shadowTile.z) - (shadowMapTexelSize * 0.5);
+                    
+                    if (shadowMode == SHADOW_MODE_ESM) {
+                        vec2 esmTexelSize = 1.0 / vec2(textureSize(shadowMapESM, 0));
+                        vec2 esmCoords = clamp(tileCoords, shadowTile.xy + (esmTexelSize * 0.5), shadowTile.xy + vec2(shadowTile.z) - (esmTexelSize * 0.5));
+                        float receiver = ATLAS_ESM_EXPONENT * (distance / lightRange);
+                        shadowValue = clamp(exp(texture(shadowMapESM, esmCoords).r - receiver), 0.0, 1.0);
+                    } else if (shadowMode == SHADOW_MODE_ADAPTIVE) {
+                        float tanHalfFov = sqrt(1.0 - (lightOuterCutoff * lightOuterCutoff)) / lightOuterCutoff;
+                        float worldTexelSize = (2.0 * distance * tanHalfFov) / (shadowTile.z / shadowMapTexelSize.x);
+                        shadowValue = adaptiveShadow(
+                                shadowMapDepth, shadowMap,
+                                tileCoords, shadowMapTexelSize, tileMin, tileMax,
+                                zLinear - 0.00003, nearPlane, farPlane,
+                                LIGHT_SOURCE_RADIUS, true, worldTexelSize, pcf
+                        );
+                    } else {
+                        shadowValue = 0.0;
+                        for (int x = -pcf; x <= pcf; x++) {
+                            for (int y = -pcf; y <= pcf; y++) {
+                                vec2 sampleCoords = clamp(tileCoords + (vec2(float(x), float(y)) * shadowMapTexelSize), tileMin, tileMax);
+                                shadowValue += texture(shadowMap, vec3(sampleCoords, zLinear - 0.00003));
+                            }
+                        }
+                        shadowValue /= pow((float(pcf) * 2.0) + 1.0, 2.0);
                     }
                 }
-                shadowValue /= pow((float(pcf) * 2.0) + 1.0, 2.0);
                 
                 resultColor += lightDiffuse * diff * attenuation * intensity * shadowValue;
                 resultColor += lightAmbient * attenuation;
                 
-                ivec2 lightmapPixel = ivec2(floor(texCoords * vec2(textureSize(lightmapTexture, 0))));
-                outputColor = vec4(resultColor + texelFetch(lightmapTexture, lightmapPixel, 0).rgb, 1.0);
+                outputColor = vec4(resultColor, 1.0);
             }
-            """;
+            """.formatted(
+                    ShadowFilter.MODE_ESM,
+                    ShadowFilter.ATLAS_EXPONENT,
+                    ShadowFilter.MODE_ADAPTIVE,
+                    ShadowFilter.LIGHT_SOURCE_RADIUS,
+                    ShadowFilter.ADAPTIVE_SHADOW_GLSL
+            );
 
     public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
     public static final int MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "model");
     public static final int NORMAL_MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "normalModel");
-    public static final int LIGHTMAP_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapTexture");
+    public static final int LIGHTMAP_REGION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightmapRegion");
     
     public static final int LIGHT_POSITION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightPosition");
     public static final int LIGHT_DIRECTION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightDirection");
     public static final int LIGHT_AMBIENT_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightAmbient");
     public static final int LIGHT_DIFFUSE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightDiffuse");
+    public static final int LIGHT_RANGE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightRange");
     public static final int LIGHT_CUTOFF_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightCutoff");
     public static final int LIGHT_OUTER_CUTOFF_INDEX = glGetUniformLocation(SHADER_PROGRAM, "lightOuterCutoff");
     
     public static final int SHADOWMAP_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMap");
+    public static final int SHADOWMAP_ESM_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMapESM");
+    public static final int SHADOWMAP_DEPTH_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMapDepth");
+    public static final int SHADOW_MODE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMode");
     public static final int SHADOWMAP_PROJECTIONVIEW_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowMapProjectionView");
+    public static final int SHADOWMAP_TILE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "shadowTile");
     public static final int NEAR_PLANE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "nearPlane");
     public static final int FAR_PLANE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "farPlane");
     
@@ -169,27 +215,41 @@ public class SpotLightProgram {
         SpotLightShadowProgram.init();
     }
     
-    public static void sendUniforms(int lightmapTexture, Matrix4fc model, Matrix3fc normalModel, SpotLight light) {
+    public static void sendUniforms(LightmapAtlas.Region region, Matrix4fc model, Matrix3fc normalModel, SpotLight light) {
         sendMatrix(MODEL_INDEX, model);
         sendMatrix3f(NORMAL_MODEL_INDEX, normalModel);
-        
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, lightmapTexture);
-        glUniform1i(LIGHTMAP_TEXTURE_INDEX, 0);
+        glUniform4f(LIGHTMAP_REGION_INDEX, region.getOffsetX(), region.getOffsetY(), region.getScaleX(), region.getScaleY());
         
         glUniform3f(LIGHT_POSITION_INDEX, light.getPosition().x(), light.getPosition().y(), light.getPosition().z());
         glUniform3f(LIGHT_DIRECTION_INDEX, light.getDirection().x(), light.getDirection().y(), light.getDirection().z());
         glUniform3f(LIGHT_AMBIENT_INDEX, light.getAmbientColor().x(), light.getAmbientColor().y(), light.getAmbientColor().z());
         glUniform3f(LIGHT_DIFFUSE_INDEX, light.getDiffuseColor().x(), light.getDiffuseColor().y(), light.getDiffuseColor().z());
+        glUniform1f(LIGHT_RANGE_INDEX, light.getRange());
         
         glUniform1f(LIGHT_CUTOFF_INDEX, (float) Math.cos(Math.toRadians(light.getCutOff())));
         glUniform1f(LIGHT_OUTER_CUTOFF_INDEX, (float) Math.cos(Math.toRadians(light.getOuterCutOff())));
         
         glActiveTexture(GL_TEXTURE1);
-        glBindTexture(GL_TEXTURE_2D, ShadowMap2DFBO.shadowMap());
+        glBindTexture(GL_TEXTURE_2D, ShadowAtlas.shadowMap());
         glUniform1i(SHADOWMAP_INDEX, 1);
+        
+        glActiveTexture(GL_TEXTURE2);
+        glBindTexture(GL_TEXTURE_2D, ShadowAtlas.esmMap());
+        glUniform1i(SHADOWMAP_ESM_INDEX, 2);
+        glUniform1i(SHADOW_MODE_INDEX, ShadowFilter.getMode());
+        
+        ShadowFilter.bindRawDepth(ShadowFilter.RAW_ATLAS_UNIT, ShadowAtlas.shadowMap());
+        glUniform1i(SHADOWMAP_DEPTH_INDEX, ShadowFilter.RAW_ATLAS_UNIT);
+        
         sendMatrix(SHADOWMAP_PROJECTIONVIEW_INDEX, light.getProjectionView());
         
+        ShadowAtlas.Tile tile = ShadowAtlas.tilesOf(light)[0];
+        if (tile == null) {
+            glUniform4f(SHADOWMAP_TILE_INDEX, 0f, 0f, 0f, 0f);
+        } else {
+            glUniform4f(SHADOWMAP_TILE_INDEX, tile.getOffsetX(), tile.getOffsetY(), tile.getScale(), tile.getScale());
+        }
+        
         glUniform1f(NEAR_PLANE_INDEX, SpotLight.NEAR_PLANE);
         glUniform1f(FAR_PLANE_INDEX, SpotLight.FAR_PLANE);
     }
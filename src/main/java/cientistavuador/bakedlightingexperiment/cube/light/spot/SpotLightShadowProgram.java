@@ -41,14 +41,14 @@ public class SpotLightShadowProgram {
             #version 330 core
             
             uniform mat4 projectionView;
-            uniform mat4 model;
             
             layout (location = 0) in vec3 vertexPosition;
+            layout (location = 1) in mat4 instanceModel;
             
             out vec3 position;
             
             void main() {
-                vec4 worldPosition = model * vec4(vertexPosition, 1.0);
+                vec4 worldPosition = instanceModel * vec4(vertexPosition, 1.0);
                 position = worldPosition.xyz / worldPosition.w;
                 gl_Position = projectionView * worldPosition;
             }
@@ -70,7 +70,7 @@ public class SpotLightShadowProgram {
             """;
     
     public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
-    public static final BetterUniformSetter UNIFORMS = new BetterUniformSetter(SHADER_PROGRAM, "projectionView", "model", "nearPlane", "farPlane", "camPos");
+    public static final BetterUniformSetter UNIFORMS = new BetterUniformSetter(SHADER_PROGRAM, "projectionView", "nearPlane", "farPlane", "camPos");
     
     public static void init() {
         
@@ -83,10 +83,6 @@ public class SpotLightShadowProgram {
         glUniform3f(UNIFORMS.locationOf("camPos"), camX, camY, camZ);
     }
     
-    public static void sendPerDrawUniforms(Matrix4fc model) {
-        BetterUniformSetter.uniformMatrix4fv(UNIFORMS.locationOf("model"), model);
-    }
-    
     private SpotLightShadowProgram() {
         
     }
@@ -0,0 +1,166 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.probe;
+
+import java.nio.FloatBuffer;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import static org.lwjgl.opengl.GL33C.*;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * A regular grid of irradiance probes stored as spherical harmonics
+ * coefficients already convolved with the cosine lobe.
+ * <p>
+ * Every coefficient is a block of the depth of a single 3d texture, the
+ * lookup clamps the depth coordinate to the texel centers of a block so the
+ * linear filter never mixes two coefficients.
+ *
+ * @author Cien
+ */
+public class ProbeGrid {
+
+    public static final int L1_COEFFICIENTS = 4;
+    public static final int L2_COEFFICIENTS = 9;
+
+    private final int texture = glGenTextures();
+    private final Vector3f min = new Vector3f();
+    private final Vector3f max = new Vector3f();
+    private int resolutionX = 0;
+    private int resolutionY = 0;
+    private int resolutionZ = 0;
+    private int coefficients = 0;
+    private boolean freed = false;
+
+    public ProbeGrid() {
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_3D, this.texture);
+        glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_R, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glBindTexture(GL_TEXTURE_3D, 0);
+    }
+
+    /**
+     * Replaces the probes of the grid.
+     *
+     * @param min the position of the first probe
+     * @param max the position of the last probe
+     * @param resolutionX the number of probes in x
+     * @param resolutionY the number of probes in y
+     * @param resolutionZ the number of probes in z
+     * @param coefficients {@link #L1_COEFFICIENTS} or
+     * {@link #L2_COEFFICIENTS}
+     * @param data the rgb coefficients, coefficient major, then z, y and x
+     */
+    public void upload(
+            Vector3fc min, Vector3fc max,
+            int resolutionX, int resolutionY, int resolutionZ,
+            int coefficients, float[] data
+    ) {
+        if (this.freed) {
+            throw new IllegalStateException("Probe grid was freed.");
+        }
+        if (coefficients != L1_COEFFICIENTS && coefficients != L2_COEFFICIENTS) {
+            throw new IllegalArgumentException("Invalid number of coefficients: " + coefficients);
+        }
+        int expected = resolutionX * resolutionY * resolutionZ * coefficients * 3;
+        if (data.length != expected) {
+            throw new IllegalArgumentException("Invalid data length: " + data.length + " != " + expected);
+        }
+
+        this.min.set(min);
+        this.max.set(max);
+        this.resolutionX = resolutionX;
+        this.resolutionY = resolutionY;
+        this.resolutionZ = resolutionZ;
+        this.coefficients = coefficients;
+
+        FloatBuffer buffer = MemoryUtil.memAllocFloat(data.length);
+        try {
+            buffer.put(data).flip();
+
+            glActiveTexture(GL_TEXTURE0);
+            glBindTexture(GL_TEXTURE_3D, this.texture);
+            glTexImage3D(
+                    GL_TEXTURE_3D, 0, GL_RGB16F,
+                    resolutionX, resolutionY, resolutionZ * coefficients,
+                    0, GL_RGB, GL_FLOAT, buffer
+            );
+            glBindTexture(GL_TEXTURE_3D, 0);
+        } finally {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.coefficients == 0;
+    }
+
+    public int getTexture() {
+        return texture;
+    }
+
+    public Vector3fc getMin() {
+        return min;
+    }
+
+    public Vector3fc getMax() {
+        return max;
+    }
+
+    public int getResolutionX() {
+        return resolutionX;
+    }
+
+    public int getResolutionY() {
+        return resolutionY;
+    }
+
+    public int getResolutionZ() {
+        return resolutionZ;
+    }
+
+    public int getNumberOfProbes() {
+        return this.resolutionX * this.resolutionY * this.resolutionZ;
+    }
+
+    public int getCoefficients() {
+        return coefficients;
+    }
+
+    public void free() {
+        if (this.freed) {
+            return;
+        }
+        glDeleteTextures(this.texture);
+        this.freed = true;
+    }
+
+}
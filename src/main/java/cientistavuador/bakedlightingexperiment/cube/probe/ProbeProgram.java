@@ -0,0 +1,188 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.cube.probe;
+
+import cientistavuador.bakedlightingexperiment.util.ProgramCompiler;
+import java.nio.FloatBuffer;
+import org.joml.Matrix3fc;
+import org.joml.Matrix4fc;
+import static org.lwjgl.opengl.GL33C.*;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Draws cubes without a lightmap lit by the interpolated probes of a
+ * {@link ProbeGrid}.
+ *
+ * @author Cien
+ */
+public class ProbeProgram {
+
+    /**
+     * The probe grid uniforms and the irradiance lookup, the coefficients are
+     * already convolved so the lookup is a dot product with the basis.
+     */
+    public static final String PROBE_BLOCK
+            = 
+            """
+            uniform sampler3D probeTexture;
+            uniform vec3 probeMin;
+            uniform vec3 probeMax;
+            uniform ivec3 probeResolution;
+            uniform int probeCoefficients;
+            
+            vec3 probeCoefficient(vec3 coords, int index) {
+                return texture(probeTexture, vec3(coords.xy, (coords.z + float(index)) / float(probeCoefficients))).rgb;
+            }
+            
+            vec3 probeIrradiance(vec3 position, vec3 normal) {
+                vec3 grid = clamp((position - probeMin) / max(probeMax - probeMin, vec3(1e-5)), 0.0, 1.0);
+                vec3 resolution = vec3(probeResolution);
+                vec3 coords = ((grid * (resolution - 1.0)) + 0.5) / resolution;
+                
+                vec3 n = normalize(normal);
+                vec3 irradiance = probeCoefficient(coords, 0) * 0.282095;
+                irradiance += probeCoefficient(coords, 1) * (0.488603 * n.y);
+                irradiance += probeCoefficient(coords, 2) * (0.488603 * n.z);
+                irradiance += probeCoefficient(coords, 3) * (0.488603 * n.x);
+                if (probeCoefficients > 4) {
+                    irradiance += probeCoefficient(coords, 4) * (1.092548 * n.x * n.y);
+                    irradiance += probeCoefficient(coords, 5) * (1.092548 * n.y * n.z);
+                    irradiance += probeCoefficient(coords, 6) * (0.315392 * ((3.0 * n.z * n.z) - 1.0));
+                    irradiance += probeCoefficient(coords, 7) * (1.092548 * n.x * n.z);
+                    irradiance += probeCoefficient(coords, 8) * (0.546274 * ((n.x * n.x) - (n.y * n.y)));
+                }
+                return max(irradiance, vec3(0.0));
+            }
+            """;
+
+    public static final String VERTEX_SHADER
+            = 
+            """
+            #version 330 core
+            
+            uniform mat4 projectionView;
+            uniform mat4 model;
+            uniform mat3 normalModel;
+            
+            layout (location = 0) in vec3 vertexPosition;
+            layout (location = 1) in vec3 vertexNormal;
+            layout (location = 2) in vec2 vertexTexture;
+            
+            out vec3 worldPosition;
+            out vec3 worldNormal;
+            out vec2 texCoords;
+            
+            void main() {
+                vec4 position = model * vec4(vertexPosition, 1.0);
+                worldPosition = position.xyz;
+                worldNormal = normalModel * vertexNormal;
+                texCoords = vertexTexture;
+                gl_Position = projectionView * position;
+            }
+            """;
+
+    public static final String FRAGMENT_SHADER
+            = 
+            """
+            #version 330 core
+            
+            uniform sampler2D cubeTexture;
+            
+            %s
+            
+            layout (location = 0) out vec4 outputColor;
+            
+            in vec3 worldPosition;
+            in vec3 worldNormal;
+            in vec2 texCoords;
+            
+            void main() {
+                vec4 textureColor = texture(cubeTexture, texCoords);
+                
+                textureColor.rgb = pow(textureColor.rgb, vec3(2.2));
+                
+                textureColor.rgb *= probeIrradiance(worldPosition, worldNormal);
+                
+                textureColor.rgb = pow(textureColor.rgb, vec3(1.0/2.2));
+                
+                outputColor = textureColor;
+            }
+            """.formatted(PROBE_BLOCK);
+
+    public static final int SHADER_PROGRAM = ProgramCompiler.compile(VERTEX_SHADER, FRAGMENT_SHADER);
+    public static final int PROJECTION_VIEW_INDEX = glGetUniformLocation(SHADER_PROGRAM, "projectionView");
+    public static final int MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "model");
+    public static final int NORMAL_MODEL_INDEX = glGetUniformLocation(SHADER_PROGRAM, "normalModel");
+    public static final int CUBE_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "cubeTexture");
+    public static final int PROBE_TEXTURE_INDEX = glGetUniformLocation(SHADER_PROGRAM, "probeTexture");
+    public static final int PROBE_MIN_INDEX = glGetUniformLocation(SHADER_PROGRAM, "probeMin");
+    public static final int PROBE_MAX_INDEX = glGetUniformLocation(SHADER_PROGRAM, "probeMax");
+    public static final int PROBE_RESOLUTION_INDEX = glGetUniformLocation(SHADER_PROGRAM, "probeResolution");
+    public static final int PROBE_COEFFICIENTS_INDEX = glGetUniformLocation(SHADER_PROGRAM, "probeCoefficients");
+
+    public static void init() {
+
+    }
+
+    public static void sendPerFrameUniforms(int cubeTexture, Matrix4fc projectionView, ProbeGrid grid) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            FloatBuffer matrixBuffer = stack.mallocFloat(4 * 4);
+            projectionView.get(matrixBuffer);
+            glUniformMatrix4fv(PROJECTION_VIEW_INDEX, false, matrixBuffer);
+        }
+
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, cubeTexture);
+        glUniform1i(CUBE_TEXTURE_INDEX, 0);
+
+        glActiveTexture(GL_TEXTURE1);
+        glBindTexture(GL_TEXTURE_3D, grid.getTexture());
+        glUniform1i(PROBE_TEXTURE_INDEX, 1);
+
+        glUniform3f(PROBE_MIN_INDEX, grid.getMin().x(), grid.getMin().y(), grid.getMin().z());
+        glUniform3f(PROBE_MAX_INDEX, grid.getMax().x(), grid.getMax().y(), grid.getMax().z());
+        glUniform3i(PROBE_RESOLUTION_INDEX, grid.getResolutionX(), grid.getResolutionY(), grid.getResolutionZ());
+        glUniform1i(PROBE_COEFFICIENTS_INDEX, grid.getCoefficients());
+    }
+
+    public static void sendPerDrawUniforms(Matrix4fc model, Matrix3fc normalModel) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            FloatBuffer matrixBuffer = stack.mallocFloat(4 * 4);
+            model.get(matrixBuffer);
+            glUniformMatrix4fv(MODEL_INDEX, false, matrixBuffer);
+
+            FloatBuffer normalBuffer = stack.mallocFloat(3 * 3);
+            normalModel.get(normalBuffer);
+            glUniformMatrix3fv(NORMAL_MODEL_INDEX, false, normalBuffer);
+        }
+    }
+
+    private ProbeProgram() {
+
+    }
+
+}
@@ -156,8 +156,7 @@ public class AabRender {
         glUniform3f(AAB_SCALE_INDEX, scaleX, scaleY, scaleZ);
 
         glDrawArrays(GL_LINES, 0, 24);
-        Main.NUMBER_OF_DRAWCALLS++;
-        Main.NUMBER_OF_VERTICES += 24;
+        Main.countDrawCall(24);
     }
 
     public static void endRendering() {
@@ -185,8 +184,7 @@ public class AabRender {
             glUniform3f(AAB_SCALE_INDEX, scaleX, scaleY, scaleZ);
 
             glDrawArrays(GL_LINES, 0, 24);
-            Main.NUMBER_OF_DRAWCALLS++;
-            Main.NUMBER_OF_VERTICES += 24;
+            Main.countDrawCall(24);
         });
     }
 
@@ -218,8 +218,7 @@ public class Triangle {
         }
         
         glDrawArrays(GL_TRIANGLES, 0, 3);
-        Main.NUMBER_OF_DRAWCALLS++;
-        Main.NUMBER_OF_VERTICES += 3;
+        Main.countDrawCall(3);
         
         glBindVertexArray(0);
         glUseProgram(0);
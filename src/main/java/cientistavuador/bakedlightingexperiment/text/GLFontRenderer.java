@@ -239,8 +239,7 @@ public class GLFontRenderer {
                 if (!ubo.canPush() || (j >= length - 1)) {
                     ubo.flipAndUpdate();
                     glDrawArraysInstanced(GL_TRIANGLES, 0, 6, ubo.getLength());
-                    Main.NUMBER_OF_DRAWCALLS++;
-                    Main.NUMBER_OF_VERTICES += 6 * ubo.getLength();
+                    Main.countDrawCall(6 * ubo.getLength());
                 }
             }
         }
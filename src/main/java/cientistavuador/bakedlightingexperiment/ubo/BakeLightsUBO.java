@@ -0,0 +1,185 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.ubo;
+
+import cientistavuador.bakedlightingexperiment.Main;
+import cientistavuador.bakedlightingexperiment.util.ObjectCleaner;
+import org.joml.Matrix4fc;
+import org.joml.Vector3fc;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * std140 array of lights used to bake a batch of lights in a single draw.
+ * <p>
+ * Every light has 6 shadow slots (a tile and a projection view), spot and
+ * directional lights only use the first one.
+ *
+ * @author Cien
+ */
+public class BakeLightsUBO {
+
+    public static final BakeLightsUBO DEFAULT = create(UBOBindingPoints.BAKE_LIGHTS);
+    
+    public static final int MAX_LIGHTS = 16;
+    public static final int SHADOW_SLOTS = 6;
+    
+    public static final int TYPE_DIRECTIONAL = 0;
+    public static final int TYPE_POINT = 1;
+    public static final int TYPE_SPOT = 2;
+    
+    //positionType, directionCutoff, diffuseOuterCutoff, ambient, shadowPlanesRange, shadowTile[6], shadowProjectionView[6]
+    public static final int LIGHT_SIZE = (5 * 4) + (SHADOW_SLOTS * 4) + (SHADOW_SLOTS * 4 * 4);
+    public static final int HEADER_SIZE = 4;
+    public static final int SIZE = HEADER_SIZE + (MAX_LIGHTS * LIGHT_SIZE);
+    
+    private static final int SHADOW_TILE_OFFSET = 5 * 4;
+    private static final int SHADOW_PROJECTION_VIEW_OFFSET = SHADOW_TILE_OFFSET + (SHADOW_SLOTS * 4);
+
+    public static BakeLightsUBO create(int bindingPoint) {
+        int ubo = glGenBuffers();
+        BakeLightsUBO bakeLightsUbo = new BakeLightsUBO(bindingPoint, ubo);
+        ObjectCleaner.get().register(bakeLightsUbo, () -> {
+            Main.MAIN_TASKS.add(() -> {
+                glDeleteBuffers(ubo);
+            });
+        });
+        return bakeLightsUbo;
+    }
+
+    private final int bindingPoint;
+    private final int ubo;
+    
+    private final float[] data = new float[SIZE];
+    private int count = 0;
+
+    private BakeLightsUBO(int bindingPoint, int ubo) {
+        this.bindingPoint = bindingPoint;
+        this.ubo = ubo;
+
+        glBindBuffer(GL_UNIFORM_BUFFER, this.ubo);
+        glBufferData(GL_UNIFORM_BUFFER, SIZE * Float.BYTES, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+
+        glBindBufferBase(GL_UNIFORM_BUFFER, this.bindingPoint, this.ubo);
+    }
+
+    public int getBindingPoint() {
+        return bindingPoint;
+    }
+
+    public int getUBO() {
+        return ubo;
+    }
+
+    public int getCount() {
+        return count;
+    }
+    
+    public boolean canPush() {
+        return this.count < MAX_LIGHTS;
+    }
+    
+    private int lightOffset(int index) {
+        if (index < 0 || index >= this.count) {
+            throw new IllegalArgumentException("Invalid light index: " + index);
+        }
+        return HEADER_SIZE + (index * LIGHT_SIZE);
+    }
+    
+    private void put(int offset, float x, float y, float z, float w) {
+        this.data[offset + 0] = x;
+        this.data[offset + 1] = y;
+        this.data[offset + 2] = z;
+        this.data[offset + 3] = w;
+    }
+    
+    public void clear() {
+        this.count = 0;
+    }
+    
+    public int push(
+            int type,
+            Vector3fc position, Vector3fc direction,
+            Vector3fc diffuse, Vector3fc ambient,
+            float cutoff, float outerCutoff,
+            float nearPlane, float farPlane, float range
+    ) {
+        if (!canPush()) {
+            throw new IllegalStateException("Batch is full, max of " + MAX_LIGHTS + " lights.");
+        }
+        int index = this.count++;
+        int offset = lightOffset(index);
+        
+        put(offset + 0, position.x(), position.y(), position.z(), type);
+        put(offset + 4, direction.x(), direction.y(), direction.z(), cutoff);
+        put(offset + 8, diffuse.x(), diffuse.y(), diffuse.z(), outerCutoff);
+        put(offset + 12, ambient.x(), ambient.y(), ambient.z(), 0f);
+        put(offset + 16, nearPlane, farPlane, range, 0f);
+        
+        for (int i = 0; i < SHADOW_SLOTS; i++) {
+            put(offset + SHADOW_TILE_OFFSET + (i * 4), 0f, 0f, 0f, 0f);
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Sets the values the adaptive shadow mode uses to estimate the penumbra,
+     * stored in the unused w of ambient and shadowPlanes.
+     *
+     * @param index the light index
+     * @param lightSize the light radius or the tangent of its angular radius
+     * @param shadowExtent the width of an orthographic shadow map in world
+     * units or the tangent of half the fov of a perspective one
+     */
+    public void setPenumbra(int index, float lightSize, float shadowExtent) {
+        int offset = lightOffset(index);
+        this.data[offset + 12 + 3] = lightSize;
+        this.data[offset + 16 + 3] = shadowExtent;
+    }
+    
+    public void setShadow(int index, int slot, Matrix4fc projectionView, float x, float y, float scale) {
+        if (slot < 0 || slot >= SHADOW_SLOTS) {
+            throw new IllegalArgumentException("Invalid shadow slot: " + slot);
+        }
+        int offset = lightOffset(index);
+        put(offset + SHADOW_TILE_OFFSET + (slot * 4), x, y, scale, scale);
+        projectionView.get(this.data, offset + SHADOW_PROJECTION_VIEW_OFFSET + (slot * 4 * 4));
+    }
+    
+    public void updateUBO() {
+        this.data[0] = Float.intBitsToFloat(this.count);
+        
+        glBindBuffer(GL_UNIFORM_BUFFER, this.ubo);
+        glBufferSubData(GL_UNIFORM_BUFFER, 0, this.data);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        
+        //binding points are not shared between contexts
+        glBindBufferBase(GL_UNIFORM_BUFFER, this.bindingPoint, this.ubo);
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.ubo;
+
+import cientistavuador.bakedlightingexperiment.Main;
+import cientistavuador.bakedlightingexperiment.util.ObjectCleaner;
+import org.joml.Vector3fc;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * std140 block with the directions of a sky light and the layout of its
+ * shadow atlas, read by both the shadow pass and the bake.
+ * <p>
+ * The header is the number of directions, the tiles per row, the tile size
+ * and the atlas size, followed by the center and radius of the scene and the
+ * directions towards the sky.
+ *
+ * @author Cien
+ */
+public class SkyLightUBO {
+
+    public static final SkyLightUBO DEFAULT = create(UBOBindingPoints.SKY_LIGHT);
+
+    public static final int MAX_DIRECTIONS = 256;
+
+    //header, bounds, directions[256]
+    public static final int SIZE = 4 + 4 + (MAX_DIRECTIONS * 4);
+
+    public static SkyLightUBO create(int bindingPoint) {
+        int ubo = glGenBuffers();
+        SkyLightUBO skyLightUbo = new SkyLightUBO(bindingPoint, ubo);
+        ObjectCleaner.get().register(skyLightUbo, () -> {
+            Main.MAIN_TASKS.add(() -> {
+                glDeleteBuffers(ubo);
+            });
+        });
+        return skyLightUbo;
+    }
+
+    private final int bindingPoint;
+    private final int ubo;
+
+    private final float[] data = new float[SIZE];
+
+    private SkyLightUBO(int bindingPoint, int ubo) {
+        this.bindingPoint = bindingPoint;
+        this.ubo = ubo;
+
+        glBindBuffer(GL_UNIFORM_BUFFER, this.ubo);
+        glBufferData(GL_UNIFORM_BUFFER, SIZE * Float.BYTES, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+
+        glBindBufferBase(GL_UNIFORM_BUFFER, this.bindingPoint, this.ubo);
+    }
+
+    public int getBindingPoint() {
+        return bindingPoint;
+    }
+
+    public int getUBO() {
+        return ubo;
+    }
+
+    public void update(
+            Vector3fc[] directions, int tilesPerRow, int tileSize, int atlasSize,
+            Vector3fc center, float radius
+    ) {
+        if (directions.length > MAX_DIRECTIONS) {
+            throw new IllegalArgumentException("Too many directions: " + directions.length + ", max is " + MAX_DIRECTIONS);
+        }
+
+        this.data[0] = Float.intBitsToFloat(directions.length);
+        this.data[1] = Float.intBitsToFloat(tilesPerRow);
+        this.data[2] = Float.intBitsToFloat(tileSize);
+        this.data[3] = Float.intBitsToFloat(atlasSize);
+
+        this.data[4] = center.x();
+        this.data[5] = center.y();
+        this.data[6] = center.z();
+        this.data[7] = radius;
+
+        for (int i = 0; i < directions.length; i++) {
+            int offset = 8 + (i * 4);
+            this.data[offset + 0] = directions[i].x();
+            this.data[offset + 1] = directions[i].y();
+            this.data[offset + 2] = directions[i].z();
+            this.data[offset + 3] = 0f;
+        }
+
+        glBindBuffer(GL_UNIFORM_BUFFER, this.ubo);
+        glBufferSubData(GL_UNIFORM_BUFFER, 0, this.data);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+
+        //binding points are not shared between contexts
+        glBindBufferBase(GL_UNIFORM_BUFFER, this.bindingPoint, this.ubo);
+    }
+
+}
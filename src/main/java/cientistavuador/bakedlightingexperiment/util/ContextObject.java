@@ -0,0 +1,169 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <https://unlicense.org>
+ */
+package cientistavuador.bakedlightingexperiment.util;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import static org.lwjgl.glfw.GLFW.glfwGetCurrentContext;
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * A framebuffer or vertex array used by more than one context.
+ * <p>
+ * Container objects are not shared between contexts, so the object is created
+ * again the first time it is used in each context, textures and buffers are
+ * shared and can be attached in every context.
+ * <p>
+ * An object can only be deleted by its own context, so deleting it queues the
+ * objects of the other contexts, each context must call
+ * {@link #deletePending()} once in a while and {@link #releaseContext()}
+ * before it is destroyed.
+ *
+ * @author Cien
+ */
+public class ContextObject {
+
+    /**
+     * Creates a framebuffer, the attachments are set up with the framebuffer
+     * bound to GL_DRAW_FRAMEBUFFER.
+     *
+     * @param name the name used in the error message
+     * @param attachments sets up the attachments
+     * @return the context object
+     */
+    public static ContextObject framebuffer(String name, Runnable attachments) {
+        return new ContextObject(() -> {
+            int previous = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+            int fbo = glGenFramebuffers();
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, fbo);
+            attachments.run();
+            if (glCheckFramebufferStatus(GL_DRAW_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+                throw new RuntimeException("Could not create " + name + " FBO!");
+            }
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, previous);
+            return fbo;
+        }, (fbo) -> glDeleteFramebuffers(fbo));
+    }
+
+    /**
+     * Creates a vertex array, the attributes are set up with the vertex array
+     * bound.
+     *
+     * @param attributes sets up the attributes
+     * @return the context object
+     */
+    public static ContextObject vertexArray(Runnable attributes) {
+        return new ContextObject(() -> {
+            int previous = glGetInteger(GL_VERTEX_ARRAY_BINDING);
+            int vao = glGenVertexArrays();
+            glBindVertexArray(vao);
+            attributes.run();
+            glBindVertexArray(previous);
+            return vao;
+        }, (vao) -> glDeleteVertexArrays(vao));
+    }
+
+    private static final Set<ContextObject> live = ConcurrentHashMap.newKeySet();
+    private static final Map<Long, Queue<Runnable>> pendingDeletes = new ConcurrentHashMap<>();
+
+    /**
+     * Deletes the objects of the current context that were deleted by other
+     * contexts.
+     */
+    public static void deletePending() {
+        Queue<Runnable> pending = pendingDeletes.get(glfwGetCurrentContext());
+        if (pending == null) {
+            return;
+        }
+        Runnable r;
+        while ((r = pending.poll()) != null) {
+            r.run();
+        }
+    }
+
+    /**
+     * Deletes every object of the current context, it must be called before
+     * the context is destroyed.
+     */
+    public static void releaseContext() {
+        deletePending();
+        long context = glfwGetCurrentContext();
+        pendingDeletes.remove(context);
+        for (ContextObject o : live) {
+            Integer object = o.objects.remove(context);
+            if (object != null) {
+                o.deleter.accept(object);
+            }
+        }
+    }
+
+    private final IntSupplier factory;
+    private final IntConsumer deleter;
+    private final Map<Long, Integer> objects = new ConcurrentHashMap<>();
+
+    private ContextObject(IntSupplier factory, IntConsumer deleter) {
+        this.factory = factory;
+        this.deleter = deleter;
+        live.add(this);
+    }
+
+    public int get() {
+        long context = glfwGetCurrentContext();
+        Integer object = this.objects.get(context);
+        if (object == null) {
+            object = this.factory.getAsInt();
+            this.objects.put(context, object);
+        }
+        return object;
+    }
+
+    /**
+     * Deletes the object of the current context, the objects of other
+     * contexts are queued to be deleted by their own context.
+     */
+    public void delete() {
+        live.remove(this);
+        long current = glfwGetCurrentContext();
+        for (Map.Entry<Long, Integer> e : this.objects.entrySet()) {
+            int object = e.getValue();
+            if (e.getKey() == current) {
+                this.deleter.accept(object);
+            } else {
+                pendingDeletes
+                        .computeIfAbsent(e.getKey(), (k) -> new ConcurrentLinkedQueue<>())
+                        .add(() -> this.deleter.accept(object));
+            }
+        }
+        this.objects.clear();
+    }
+
+}